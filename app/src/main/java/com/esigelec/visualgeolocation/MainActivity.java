@@ -13,6 +13,8 @@ import androidx.navigation.ui.AppBarConfiguration;
 import androidx.navigation.ui.NavigationUI;
 
 import com.esigelec.visualgeolocation.databinding.ActivityMainBinding;
+import com.esigelec.visualgeolocation.utils.AndroidLogBackend;
+import com.esigelec.visualgeolocation.utils.MatchLog;
 
 import android.view.Menu;
 import android.view.MenuItem;
@@ -35,6 +37,8 @@ public class MainActivity extends AppCompatActivity {
 
         setSupportActionBar(binding.toolbar);
 
+        MatchLog.setBackend(new AndroidLogBackend());
+
         if (!OpenCVLoader.initDebug()) {
             Log.e("OpenCV", "Initialization Failed");
         } else {
@@ -1,8 +1,9 @@
 package com.esigelec.visualgeolocation.fragments;
 
+import android.Manifest;
 import android.content.Intent;
+import android.content.pm.PackageManager;
 import android.graphics.Color;
-import android.location.Location;
 import android.net.Uri;
 import android.os.Bundle;
 import android.os.Environment;
@@ -19,20 +20,19 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.activity.OnBackPressedCallback;
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.core.content.ContextCompat;
 import androidx.core.content.FileProvider;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
 
 import com.esigelec.visualgeolocation.R;
-import com.esigelec.visualgeolocation.utils.AkazeMatcher;
-import com.esigelec.visualgeolocation.utils.FastMatcher;
-import com.esigelec.visualgeolocation.utils.ImageMatcher;
-import com.esigelec.visualgeolocation.utils.ImageUtils;
-import com.esigelec.visualgeolocation.utils.LocationUtils;
-import com.esigelec.visualgeolocation.utils.OrbMatcher;
-import com.esigelec.visualgeolocation.utils.SiftImageMatcher;
+import com.esigelec.visualgeolocation.services.BatchJob;
+import com.esigelec.visualgeolocation.utils.LocationAnalysis;
+import com.esigelec.visualgeolocation.utils.SimilarityMatrix;
 import com.esigelec.visualgeolocation.viewmodel.SharedViewModel;
 
 import java.io.File;
@@ -40,16 +40,11 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
 
 public class BatchAnalysisFragment extends Fragment {
     private static final String TAG = "BatchAnalysisFragment";
@@ -60,14 +55,30 @@ public class BatchAnalysisFragment extends Fragment {
     private TableLayout resultsTable;
     private View tableScrollView;
     private Button exportButton;
-    private ExecutorService executorService;
-    private final AtomicBoolean isProcessing = new AtomicBoolean(false);
+    private ActivityResultLauncher<String> notificationPermissionLauncher;
+    private BatchJob job;
+    private boolean resultsShown;
     private final Map<String, ProgressData> progressMap = new HashMap<>();
-    private final Map<String, LocationData> locationDataMap = new HashMap<>();
     private String selectedAlgorithm;
-    private double totalNonWeightedDistance = 0;
-    private double totalWeightedDistance = 0;
-    private int validLocationCount = 0;
+
+    private final BatchJob.Listener jobListener = new BatchJob.Listener() {
+        @Override
+        public void onResult(int source, int target, double similarity) {
+            // The job already stored the score; the ViewModel publishes throttled updates
+            viewModel.batchResultsChanged();
+            if (getActivity() != null) {
+                getActivity().runOnUiThread(() -> updateProgress(source));
+            }
+        }
+
+        @Override
+        public void onFinished() {
+            viewModel.publishBatchResults();
+            if (getActivity() != null) {
+                getActivity().runOnUiThread(() -> displayDetailedResults());
+            }
+        }
+    };
 
     private static class ProgressData {
         View progressView;
@@ -78,42 +89,22 @@ public class BatchAnalysisFragment extends Fragment {
         int current;
     }
     
-    private static class LocationData {
-        double originalLat;
-        double originalLng;
-        double avgLat;
-        double avgLng;
-        double weightedAvgLat;
-        double weightedAvgLng;
-        double nonWeightedDistance;
-        double weightedDistance;
-        List<WeightedLocation> matchedLocations = new ArrayList<>();
-    }
-    
-    private static class WeightedLocation {
-        double lat;
-        double lng;
-        double weight;
-        
-        WeightedLocation(double lat, double lng, double weight) {
-            this.lat = lat;
-            this.lng = lng;
-            this.weight = weight;
-        }
-    }
-
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         viewModel = new ViewModelProvider(requireActivity()).get(SharedViewModel.class);
-        executorService = Executors.newFixedThreadPool(
-                Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+        // The batch runs without it; it only shows the progress notification
+        notificationPermissionLauncher = registerForActivityResult(
+            new ActivityResultContracts.RequestPermission(),
+            isGranted -> Log.d(TAG, "Notification permission granted: " + isGranted)
+        );
 
         // Handle back press
         requireActivity().getOnBackPressedDispatcher().addCallback(this, new OnBackPressedCallback(true) {
             @Override
             public void handleOnBackPressed() {
-                if (isProcessing.get()) {
+                if (isProcessing()) {
                     showCancellationDialog();
                 } else {
                     requireActivity().getSupportFragmentManager().popBackStack();
@@ -144,30 +135,34 @@ public class BatchAnalysisFragment extends Fragment {
         startBatchAnalysis();
     }
     
+    private boolean isProcessing() {
+        return job != null && job.isRunning();
+    }
+    
     private void showCancellationDialog() {
         new com.google.android.material.dialog.MaterialAlertDialogBuilder(requireContext())
             .setTitle("Cancel Analysis")
-            .setMessage("Are you sure you want to cancel the batch analysis?")
+            .setMessage("Are you sure you want to cancel the batch analysis? Completed comparisons are saved, "
+                    + "and the next analysis of the same images resumes from them.")
             .setPositiveButton("Yes", (dialog, which) -> {
                 stopProcessing();
                 requireActivity().getSupportFragmentManager().popBackStack();
             })
+            .setNeutralButton("Run in Background", (dialog, which) ->
+                requireActivity().getSupportFragmentManager().popBackStack())
             .setNegativeButton("No", null)
             .show();
     }
     
     private void stopProcessing() {
-        if (isProcessing.get()) {
-            executorService.shutdownNow();
-            executorService = Executors.newFixedThreadPool(
-                    Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
-            isProcessing.set(false);
+        if (isProcessing()) {
+            job.cancel();
         }
     }
     
     private void startBatchAnalysis() {
-        if (isProcessing.get()) return;
-        isProcessing.set(true);
+        resultsShown = false;
+        progressMap.clear();
         
         selectedAlgorithm = viewModel.getSelectedAlgorithm().getValue();
         List<Uri> images = viewModel.getSelectedImages().getValue();
@@ -177,162 +172,50 @@ public class BatchAnalysisFragment extends Fragment {
             return;
         }
         
+        if (ContextCompat.checkSelfPermission(requireContext(), Manifest.permission.POST_NOTIFICATIONS)
+                != PackageManager.PERMISSION_GRANTED) {
+            notificationPermissionLauncher.launch(Manifest.permission.POST_NOTIFICATIONS);
+        }
+        
         statusText.setText("Comparing all images using " + selectedAlgorithm + " algorithm");
         
+        // Runs in a foreground service and resumes from its checkpoint; a batch already
+        // running or finished over the same images is shown as is
+        job = BatchJob.start(requireContext(), selectedAlgorithm, viewModel.getVerification(),
+                viewModel.getKeypointBudget(), images);
+        viewModel.startBatchResults(job.getMatrix());
+        
         // Initialize the progress views for each image
         for (int i = 0; i < images.size(); i++) {
-            Uri image = images.get(i);
-            initProgressView(image, i, images.size() - 1); // Each image is compared against all others except itself
-            
-            // Initialize location data map
-            String imageId = image.getLastPathSegment();
-            locationDataMap.put(imageId, new LocationData());
-            
-            // Try to extract original location from image EXIF
-            try {
-                double[] coordinates = ImageUtils.getImageCoordinates(requireContext(), image);
-                if (coordinates != null && coordinates.length == 2) {
-                    LocationData locationData = locationDataMap.get(imageId);
-                    locationData.originalLat = coordinates[0];
-                    locationData.originalLng = coordinates[1];
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Failed to extract coordinates for " + imageId, e);
-            }
+            initProgressView(images.get(i), i, images.size() - 1); // Each image is compared against all others except itself
         }
         
-        final ImageMatcher matcher = createMatcher(selectedAlgorithm);
-        final AtomicInteger completedTasks = new AtomicInteger(0);
-        final int totalTasks = images.size() * (images.size() - 1);
-        
-        // For each image, compare against all other images
-        for (int i = 0; i < images.size(); i++) {
-            final Uri sourceImage = images.get(i);
-            final String sourceId = sourceImage.getLastPathSegment();
-            
-            final int sourceIdx = i;
-            executorService.execute(() -> {
-                List<Uri> targetImages = new ArrayList<>(images);
-                targetImages.remove(sourceImage); // Don't compare with self
-                
-                for (int j = 0; j < targetImages.size() && !Thread.currentThread().isInterrupted(); j++) {
-                    Uri targetImage = targetImages.get(j);
-                    String targetId = targetImage.getLastPathSegment();
-                    
-                    try {
-                        // Find matches between the two images
-                        List<ImageMatcher.MatchResult> matchResults = matcher.findMatches(sourceImage, List.of(targetImage));
-                        double similarity = 0.0;
-                        
-                        if (!matchResults.isEmpty()) {
-                            similarity = matchResults.get(0).getSimilarity();
-                            
-                            // Store location data for weighted average calculation
-                            LocationData sourceLocationData = locationDataMap.get(sourceId);
-                            LocationData targetLocationData = locationDataMap.get(targetId);
-                            
-                            if (targetLocationData.originalLat != 0 && targetLocationData.originalLng != 0) {
-                                WeightedLocation weightedLocation = new WeightedLocation(
-                                    targetLocationData.originalLat,
-                                    targetLocationData.originalLng,
-                                    similarity
-                                );
-                                sourceLocationData.matchedLocations.add(weightedLocation);
-                            }
-                        }
-                        
-                        // Store the result in the ViewModel - this will use postValue now
-                        viewModel.updateBatchResult(sourceId, targetId, similarity);
-                        
-                        // Update progress on the UI thread
-                        final int currentProgress = j + 1;
-                        if (getActivity() != null) {
-                            getActivity().runOnUiThread(() -> {
-                                // Update the progress for this specific image
-                                updateProgress(sourceId, currentProgress);
-                                
-                                // Update overall progress
-                                int completed = completedTasks.incrementAndGet();
-                                statusText.setText(String.format("Progress: %d/%d comparisons completed", 
-                                        completed, totalTasks));
-                                
-                                // If all tasks are completed, show results
-                                if (completed >= totalTasks) {
-                                    calculateLocationAverages();
-                                    displayDetailedResults(images);
-                                }
-                            });
-                        }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error comparing images", e);
-                    }
-                }
-            });
+        job.addListener(jobListener);
+        if (job.isFinished()) {
+            displayDetailedResults();
         }
     }
     
-    private void calculateLocationAverages() {
-        totalNonWeightedDistance = 0;
-        totalWeightedDistance = 0;
-        validLocationCount = 0;
+    private void updateProgress(int source) {
+        if (job == null || statusText == null) return;
         
-        for (Map.Entry<String, LocationData> entry : locationDataMap.entrySet()) {
-            LocationData locationData = entry.getValue();
-            List<WeightedLocation> matches = locationData.matchedLocations;
-            
-            if (matches.isEmpty() || locationData.originalLat == 0 || locationData.originalLng == 0) {
-                continue;
-            }
-            
-            // Calculate non-weighted average
-            double sumLat = 0;
-            double sumLng = 0;
-            for (WeightedLocation match : matches) {
-                sumLat += match.lat;
-                sumLng += match.lng;
-            }
-            locationData.avgLat = sumLat / matches.size();
-            locationData.avgLng = sumLng / matches.size();
-            
-            // Calculate weighted average
-            double totalWeight = 0;
-            double weightedSumLat = 0;
-            double weightedSumLng = 0;
-            for (WeightedLocation match : matches) {
-                weightedSumLat += match.lat * match.weight;
-                weightedSumLng += match.lng * match.weight;
-                totalWeight += match.weight;
-            }
-            
-            if (totalWeight > 0) {
-                locationData.weightedAvgLat = weightedSumLat / totalWeight;
-                locationData.weightedAvgLng = weightedSumLng / totalWeight;
-            } else {
-                locationData.weightedAvgLat = locationData.avgLat;
-                locationData.weightedAvgLng = locationData.avgLng;
-            }
-            
-            // Calculate Euclidean distances
-            locationData.nonWeightedDistance = LocationUtils.calculateDistance(
-                locationData.originalLat, locationData.originalLng,
-                locationData.avgLat, locationData.avgLng
-            );
-            
-            locationData.weightedDistance = LocationUtils.calculateDistance(
-                locationData.originalLat, locationData.originalLng,
-                locationData.weightedAvgLat, locationData.weightedAvgLng
-            );
-            
-            // Add to totals for average calculation
-            totalNonWeightedDistance += locationData.nonWeightedDistance;
-            totalWeightedDistance += locationData.weightedDistance;
-            validLocationCount++;
+        // Update the progress for this specific image
+        ProgressData data = progressMap.get(job.getMatrix().getImageId(source));
+        if (data != null) {
+            data.current = job.getProgress(source);
+            data.progressBar.setProgress(data.current);
+            data.progressText.setText(data.current + "/" + data.max);
         }
+        
+        // Update overall progress
+        statusText.setText(String.format("Progress: %d/%d comparisons completed", 
+                job.getCompletedCount(), job.getTotalCount()));
     }
     
     private void initProgressView(Uri image, int index, int max) {
         if (getActivity() == null) return;
         
+        int current = job.getProgress(index);
         getActivity().runOnUiThread(() -> {
             View progressView = getLayoutInflater().inflate(R.layout.item_batch_progress, null);
             TextView progressLabel = progressView.findViewById(R.id.progressLabel);
@@ -342,8 +225,8 @@ public class BatchAnalysisFragment extends Fragment {
             String imageId = image.getLastPathSegment();
             progressLabel.setText("Image " + (index + 1) + ": " + imageId);
             progressBar.setMax(max);
-            progressBar.setProgress(0);
-            progressText.setText("0/" + max);
+            progressBar.setProgress(current);
+            progressText.setText(current + "/" + max);
             
             ProgressData data = new ProgressData();
             data.progressView = progressView;
@@ -351,24 +234,18 @@ public class BatchAnalysisFragment extends Fragment {
             data.progressText = progressText;
             data.progressLabel = progressLabel;
             data.max = max;
-            data.current = 0;
+            data.current = current;
             
             progressMap.put(imageId, data);
             progressContainer.addView(progressView);
         });
     }
     
-    private void updateProgress(String imageId, int progress) {
-        ProgressData data = progressMap.get(imageId);
-        if (data != null) {
-            data.current = progress;
-            data.progressBar.setProgress(progress);
-            data.progressText.setText(progress + "/" + data.max);
-        }
-    }
-    
-    private void displayDetailedResults(List<Uri> images) {
-        isProcessing.set(false);
+    private void displayDetailedResults() {
+        if (resultsShown || statusText == null) return;
+        resultsShown = true;
+        LocationAnalysis locationAnalysis = job.getLocationAnalysis();
+        String prefilterReport = job.getPrefilterReport();
         
         // Hide progress and show results
         progressContainer.setVisibility(View.GONE);
@@ -376,10 +253,13 @@ public class BatchAnalysisFragment extends Fragment {
         tableScrollView.setVisibility(View.VISIBLE);
         exportButton.setVisibility(View.VISIBLE);
         
-        resultsTitle.setText("Location Analysis Results (" + selectedAlgorithm + ")");
+        int failed = job.getFailedCount();
+        resultsTitle.setText("Location Analysis Results (" + selectedAlgorithm + ")"
+                + (failed > 0 ? "\n" + failed + " comparisons failed" : "")
+                + (prefilterReport != null ? "\n" + prefilterReport : ""));
         
         // Get results from ViewModel
-        Map<String, Map<String, Double>> results = viewModel.getBatchResults().getValue();
+        SimilarityMatrix results = viewModel.getBatchResults().getValue();
         if (results == null || results.isEmpty()) {
             resultsTitle.setText("No results found");
             return;
@@ -412,19 +292,15 @@ public class BatchAnalysisFragment extends Fragment {
         resultsTable.addView(headerRow);
         
         // Add data rows
-        for (Uri image : images) {
+        for (Uri image : job.getImages()) {
             String imageId = image.getLastPathSegment();
-            LocationData locationData = locationDataMap.get(imageId);
+            LocationAnalysis.LocationData locationData = locationAnalysis.getLocationData(imageId);
             
             // Skip images without original location data or without any matches
-            if (locationData == null || 
-                locationData.originalLat == 0 || 
-                locationData.originalLng == 0 ||
-                locationData.matchedLocations.isEmpty()) {
-                
+            if (locationData == null || !locationData.isValid()) {
                 Log.d(TAG, "Skipping image " + imageId + " - Has location: " + 
-                      (locationData != null && locationData.originalLat != 0 && locationData.originalLng != 0) + 
-                      ", Matches: " + (locationData != null ? locationData.matchedLocations.size() : 0));
+                      (locationData != null && locationData.hasOriginalLocation()) + 
+                      ", Matches: " + (locationData != null ? locationData.getMatchCount() : 0));
                 continue;
             }
             
@@ -440,42 +316,42 @@ public class BatchAnalysisFragment extends Fragment {
             TextView originalLocCell = new TextView(requireContext());
             originalLocCell.setPadding(16, 16, 16, 16);
             originalLocCell.setText(String.format(Locale.US, "%.6f, %.6f", 
-                    locationData.originalLat, locationData.originalLng));
+                    locationData.getOriginalLat(), locationData.getOriginalLng()));
             dataRow.addView(originalLocCell);
             
             // Average Lat/Lng
             TextView avgLocCell = new TextView(requireContext());
             avgLocCell.setPadding(16, 16, 16, 16);
             avgLocCell.setText(String.format(Locale.US, "%.6f, %.6f", 
-                    locationData.avgLat, locationData.avgLng));
+                    locationData.getAvgLat(), locationData.getAvgLng()));
             dataRow.addView(avgLocCell);
             
             // Weighted Average Lat/Lng
             TextView weightedAvgLocCell = new TextView(requireContext());
             weightedAvgLocCell.setPadding(16, 16, 16, 16);
             weightedAvgLocCell.setText(String.format(Locale.US, "%.6f, %.6f", 
-                    locationData.weightedAvgLat, locationData.weightedAvgLng));
+                    locationData.getWeightedAvgLat(), locationData.getWeightedAvgLng()));
             dataRow.addView(weightedAvgLocCell);
             
             // Non-weighted Distance
             TextView nonWeightedDistCell = new TextView(requireContext());
             nonWeightedDistCell.setPadding(16, 16, 16, 16);
             nonWeightedDistCell.setText(String.format(Locale.US, "%.2f m", 
-                    locationData.nonWeightedDistance));
+                    locationData.getNonWeightedDistance()));
             dataRow.addView(nonWeightedDistCell);
             
             // Weighted Distance
             TextView weightedDistCell = new TextView(requireContext());
             weightedDistCell.setPadding(16, 16, 16, 16);
             weightedDistCell.setText(String.format(Locale.US, "%.2f m", 
-                    locationData.weightedDistance));
+                    locationData.getWeightedDistance()));
             dataRow.addView(weightedDistCell);
             
             resultsTable.addView(dataRow);
         }
         
         // Add summary row if we have valid location data
-        if (validLocationCount > 0) {
+        if (locationAnalysis.getValidLocationCount() > 0) {
             TableRow summaryRow = new TableRow(requireContext());
             summaryRow.setBackgroundColor(Color.rgb(230, 230, 230));
             
@@ -499,7 +375,7 @@ public class BatchAnalysisFragment extends Fragment {
             TextView avgNonWeightedCell = new TextView(requireContext());
             avgNonWeightedCell.setPadding(16, 16, 16, 16);
             avgNonWeightedCell.setText(String.format(Locale.US, "%.2f m", 
-                    totalNonWeightedDistance / validLocationCount));
+                    locationAnalysis.getAverageNonWeightedDistance()));
             avgNonWeightedCell.setTypeface(null, android.graphics.Typeface.BOLD);
             summaryRow.addView(avgNonWeightedCell);
             
@@ -507,7 +383,7 @@ public class BatchAnalysisFragment extends Fragment {
             TextView avgWeightedCell = new TextView(requireContext());
             avgWeightedCell.setPadding(16, 16, 16, 16);
             avgWeightedCell.setText(String.format(Locale.US, "%.2f m", 
-                    totalWeightedDistance / validLocationCount));
+                    locationAnalysis.getAverageWeightedDistance()));
             avgWeightedCell.setTypeface(null, android.graphics.Typeface.BOLD);
             summaryRow.addView(avgWeightedCell);
             
@@ -516,7 +392,8 @@ public class BatchAnalysisFragment extends Fragment {
     }
     
     private void exportResultsToCSV() {
-        if (locationDataMap.isEmpty()) {
+        LocationAnalysis locationAnalysis = job != null ? job.getLocationAnalysis() : null;
+        if (locationAnalysis == null || locationAnalysis.isEmpty()) {
             Toast.makeText(requireContext(), "No data to export", Toast.LENGTH_SHORT).show();
             return;
         }
@@ -530,36 +407,7 @@ public class BatchAnalysisFragment extends Fragment {
             FileOutputStream fos = new FileOutputStream(csvFile);
             OutputStreamWriter writer = new OutputStreamWriter(fos);
             
-            // Write header
-            writer.write("Image,Original Latitude,Original Longitude,Average Latitude,Average Longitude," +
-                    "Weighted Average Latitude,Weighted Average Longitude,Non-weighted Distance (m),Weighted Distance (m)\n");
-            
-            // Write data rows
-            for (Map.Entry<String, LocationData> entry : locationDataMap.entrySet()) {
-                String imageId = entry.getKey();
-                LocationData data = entry.getValue();
-                
-                // Skip images without location data or without any matches
-                if (data.originalLat == 0 || data.originalLng == 0 || data.matchedLocations.isEmpty()) {
-                    continue;
-                }
-                
-                writer.write(String.format(Locale.US, 
-                        "%s,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.2f,%.2f\n",
-                        imageId,
-                        data.originalLat, data.originalLng,
-                        data.avgLat, data.avgLng,
-                        data.weightedAvgLat, data.weightedAvgLng,
-                        data.nonWeightedDistance, data.weightedDistance));
-            }
-            
-            // Write summary
-            if (validLocationCount > 0) {
-                writer.write(String.format(Locale.US, 
-                        "AVERAGE,,,,,,,%,.2f,%,.2f\n",
-                        totalNonWeightedDistance / validLocationCount,
-                        totalWeightedDistance / validLocationCount));
-            }
+            locationAnalysis.writeCsv(writer);
             
             writer.close();
             fos.close();
@@ -586,22 +434,13 @@ public class BatchAnalysisFragment extends Fragment {
         }
     }
     
-    private ImageMatcher createMatcher(String algorithm) {
-        switch (algorithm) {
-            case "FAST":
-                return new FastMatcher(requireContext());
-            case "AKAZE":
-                return new AkazeMatcher(requireContext());
-            case "ORB":
-                return new OrbMatcher(requireContext());
-            default:
-                return new SiftImageMatcher(requireContext());
-        }
-    }
-
     @Override
-    public void onDestroy() {
-        super.onDestroy();
-        stopProcessing();
+    public void onDestroyView() {
+        super.onDestroyView();
+        // The job keeps running in its service; reopening the screen reattaches to it
+        if (job != null) {
+            job.removeListener(jobListener);
+        }
+        statusText = null;
     }
 } 
\ No newline at end of file
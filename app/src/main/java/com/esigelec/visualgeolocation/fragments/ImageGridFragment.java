@@ -1,6 +1,12 @@
 package com.esigelec.visualgeolocation.fragments;
 
+import android.Manifest;
+import android.annotation.SuppressLint;
 import android.app.Dialog;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Bundle;
 import android.view.LayoutInflater;
@@ -8,8 +14,12 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.RadioGroup;
+import android.widget.Toast;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
+import androidx.core.content.ContextCompat;
 import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
 import androidx.navigation.fragment.NavHostFragment;
@@ -22,12 +32,15 @@ import com.esigelec.visualgeolocation.adapters.ImageGridAdapter;
 import com.esigelec.visualgeolocation.databinding.FragmentImageGridBinding;
 import com.esigelec.visualgeolocation.utils.AkazeMatcher;
 import com.esigelec.visualgeolocation.utils.FastMatcher;
+import com.esigelec.visualgeolocation.utils.GeometricVerifier;
 import com.esigelec.visualgeolocation.utils.ImageMatcher;
 import com.esigelec.visualgeolocation.utils.OrbMatcher;
+import com.esigelec.visualgeolocation.utils.OrbSiftMatcher;
 import com.esigelec.visualgeolocation.utils.SiftImageMatcher;
 import com.esigelec.visualgeolocation.viewmodel.SharedViewModel;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
+import com.google.android.material.textfield.TextInputEditText;
 
 import java.util.List;
 import java.util.concurrent.ExecutorService;
@@ -38,6 +51,11 @@ public class ImageGridFragment extends Fragment implements ImageGridAdapter.OnIm
     private SharedViewModel viewModel;
     private ImageGridAdapter adapter;
     private ExecutorService executorService;
+    private ActivityResultLauncher<String> locationPermissionLauncher;
+    // Query waiting for the location permission
+    private Uri pendingTestImage;
+    private String pendingAlgorithm;
+    private double pendingRadius;
 
     @Override
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
@@ -54,6 +72,7 @@ public class ImageGridFragment extends Fragment implements ImageGridAdapter.OnIm
         setupRecyclerView();
         observeImages();
         setupBatchAnalysisButton();
+        setupLocationPermissionLauncher();
     }
 
     private void setupRecyclerView() {
@@ -77,6 +96,13 @@ public class ImageGridFragment extends Fragment implements ImageGridAdapter.OnIm
         });
     }
 
+    private void setupLocationPermissionLauncher() {
+        locationPermissionLauncher = registerForActivityResult(
+            new ActivityResultContracts.RequestPermission(),
+            isGranted -> performMatchingNearby(pendingTestImage, pendingAlgorithm, pendingRadius, isGranted)
+        );
+    }
+
     private void observeImages() {
         viewModel.getSelectedImages().observe(getViewLifecycleOwner(), images -> {
             if (images != null) {
@@ -115,6 +141,12 @@ public class ImageGridFragment extends Fragment implements ImageGridAdapter.OnIm
     private void showAlgorithmSelectionDialog(Uri testImage) {
         View dialogView = getLayoutInflater().inflate(R.layout.dialog_algorithm_selection, null);
         RadioGroup algorithmGroup = dialogView.findViewById(R.id.algorithmGroup);
+        TextInputEditText nearbyRadiusInput = dialogView.findViewById(R.id.nearbyRadiusInput);
+        TextInputEditText keypointBudgetInput = dialogView.findViewById(R.id.keypointBudgetInput);
+        dialogView.findViewById(R.id.nearbyRadiusLayout).setVisibility(View.VISIBLE);
+        RadioGroup verificationGroup = dialogView.findViewById(R.id.verificationGroup);
+        // Only the top matches are shown, so verifying their geometry costs little
+        verificationGroup.check(R.id.homographyRadio);
 
         new MaterialAlertDialogBuilder(requireContext())
                 .setTitle("Select Algorithm")
@@ -131,9 +163,19 @@ public class ImageGridFragment extends Fragment implements ImageGridAdapter.OnIm
                         algorithm = "AKAZE";
                     } else if (selectedId == R.id.orbRadio) {
                         algorithm = "ORB";
+                    } else if (selectedId == R.id.orbSiftRadio) {
+                        algorithm = OrbSiftMatcher.ALGORITHM;
                     }
                     
-                    performMatching(testImage, algorithm);
+                    viewModel.setVerification(verificationModel(verificationGroup.getCheckedRadioButtonId()));
+                    viewModel.setKeypointBudget(parseKeypointBudget(keypointBudgetInput.getText()));
+                    double radiusKm = parseRadius(nearbyRadiusInput.getText());
+                    if (radiusKm > 0) {
+                        requestNearbyMatching(testImage, algorithm, radiusKm * 1000);
+                    } else {
+                        viewModel.setLocationPrior(null);
+                        performMatching(testImage, algorithm);
+                    }
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
@@ -142,6 +184,10 @@ public class ImageGridFragment extends Fragment implements ImageGridAdapter.OnIm
     private void showBatchAnalysisAlgorithmDialog() {
         View dialogView = getLayoutInflater().inflate(R.layout.dialog_algorithm_selection, null);
         RadioGroup algorithmGroup = dialogView.findViewById(R.id.algorithmGroup);
+        TextInputEditText keypointBudgetInput = dialogView.findViewById(R.id.keypointBudgetInput);
+        RadioGroup verificationGroup = dialogView.findViewById(R.id.verificationGroup);
+        // Verifying every pair of a batch is costly, so it is off unless chosen
+        verificationGroup.check(R.id.verificationOffRadio);
 
         new MaterialAlertDialogBuilder(requireContext())
                 .setTitle("Select Algorithm for Batch Analysis")
@@ -158,14 +204,88 @@ public class ImageGridFragment extends Fragment implements ImageGridAdapter.OnIm
                         algorithm = "AKAZE";
                     } else if (selectedId == R.id.orbRadio) {
                         algorithm = "ORB";
+                    } else if (selectedId == R.id.orbSiftRadio) {
+                        algorithm = OrbSiftMatcher.ALGORITHM;
                     }
                     
+                    viewModel.setVerification(verificationModel(verificationGroup.getCheckedRadioButtonId()));
+                    viewModel.setKeypointBudget(parseKeypointBudget(keypointBudgetInput.getText()));
                     startBatchAnalysis(algorithm);
                 })
                 .setNegativeButton("Cancel", null)
                 .show();
     }
 
+    private static double parseRadius(CharSequence text) {
+        try {
+            return text != null ? Double.parseDouble(text.toString().trim()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return Transform chosen in the dialog, or null to score raw matches
+     */
+    private static GeometricVerifier.Model verificationModel(int checkedId) {
+        if (checkedId == R.id.homographyRadio) {
+            return GeometricVerifier.Model.HOMOGRAPHY;
+        } else if (checkedId == R.id.fundamentalRadio) {
+            return GeometricVerifier.Model.FUNDAMENTAL;
+        }
+        return null;
+    }
+
+    /**
+     * @return Keypoint budget typed in the dialog, or 0 to describe every keypoint
+     */
+    private static int parseKeypointBudget(CharSequence text) {
+        try {
+            return text != null ? Math.max(0, Integer.parseInt(text.toString().trim())) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void requestNearbyMatching(Uri testImage, String algorithm, double radius) {
+        if (ContextCompat.checkSelfPermission(requireContext(), Manifest.permission.ACCESS_COARSE_LOCATION)
+                == PackageManager.PERMISSION_GRANTED) {
+            performMatchingNearby(testImage, algorithm, radius, true);
+        } else {
+            pendingTestImage = testImage;
+            pendingAlgorithm = algorithm;
+            pendingRadius = radius;
+            locationPermissionLauncher.launch(Manifest.permission.ACCESS_COARSE_LOCATION);
+        }
+    }
+
+    private void performMatchingNearby(Uri testImage, String algorithm, double radius, boolean hasPermission) {
+        Location location = hasPermission ? getLastKnownLocation() : null;
+        if (location != null) {
+            // Widen the radius by the fix's own uncertainty
+            viewModel.setLocationPrior(new double[] {location.getLatitude(), location.getLongitude(),
+                    radius + location.getAccuracy()});
+        } else {
+            viewModel.setLocationPrior(null);
+            Toast.makeText(requireContext(), "Location unavailable, matching every image", Toast.LENGTH_LONG).show();
+        }
+        performMatching(testImage, algorithm);
+    }
+
+    @SuppressLint("MissingPermission") // Only called once the permission is granted
+    private Location getLastKnownLocation() {
+        LocationManager locationManager =
+                (LocationManager) requireContext().getSystemService(Context.LOCATION_SERVICE);
+        Location latest = null;
+        for (String provider : locationManager.getProviders(true)) {
+            Location location = locationManager.getLastKnownLocation(provider);
+            if (location != null && (latest == null || location.getTime() > latest.getTime())) {
+                latest = location;
+            }
+        }
+        return latest;
+    }
+
     private void performMatching(Uri testImage, String algorithm) {
         // Store the test image and algorithm in the ViewModel
         viewModel.setTestImage(testImage);
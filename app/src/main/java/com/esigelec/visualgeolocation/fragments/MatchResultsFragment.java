@@ -16,11 +16,19 @@ import androidx.fragment.app.Fragment;
 import androidx.lifecycle.ViewModelProvider;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 import com.esigelec.visualgeolocation.R;
-import com.esigelec.visualgeolocation.utils.AkazeMatcher;
-import com.esigelec.visualgeolocation.utils.FastMatcher;
+import com.esigelec.visualgeolocation.utils.BaseImageMatcher;
+import com.esigelec.visualgeolocation.utils.BatchEngine;
+import com.esigelec.visualgeolocation.utils.CandidateIndex;
+import com.esigelec.visualgeolocation.utils.DescriptorCache;
+import com.esigelec.visualgeolocation.utils.ExifReader;
+import com.esigelec.visualgeolocation.utils.GeometricVerifier;
 import com.esigelec.visualgeolocation.utils.ImageMatcher;
-import com.esigelec.visualgeolocation.utils.OrbMatcher;
-import com.esigelec.visualgeolocation.utils.SiftImageMatcher;
+import com.esigelec.visualgeolocation.utils.ImageSource;
+import com.esigelec.visualgeolocation.utils.MatcherPool;
+import com.esigelec.visualgeolocation.utils.QueryEngine;
+import com.esigelec.visualgeolocation.utils.SpatialIndex;
+import com.esigelec.visualgeolocation.utils.TopKCollector;
+import com.esigelec.visualgeolocation.utils.UriImageSource;
 import com.esigelec.visualgeolocation.viewmodel.SharedViewModel;
 import com.esigelec.visualgeolocation.utils.ImageUtils;
 import com.esigelec.visualgeolocation.utils.LocationUtils;
@@ -32,20 +40,27 @@ import java.io.InputStream;
 import android.media.ExifInterface;
 import android.graphics.Matrix;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class MatchResultsFragment extends Fragment {
     private static final String TAG = "MatchResultsFragment";
+    private static final int SHORTLIST_MIN_REFERENCES = 50;
+    // Below the prefilter sizes, so the index still narrows what the signatures kept
+    private static final int SHORTLIST_SIZE = 20;
+    private static final int[] MATCH_VIEW_IDS = {R.id.match1, R.id.match2, R.id.match3};
+    // One result per match view
+    private static final int TOP_K = MATCH_VIEW_IDS.length;
     private SharedViewModel viewModel;
     private ProgressBar progressBar;
     private TextView progressText;
     private ImageView testImageView;
     private TextView coordinatesText;
     private ExecutorService executorService;
+    private volatile QueryEngine queryEngine;
     private final AtomicBoolean isMatching = new AtomicBoolean(false);
 
     @Override
@@ -59,6 +74,9 @@ public class MatchResultsFragment extends Fragment {
             @Override
             public void handleOnBackPressed() {
                 if (isMatching.get()) {
+                    if (queryEngine != null) {
+                        queryEngine.cancel();
+                    }
                     executorService.shutdownNow();
                     executorService = Executors.newSingleThreadExecutor();
                     isMatching.set(false);
@@ -91,30 +109,7 @@ public class MatchResultsFragment extends Fragment {
         try {
             Uri testImage = viewModel.getTestImage().getValue();
             if (testImage != null) {
-                InputStream inputStream = requireContext().getContentResolver().openInputStream(testImage);
-                Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                
-                // Get EXIF orientation
-                ExifInterface exif = new ExifInterface(requireContext().getContentResolver().openInputStream(testImage));
-                int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-                
-                // Rotate bitmap based on orientation
-                Matrix matrix = new Matrix();
-                switch (orientation) {
-                    case ExifInterface.ORIENTATION_ROTATE_90:
-                        matrix.postRotate(90);
-                        break;
-                    case ExifInterface.ORIENTATION_ROTATE_180:
-                        matrix.postRotate(180);
-                        break;
-                    case ExifInterface.ORIENTATION_ROTATE_270:
-                        matrix.postRotate(270);
-                        break;
-                }
-                
-                if (orientation != ExifInterface.ORIENTATION_NORMAL) {
-                    bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-                }
+                Bitmap bitmap = decodeOrientedBitmap(testImage);
                 
                 testImageView.setImageBitmap(bitmap);
                 
@@ -156,41 +151,87 @@ public class MatchResultsFragment extends Fragment {
                 Log.d(TAG, "Test image: " + testImage);
                 Log.d(TAG, "Number of images to match: " + images.size());
                 
-                ImageMatcher matcher = createMatcher(algorithm);
+                // Every query worker gets its own matcher; features are shared through the cache
+                GeometricVerifier.Model verification = viewModel.getVerification();
+                int keypointBudget = viewModel.getKeypointBudget();
+                MatcherPool matcherPool = new MatcherPool(
+                        DescriptorCache.getInstance(requireContext().getCacheDir()), algorithm, verification,
+                        poolMatcher -> poolMatcher.setKeypointBudget(keypointBudget));
+                BaseImageMatcher matcher = matcherPool.get();
+                ImageSource testSource = new UriImageSource(requireContext(), testImage);
+                List<ImageSource> references = UriImageSource.of(requireContext(), images);
+                // Features packed by an earlier batch or index build are read in place
+                matcher.attachReferenceStore(references);
+                
+                // The cascade narrows the references stage by stage before full matching:
+                // location prior, then global signatures, then the descriptor index
+                List<ImageSource> candidates = references;
+                double[] prior = viewModel.getLocationPrior();
+                if (prior != null) {
+                    // Only references near the device's coarse location can be the answer
+                    candidates = nearbyReferences(images, references, prior);
+                }
+                int count = candidates.size();
+                candidates = matcher.prefilter(testSource, candidates);
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Prefilter kept " + candidates.size() + " of " + count + " references");
+                }
+
+                // The index only pays off over large reference sets, and only once it
+                // can still drop candidates
+                if (references.size() > SHORTLIST_MIN_REFERENCES && candidates.size() > SHORTLIST_SIZE + 1) {
+                    candidates = shortlistReferences(matcher, algorithm, testSource, references, candidates);
+                }
                 
                 // Set up progress tracking
-                int totalImages = images.size();
+                int totalImages = candidates.size();
                 progressBar.setMax(totalImages);
                 
-                List<ImageMatcher.MatchResult> results = new ArrayList<>();
-                for (int i = 0; i < totalImages && !Thread.currentThread().isInterrupted(); i++) {
-                    Uri image = images.get(i);
-                    Log.d(TAG, "Processing image " + (i + 1) + "/" + totalImages + ": " + image);
-                    
-                    List<ImageMatcher.MatchResult> matchResults = matcher.findMatches(testImage, List.of(image));
-                    Log.d(TAG, "Match results for image " + image + ": " + matchResults.size() + " matches");
-                    
-                    if (!matchResults.isEmpty()) {
-                        ImageMatcher.MatchResult result = matchResults.get(0);
-                        Log.d(TAG, "Adding match result - Image: " + result.getImageUri() + 
-                            ", Similarity: " + result.getSimilarity());
-                        results.add(result);
-                    }
-                    
-                    // Update progress on UI thread
-                    int currentProgress = i + 1;
+                // Only the best TOP_K results are kept; each improvement is shown straight away
+                TopKCollector collector = new TopKCollector(TOP_K);
+                collector.setListener(topMatches -> {
                     if (getActivity() != null) {
-                        getActivity().runOnUiThread(() -> {
-                            progressBar.setProgress(currentProgress);
-                            progressText.setText(String.format("Matching in progress: %d/%d checked", 
-                                currentProgress, totalImages));
-                        });
+                        getActivity().runOnUiThread(() -> displayMatches(topMatches));
+                    }
+                });
+                
+                // Test features are extracted once, then references are scored in parallel
+                CountDownLatch done = new CountDownLatch(1);
+                queryEngine = new QueryEngine(matcherPool, BatchEngine.defaultThreadCount());
+                queryEngine.start(testSource, candidates, collector, new QueryEngine.Listener() {
+                    @Override
+                    public void onProgress(int completed, int total) {
+                        // Update progress on UI thread
+                        if (getActivity() != null) {
+                            getActivity().runOnUiThread(() -> {
+                                progressBar.setProgress(completed);
+                                progressText.setText(String.format("Matching in progress: %d/%d checked", 
+                                    completed, total));
+                            });
+                        }
                     }
+
+                    @Override
+                    public void onComplete() {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onError(Exception e) {
+                        Log.e(TAG, "Error reading test image", e);
+                        done.countDown();
+                    }
+                });
+                
+                try {
+                    done.await();
+                } catch (InterruptedException e) {
+                    queryEngine.cancel();
+                    Thread.currentThread().interrupt();
                 }
 
                 if (!Thread.currentThread().isInterrupted()) {
-                    // Sort results by similarity
-                    results.sort((a, b) -> Double.compare(b.getSimilarity(), a.getSimilarity()));
+                    List<ImageMatcher.MatchResult> results = collector.snapshot();
                     Log.d(TAG, "Final results count: " + results.size());
                     
                     // Calculate predicted location using weighted average
@@ -198,11 +239,10 @@ public class MatchResultsFragment extends Fragment {
                     double weightedLat = 0;
                     double weightedLon = 0;
                     
-                    // Use top 3 matches for prediction
-                    int numMatches = Math.min(3, results.size());
-                    for (int i = 0; i < numMatches; i++) {
-                        ImageMatcher.MatchResult result = results.get(i);
-                        double[] refCoordinates = ImageUtils.getImageCoordinates(requireContext(), result.getImageUri());
+                    // Use top matches for prediction
+                    for (ImageMatcher.MatchResult result : results) {
+                        double[] refCoordinates = ImageUtils.getImageCoordinates(requireContext(),
+                                UriImageSource.uriOf(result.getImage()));
                         if (refCoordinates != null) {
                             double weight = result.getSimilarity();
                             totalWeight += weight;
@@ -255,56 +295,8 @@ public class MatchResultsFragment extends Fragment {
                                 Log.d(TAG, "No matches found, showing empty state");
                                 // TODO: Show empty state message
                             } else {
-                                Log.d(TAG, "Displaying top " + numMatches + " matches");
-                                // Display top 3 matches
-                                for (int i = 0; i < numMatches; i++) {
-                                    ImageMatcher.MatchResult result = results.get(i);
-                                    View matchView = requireView().findViewById(
-                                        i == 0 ? R.id.match1 : (i == 1 ? R.id.match2 : R.id.match3));
-                                    
-                                    ImageView imageView = matchView.findViewById(R.id.matchImageView);
-                                    TextView similarityText = matchView.findViewById(R.id.similarityText);
-                                    
-                                    // Load and display the image
-                                    try {
-                                        InputStream inputStream = requireContext().getContentResolver()
-                                            .openInputStream(result.getImageUri());
-                                        Bitmap bitmap = BitmapFactory.decodeStream(inputStream);
-                                        
-                                        // Get EXIF orientation
-                                        ExifInterface exif = new ExifInterface(requireContext().getContentResolver()
-                                            .openInputStream(result.getImageUri()));
-                                        int orientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, 
-                                            ExifInterface.ORIENTATION_NORMAL);
-                                        
-                                        // Rotate bitmap based on orientation
-                                        Matrix matrix = new Matrix();
-                                        switch (orientation) {
-                                            case ExifInterface.ORIENTATION_ROTATE_90:
-                                                matrix.postRotate(90);
-                                                break;
-                                            case ExifInterface.ORIENTATION_ROTATE_180:
-                                                matrix.postRotate(180);
-                                                break;
-                                            case ExifInterface.ORIENTATION_ROTATE_270:
-                                                matrix.postRotate(270);
-                                                break;
-                                        }
-                                        
-                                        if (orientation != ExifInterface.ORIENTATION_NORMAL) {
-                                            bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), 
-                                                bitmap.getHeight(), matrix, true);
-                                        }
-                                        
-                                        imageView.setImageBitmap(bitmap);
-                                    } catch (IOException e) {
-                                        Log.e(TAG, "Error loading match image", e);
-                                    }
-                                    
-                                    // Display similarity score
-                                    similarityText.setText(String.format("Match #%d: %.2f",
-                                        i + 1, result.getSimilarity() * 100));
-                                }
+                                Log.d(TAG, "Displaying top " + results.size() + " matches");
+                                displayMatches(results);
                             }
                             
                             isMatching.set(false);
@@ -326,22 +318,126 @@ public class MatchResultsFragment extends Fragment {
         });
     }
 
-    private ImageMatcher createMatcher(String algorithm) {
-        switch (algorithm) {
-            case "FAST":
-                return new FastMatcher(requireContext());
-            case "AKAZE":
-                return new AkazeMatcher(requireContext());
-            case "ORB":
-                return new OrbMatcher(requireContext());
-            default:
-                return new SiftImageMatcher(requireContext());
+    /**
+     * Show a ranking in the match views; views whose image is unchanged are not reloaded
+     *
+     * @param topMatches Results, best first
+     */
+    private void displayMatches(List<ImageMatcher.MatchResult> topMatches) {
+        View root = getView();
+        if (root == null || topMatches.isEmpty()) return;
+        root.findViewById(R.id.matchesContainer).setVisibility(View.VISIBLE);
+        root.findViewById(R.id.matchingResultsTitle).setVisibility(View.VISIBLE);
+
+        for (int i = 0; i < Math.min(MATCH_VIEW_IDS.length, topMatches.size()); i++) {
+            ImageMatcher.MatchResult result = topMatches.get(i);
+            View matchView = root.findViewById(MATCH_VIEW_IDS[i]);
+            ImageView imageView = matchView.findViewById(R.id.matchImageView);
+            TextView similarityText = matchView.findViewById(R.id.similarityText);
+
+            String imageId = result.getImage().getId();
+            if (!imageId.equals(imageView.getTag())) {
+                try {
+                    imageView.setImageBitmap(decodeOrientedBitmap(UriImageSource.uriOf(result.getImage())));
+                    imageView.setTag(imageId);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error loading match image", e);
+                }
+            }
+
+            // Display similarity score
+            similarityText.setText(String.format("Match #%d: %.2f",
+                i + 1, result.getSimilarity() * 100));
+        }
+    }
+
+    /**
+     * Decode an image for display, rotated according to its EXIF orientation
+     */
+    private Bitmap decodeOrientedBitmap(Uri uri) throws IOException {
+        Bitmap bitmap;
+        try (InputStream inputStream = requireContext().getContentResolver().openInputStream(uri)) {
+            bitmap = BitmapFactory.decodeStream(inputStream);
+        }
+
+        // Get EXIF orientation, read along with the rest of the metadata
+        ExifReader.Metadata metadata = ImageUtils.getMetadata(requireContext(), uri);
+        int orientation = metadata != null ? metadata.getOrientation() : ExifInterface.ORIENTATION_NORMAL;
+
+        // Rotate bitmap based on orientation
+        Matrix matrix = new Matrix();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+        }
+
+        if (orientation != ExifInterface.ORIENTATION_NORMAL) {
+            bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+        }
+        return bitmap;
+    }
+
+    private List<ImageSource> nearbyReferences(List<Uri> images, List<ImageSource> references, double[] prior) {
+        SpatialIndex index = viewModel.getSpatialIndex();
+        if (index == null) {
+            double[][] coordinates = new double[images.size()][];
+            for (int i = 0; i < images.size(); i++) {
+                coordinates[i] = ImageUtils.getImageCoordinates(requireContext(), images.get(i));
+            }
+            index = new SpatialIndex(coordinates);
+            viewModel.setSpatialIndex(index);
+        }
+
+        List<ImageSource> nearby = index.filter(references, prior[0], prior[1], prior[2]);
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Location prior kept " + nearby.size() + " of " + references.size() + " references");
+        }
+        return nearby;
+    }
+
+    private List<ImageSource> shortlistReferences(BaseImageMatcher matcher, String algorithm, ImageSource testImage,
+                                                  List<ImageSource> images, List<ImageSource> candidates) {
+        try {
+            // The keypoint budget changes the descriptors the index is built from
+            String indexKey = algorithm + " keypoints=" + matcher.getKeypointBudget();
+            // Adding one reference and removing another, or editing one, keeps the count
+            String referenceSet = ImageSource.fingerprint(images);
+            CandidateIndex index = viewModel.getCandidateIndex(indexKey, referenceSet);
+            if (index == null) {
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Building candidate index over " + images.size() + " references");
+                }
+                index = matcher.buildCandidateIndex(images);
+                viewModel.setCandidateIndex(indexKey, referenceSet, index);
+                // Building the index extracted every reference, so packing them is cheap
+                matcher.exportReferenceStore(images);
+            }
+            
+            // The test image is usually part of the references and ranks first; it is skipped later
+            List<ImageSource> shortlisted = matcher.shortlist(index, testImage, images, candidates, SHORTLIST_SIZE + 1);
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Shortlisted " + shortlisted.size() + " of " + candidates.size() + " references");
+            }
+            return shortlisted;
+        } catch (Exception e) {
+            Log.e(TAG, "Shortlisting failed, matching every candidate", e);
+            return candidates;
         }
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (queryEngine != null) {
+            queryEngine.cancel();
+        }
         executorService.shutdownNow();
     }
 } 
\ No newline at end of file
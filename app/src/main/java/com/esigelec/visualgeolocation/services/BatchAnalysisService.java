@@ -0,0 +1,135 @@
+package com.esigelec.visualgeolocation.services;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import androidx.annotation.Nullable;
+
+import com.esigelec.visualgeolocation.R;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Foreground service keeping the process alive while a {@link BatchJob} runs, with its
+ * progress in a notification. The batch then survives leaving the batch analysis screen and
+ * the app going to the background; if the process is killed anyway, the job's checkpoint
+ * lets the next batch over the same images resume.
+ */
+public class BatchAnalysisService extends Service implements BatchJob.Listener {
+    private static final String CHANNEL_ID = "batch_analysis";
+    private static final int NOTIFICATION_ID = 1;
+    private static final String ACTION_CANCEL = "com.esigelec.visualgeolocation.action.CANCEL_BATCH";
+    private static final long NOTIFY_INTERVAL_MS = 1000;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong lastNotify = new AtomicLong();
+    private NotificationManager notificationManager;
+    private BatchJob job;
+
+    /**
+     * Run the current job in the foreground
+     */
+    static void start(Context context) {
+        context.startForegroundService(new Intent(context, BatchAnalysisService.class));
+    }
+
+    static void stop(Context context) {
+        context.stopService(new Intent(context, BatchAnalysisService.class));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        notificationManager = getSystemService(NotificationManager.class);
+        notificationManager.createNotificationChannel(new NotificationChannel(
+                CHANNEL_ID, "Batch analysis", NotificationManager.IMPORTANCE_LOW));
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        BatchJob currentJob = BatchJob.getCurrent();
+        startForeground(NOTIFICATION_ID, buildNotification(currentJob), ServiceInfo.FOREGROUND_SERVICE_TYPE_DATA_SYNC);
+
+        if (intent != null && ACTION_CANCEL.equals(intent.getAction()) && currentJob != null) {
+            currentJob.cancel();
+        }
+        if (currentJob == null || !currentJob.isRunning()) {
+            stopSelf();
+            return START_NOT_STICKY;
+        }
+
+        if (job != currentJob) {
+            if (job != null) {
+                job.removeListener(this);
+            }
+            job = currentJob;
+            job.addListener(this);
+        }
+        // Not restarted after the process dies; the checkpoint covers that case
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public void onResult(int source, int target, double similarity) {
+        long now = SystemClock.uptimeMillis();
+        long last = lastNotify.get();
+        if (now - last >= NOTIFY_INTERVAL_MS && lastNotify.compareAndSet(last, now)) {
+            notificationManager.notify(NOTIFICATION_ID, buildNotification(job));
+        }
+    }
+
+    @Override
+    public void onFinished() {
+        mainHandler.post(() -> {
+            stopForeground(STOP_FOREGROUND_REMOVE);
+            stopSelf();
+        });
+    }
+
+    private Notification buildNotification(BatchJob batchJob) {
+        Notification.Builder builder = new Notification.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.mipmap.ic_launcher)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true);
+        if (batchJob == null) {
+            return builder.setContentTitle("Batch analysis").build();
+        }
+
+        int completed = batchJob.getCompletedCount();
+        int total = batchJob.getTotalCount();
+        Intent cancelIntent = new Intent(this, BatchAnalysisService.class).setAction(ACTION_CANCEL);
+        PendingIntent cancelPendingIntent = PendingIntent.getService(this, 0, cancelIntent,
+                PendingIntent.FLAG_IMMUTABLE | PendingIntent.FLAG_UPDATE_CURRENT);
+        return builder
+                .setContentTitle("Batch analysis (" + batchJob.getAlgorithm() + ")")
+                .setContentText(String.format("%d/%d comparisons completed", completed, total))
+                .setProgress(total, completed, false)
+                .addAction(new Notification.Action.Builder(null, "Stop", cancelPendingIntent).build())
+                .build();
+    }
+
+    @Override
+    public void onDestroy() {
+        if (job != null) {
+            job.removeListener(this);
+            job = null;
+        }
+        super.onDestroy();
+    }
+
+    @Nullable
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+}
@@ -0,0 +1,436 @@
+package com.esigelec.visualgeolocation.services;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import com.esigelec.visualgeolocation.utils.BaseImageMatcher;
+import com.esigelec.visualgeolocation.utils.BatchCheckpoint;
+import com.esigelec.visualgeolocation.utils.BatchEngine;
+import com.esigelec.visualgeolocation.utils.DescriptorCache;
+import com.esigelec.visualgeolocation.utils.GeometricVerifier;
+import com.esigelec.visualgeolocation.utils.ImageSource;
+import com.esigelec.visualgeolocation.utils.ImageUtils;
+import com.esigelec.visualgeolocation.utils.LocationAnalysis;
+import com.esigelec.visualgeolocation.utils.MatchMetrics;
+import com.esigelec.visualgeolocation.utils.MatcherPool;
+import com.esigelec.visualgeolocation.utils.PrefilterRecall;
+import com.esigelec.visualgeolocation.utils.SimilarityMatrix;
+import com.esigelec.visualgeolocation.utils.UriImageSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Batch analysis running independently of the screen that started it.
+ *
+ * The job owns the batch engine, its checkpoint and the results collected so far, so the batch
+ * analysis screen can be left and reopened while it runs; {@link BatchAnalysisService} keeps
+ * the process in the foreground until it finishes. Pair scores are logged to a checkpoint per
+ * algorithm in the app's files directory, so a cancelled or killed batch over the same images
+ * resumes where it stopped. Images appended to a finished batch are only compared with the
+ * rest of the batch, and only the images that gained matches are averaged again. One job
+ * runs at a time.
+ */
+public class BatchJob {
+    private static final String TAG = "BatchJob";
+    private static final String CHECKPOINT_DIR = "batch";
+    private static final ExecutorService setupExecutor = Executors.newSingleThreadExecutor();
+
+    private static BatchJob current;
+
+    public interface Listener {
+        /**
+         * Called on a worker thread for every directed pair, including pairs replayed from
+         * the checkpoint
+         */
+        void onResult(int source, int target, double similarity);
+
+        /**
+         * Called on a worker thread once every pair has a score
+         */
+        void onFinished();
+    }
+
+    private final Context context;
+    private final String algorithm;
+    private final GeometricVerifier.Model verification;
+    private final int keypointBudget;
+    private final LocationAnalysis locationAnalysis = new LocationAnalysis();
+    private final PrefilterRecall prefilterRecall = new PrefilterRecall();
+    private final AtomicInteger completedCount = new AtomicInteger();
+    private final AtomicInteger failedCount = new AtomicInteger();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Replaced together when images are appended
+    private volatile List<Uri> images;
+    private volatile List<String> imageIds;
+    private volatile SimilarityMatrix matrix;
+    private volatile AtomicIntegerArray progress;
+    private volatile Set<String> updatedImages; // Images that gained matches, while extending
+    private List<ImageSource> sources;
+    private MatcherPool matcherPool;
+    private BatchEngine batchEngine;
+    private BatchCheckpoint checkpoint;
+    private volatile boolean cancelled;
+    private volatile boolean finished;
+    private volatile String prefilterReport;
+
+    private BatchJob(Context context, String algorithm, GeometricVerifier.Model verification, int keypointBudget,
+                     List<Uri> images) {
+        this.context = context;
+        this.algorithm = algorithm;
+        this.verification = verification;
+        this.keypointBudget = keypointBudget;
+        this.images = images;
+        this.imageIds = new ArrayList<>(images.size());
+        for (Uri image : images) {
+            imageIds.add(image.getLastPathSegment());
+        }
+        this.matrix = new SimilarityMatrix(imageIds);
+        this.progress = new AtomicIntegerArray(images.size());
+    }
+
+    /**
+     * @return The running or last finished job, or null if none was started
+     */
+    public static synchronized BatchJob getCurrent() {
+        return current;
+    }
+
+    /**
+     * Start a batch in the foreground service. A job already running or finished with the same
+     * settings and images is returned as is, and a finished job over the first images of the
+     * list is extended with the rest; any other job is cancelled first.
+     *
+     * @param algorithm Matcher name, as in the selection dialog
+     * @param verification Transform matches must agree on, or null to score raw matches
+     * @param keypointBudget Keypoints described per image, or 0 for all
+     * @param images Images of the batch; the list is copied
+     * @return The job, which may still be preparing
+     */
+    public static synchronized BatchJob start(Context context, String algorithm,
+                                              GeometricVerifier.Model verification, int keypointBudget,
+                                              List<Uri> images) {
+        boolean sameSettings = current != null && current.algorithm.equals(algorithm)
+                && current.verification == verification && current.keypointBudget == keypointBudget;
+        if (sameSettings && !current.cancelled && current.images.equals(images)) {
+            return current;
+        }
+        if (sameSettings && current.isFinished() && current.isPrefixOf(images)) {
+            current.extend(new ArrayList<>(images.subList(current.images.size(), images.size())));
+            BatchAnalysisService.start(context);
+            return current;
+        }
+        if (current != null) {
+            current.close();
+        }
+        current = new BatchJob(context.getApplicationContext(), algorithm, verification, keypointBudget,
+                new ArrayList<>(images));
+        current.launch();
+        BatchAnalysisService.start(context);
+        return current;
+    }
+
+    private boolean isPrefixOf(List<Uri> list) {
+        return list.size() > images.size() && list.subList(0, images.size()).equals(images);
+    }
+
+    private void launch() {
+        setupExecutor.execute(() -> {
+            addLocations(images);
+
+            List<ImageSource> sources = UriImageSource.of(context, images);
+            File checkpointDir = new File(context.getFilesDir(), CHECKPOINT_DIR);
+            if (!checkpointDir.exists() && !checkpointDir.mkdirs()) {
+                Log.w(TAG, "Could not create checkpoint directory: " + checkpointDir);
+            }
+            // Anything that changes scores is part of the job, so a resumed batch never mixes settings
+            BatchCheckpoint batchCheckpoint = new BatchCheckpoint(new File(checkpointDir, algorithm + ".log"),
+                    algorithm + " verify=" + verification + " keypoints=" + keypointBudget, sources);
+            Log.i(TAG, "Starting " + algorithm + " batch with " + batchCheckpoint.getDoneCount() + " pairs already done");
+
+            // Each worker thread gets its own matcher; symmetric matchers only compute the
+            // upper triangle and the engine reports each score for both directions
+            DescriptorCache cache = DescriptorCache.getInstance(context.getCacheDir());
+            MatcherPool pool = new MatcherPool(cache, algorithm, verification,
+                    matcher -> matcher.setKeypointBudget(keypointBudget));
+            attachReferenceStore(pool, sources);
+            synchronized (this) {
+                if (cancelled) {
+                    batchCheckpoint.close();
+                    return;
+                }
+                this.sources = sources;
+                matcherPool = pool;
+                checkpoint = batchCheckpoint;
+                batchEngine = new BatchEngine(pool, BatchEngine.defaultThreadCount());
+                batchEngine.start(sources, engineListener(), batchCheckpoint);
+            }
+        });
+    }
+
+    /**
+     * Append images to the finished batch and compare them with every image of it; the
+     * earlier pairs keep their scores
+     *
+     * @param added Images after the current ones, in batch order
+     */
+    private synchronized void extend(List<Uri> added) {
+        int firstAdded = images.size();
+        List<Uri> extendedImages = new ArrayList<>(images);
+        extendedImages.addAll(added);
+        List<String> addedIds = new ArrayList<>(added.size());
+        for (Uri image : added) {
+            addedIds.add(image.getLastPathSegment());
+        }
+        List<String> extendedIds = new ArrayList<>(imageIds);
+        extendedIds.addAll(addedIds);
+        AtomicIntegerArray extendedProgress = new AtomicIntegerArray(extendedImages.size());
+        for (int i = 0; i < firstAdded; i++) {
+            extendedProgress.set(i, progress.get(i));
+        }
+
+        matrix = matrix.extend(addedIds);
+        progress = extendedProgress;
+        imageIds = extendedIds;
+        images = extendedImages;
+        updatedImages = ConcurrentHashMap.newKeySet();
+        finished = false;
+
+        setupExecutor.execute(() -> {
+            addLocations(added);
+
+            List<ImageSource> addedSources = UriImageSource.of(context, added);
+            synchronized (this) {
+                if (cancelled) return;
+                List<ImageSource> extendedSources = new ArrayList<>(sources);
+                extendedSources.addAll(addedSources);
+                sources = extendedSources;
+                checkpoint.addImages(addedSources);
+                Log.i(TAG, "Extending " + algorithm + " batch with " + added.size() + " images");
+                batchEngine.extend(extendedSources, firstAdded, engineListener(), checkpoint);
+            }
+        });
+    }
+
+    /**
+     * Register images with the location analysis before their results arrive
+     */
+    private void addLocations(List<Uri> added) {
+        // Metadata is cached, so a resumed batch does not read the images again
+        for (Uri image : added) {
+            double[] coordinates = null;
+            try {
+                coordinates = ImageUtils.getImageCoordinates(context, image);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to extract coordinates for " + image.getLastPathSegment(), e);
+            }
+            locationAnalysis.addImage(image.getLastPathSegment(), coordinates);
+        }
+    }
+
+    private BatchEngine.Listener engineListener() {
+        return new BatchEngine.Listener() {
+            @Override
+            public void onResult(int source, int target, double similarity, boolean matched) {
+                recordResult(source, target, similarity, matched);
+            }
+
+            @Override
+            public void onError(int source, int target, Exception e) {
+                // The pair keeps no score and is compared again when the batch is restarted
+                failedCount.incrementAndGet();
+                progress.incrementAndGet(source);
+                completedCount.incrementAndGet();
+            }
+
+            @Override
+            public void onComplete() {
+                finish();
+            }
+        };
+    }
+
+    private void recordResult(int source, int target, double similarity, boolean matched) {
+        if (matched) {
+            prefilterRecall.addMatch(source, target);
+            // Store location data for weighted average calculation
+            locationAnalysis.addMatch(imageIds.get(source), imageIds.get(target), similarity);
+            Set<String> updated = updatedImages;
+            if (updated != null) {
+                updated.add(imageIds.get(source));
+            }
+        }
+        matrix.set(source, target, (float) similarity);
+        progress.incrementAndGet(source);
+        completedCount.incrementAndGet();
+
+        for (Listener listener : listeners) {
+            listener.onResult(source, target, similarity);
+        }
+    }
+
+    private void finish() {
+        Log.i(TAG, MatchMetrics.forAlgorithm(algorithm).snapshot().toString());
+        exportReferenceStore(matcherPool, sources);
+        if (failedCount.get() > 0) {
+            Log.w(TAG, failedCount.get() + " comparisons failed and have no score");
+        }
+        reportPrefilterRecall(matcherPool, sources);
+        Set<String> updated = updatedImages;
+        if (updated != null) {
+            locationAnalysis.updateAverages(updated);
+            updatedImages = null;
+        } else {
+            locationAnalysis.calculateAverages();
+        }
+        finished = true;
+
+        for (Listener listener : listeners) {
+            listener.onFinished();
+        }
+    }
+
+    /**
+     * Serve the batch's features from the packed store exported by an earlier batch, if any
+     */
+    private static void attachReferenceStore(MatcherPool matcherPool, List<ImageSource> sources) {
+        try {
+            if (matcherPool.get().attachReferenceStore(sources)) {
+                Log.i(TAG, "Reading features from the packed store of an earlier batch");
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not attach the packed descriptor store", e);
+        }
+    }
+
+    /**
+     * Pack the features of every batch image into one store for later batches and queries;
+     * they are all cached by now, so this only reads them back
+     */
+    private static void exportReferenceStore(MatcherPool matcherPool, List<ImageSource> sources) {
+        try {
+            matcherPool.get().exportReferenceStore(sources);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not export the packed descriptor store", e);
+        }
+    }
+
+    /**
+     * Measure how many matched pairs the global-signature prefilter would have kept
+     */
+    private void reportPrefilterRecall(MatcherPool matcherPool, List<ImageSource> sources) {
+        BaseImageMatcher baseMatcher = matcherPool.get();
+        try {
+            float[][] signatures = baseMatcher.getSignatures(sources);
+            int prefilterSize = baseMatcher.getPrefilterSize();
+            prefilterReport = prefilterSize > 0
+                    ? prefilterRecall.report(signatures, 5, 10, 20, prefilterSize)
+                    : prefilterRecall.report(signatures, 5, 10, 20);
+            Log.i(TAG, prefilterReport);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not compute prefilter recall", e);
+        }
+    }
+
+    /**
+     * Stop the batch; scores already logged are kept for the next start
+     */
+    public synchronized void cancel() {
+        if (cancelled || finished) return;
+        cancelled = true;
+        if (batchEngine != null) {
+            batchEngine.cancel();
+        }
+        if (checkpoint != null) {
+            checkpoint.close();
+        }
+        BatchAnalysisService.stop(context);
+    }
+
+    /**
+     * Cancel the job if it runs and close its checkpoint
+     */
+    private synchronized void close() {
+        cancel();
+        if (checkpoint != null) {
+            checkpoint.close();
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return Whether the job is preparing or comparing images
+     */
+    public boolean isRunning() {
+        return !cancelled && !finished;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public List<Uri> getImages() {
+        return images;
+    }
+
+    public SimilarityMatrix getMatrix() {
+        return matrix;
+    }
+
+    /**
+     * @return Location estimates; averages are computed once the job is finished
+     */
+    public LocationAnalysis getLocationAnalysis() {
+        return locationAnalysis;
+    }
+
+    /**
+     * @return Prefilter recall at several sizes, or null until the job is finished
+     */
+    public String getPrefilterReport() {
+        return prefilterReport;
+    }
+
+    /**
+     * @return Comparisons completed with the image as source
+     */
+    public int getProgress(int image) {
+        return progress.get(image);
+    }
+
+    /**
+     * @return Comparisons that failed; they count as completed but have no score
+     */
+    public int getFailedCount() {
+        return failedCount.get();
+    }
+
+    public int getCompletedCount() {
+        return completedCount.get();
+    }
+
+    public int getTotalCount() {
+        return images.size() * (images.size() - 1);
+    }
+}
@@ -0,0 +1,25 @@
+package com.esigelec.visualgeolocation.utils;
+
+import android.util.Log;
+
+/**
+ * Forwards matching pipeline logs to logcat
+ */
+public class AndroidLogBackend implements MatchLog.Backend {
+
+    @Override
+    public void log(int level, String tag, String message, Throwable error) {
+        // MatchLog levels use the same values as android.util.Log
+        if (error != null) {
+            Log.println(level, tag, message + '\n' + Log.getStackTraceString(error));
+        } else {
+            Log.println(level, tag, message);
+        }
+    }
+
+    @Override
+    public boolean isLoggable(String tag, int level) {
+        // Debug output is off unless enabled with "adb shell setprop log.tag.<TAG> DEBUG"
+        return Log.isLoggable(tag, level);
+    }
+}
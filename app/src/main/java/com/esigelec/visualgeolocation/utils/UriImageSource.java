@@ -0,0 +1,224 @@
+package com.esigelec.visualgeolocation.utils;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.MediaStore;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import org.opencv.android.Utils;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Image behind a content URI, read through the ContentResolver
+ */
+public class UriImageSource implements ImageSource {
+    private static final String TAG = "UriImageSource";
+
+    private final Context context;
+    private final Uri uri;
+    private volatile long[] version;
+
+    public UriImageSource(Context context, Uri uri) {
+        this.context = context.getApplicationContext();
+        this.uri = uri;
+    }
+
+    /**
+     * Wrap a list of URIs, keeping their order
+     */
+    public static List<ImageSource> of(Context context, List<Uri> uris) {
+        List<ImageSource> images = new ArrayList<>(uris.size());
+        for (Uri uri : uris) {
+            images.add(new UriImageSource(context, uri));
+        }
+        return images;
+    }
+
+    /**
+     * @return URI of an image created by this class
+     */
+    public static Uri uriOf(ImageSource image) {
+        return ((UriImageSource) image).getUri();
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    @Override
+    public String getId() {
+        return uri.toString();
+    }
+
+    @Override
+    public String getName() {
+        return uri.getLastPathSegment();
+    }
+
+    /**
+     * Modification time from the provider: the document's last-modified column, or the
+     * MediaStore modification date (in seconds). A file URI uses the file's time.
+     */
+    @Override
+    public long getModifiedTime() {
+        return queryVersion()[0];
+    }
+
+    @Override
+    public long getLength() {
+        return queryVersion()[1];
+    }
+
+    /**
+     * @return [modification time in milliseconds or 0, size in bytes or -1], queried once
+     */
+    private long[] queryVersion() {
+        long[] cached = version;
+        if (cached != null) {
+            return cached;
+        }
+
+        long modified = 0;
+        long length = -1;
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && uri.getPath() != null) {
+            File file = new File(uri.getPath());
+            modified = file.lastModified();
+            length = file.exists() ? file.length() : -1;
+        } else {
+            // No projection: providers reject columns they do not know
+            try (Cursor cursor = context.getContentResolver().query(uri, null, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    int column = cursor.getColumnIndex(DocumentsContract.Document.COLUMN_LAST_MODIFIED);
+                    if (column >= 0 && !cursor.isNull(column)) {
+                        modified = cursor.getLong(column);
+                    } else {
+                        column = cursor.getColumnIndex(MediaStore.MediaColumns.DATE_MODIFIED);
+                        if (column >= 0 && !cursor.isNull(column)) {
+                            modified = cursor.getLong(column) * 1000;
+                        }
+                    }
+                    column = cursor.getColumnIndex(OpenableColumns.SIZE);
+                    if (column >= 0 && !cursor.isNull(column)) {
+                        length = cursor.getLong(column);
+                    }
+                }
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not query modification time of " + uri, e);
+            }
+        }
+
+        version = new long[] {modified, length};
+        return version;
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        InputStream inputStream = context.getContentResolver().openInputStream(uri);
+        if (inputStream == null) {
+            throw new IOException("Cannot open " + uri);
+        }
+        return inputStream;
+    }
+
+    /**
+     * Single pass with {@link ExifReader} for JPEGs; other formats (HEIC, PNG, WebP) are read
+     * once more through ExifInterface, which knows their containers
+     */
+    @Override
+    public ExifReader.Metadata readMetadata() throws IOException {
+        ExifReader.Metadata metadata;
+        try (InputStream inputStream = openStream()) {
+            metadata = ExifReader.readWithHash(inputStream);
+        }
+        if (metadata.getWidth() > 0) {
+            return metadata;
+        }
+
+        try (InputStream inputStream = openStream()) {
+            ExifInterface exif = new ExifInterface(inputStream);
+            return new ExifReader.Metadata(
+                    exif.getAttributeInt(ExifInterface.TAG_IMAGE_WIDTH, 0),
+                    exif.getAttributeInt(ExifInterface.TAG_IMAGE_LENGTH, 0),
+                    exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL),
+                    ImageUtils.getCoordinates(exif),
+                    ImageUtils.getAltitude(exif),
+                    metadata.getContentHash());
+        }
+    }
+
+    /**
+     * Decode straight to an 8-bit grayscale Mat close to the target size.
+     * Bounds are read first so the decoder can subsample, and the full-resolution
+     * ARGB bitmap of a camera image is never allocated.
+     */
+    @Override
+    public Mat decodeGray(Size targetSize) throws IOException {
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Loading image from URI: " + uri);
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        try (InputStream inputStream = openStream()) {
+            BitmapFactory.decodeStream(inputStream, null, options);
+        }
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Cannot decode image bounds: " + uri);
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = ImageSource.sampleSizeFor(options.outWidth, options.outHeight, targetSize);
+        // Half the memory of ARGB_8888; only luminance is kept anyway
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+
+        Bitmap bitmap;
+        try (InputStream inputStream = openStream()) {
+            bitmap = BitmapFactory.decodeStream(inputStream, null, options);
+        }
+        if (bitmap == null) {
+            throw new IOException("Cannot decode image: " + uri);
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Bitmap decoded, size: " + bitmap.getWidth() + "x" + bitmap.getHeight()
+                    + " (sample size " + options.inSampleSize + ")");
+        }
+
+        Mat rgba = new Mat();
+        Utils.bitmapToMat(bitmap, rgba);
+        bitmap.recycle();
+
+        Mat mat = new Mat();
+        Imgproc.cvtColor(rgba, mat, Imgproc.COLOR_RGBA2GRAY);
+        rgba.release();
+        return mat;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof UriImageSource && uri.equals(((UriImageSource) o).uri);
+    }
+
+    @Override
+    public int hashCode() {
+        return uri.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+}
@@ -1,23 +1,40 @@
 package com.esigelec.visualgeolocation.viewmodel;
 
 import android.net.Uri;
+import android.os.SystemClock;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
+import com.esigelec.visualgeolocation.utils.CandidateIndex;
+import com.esigelec.visualgeolocation.utils.GeometricVerifier;
 import com.esigelec.visualgeolocation.utils.ImageMatcher;
+import com.esigelec.visualgeolocation.utils.ImageSource;
+import com.esigelec.visualgeolocation.utils.SimilarityMatrix;
+import com.esigelec.visualgeolocation.utils.SpatialIndex;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SharedViewModel extends ViewModel {
+    private static final long BATCH_PUBLISH_INTERVAL_MS = 250;
     private final MutableLiveData<List<Uri>> selectedImages = new MutableLiveData<>(new ArrayList<>());
     private final MutableLiveData<Uri> testImage = new MutableLiveData<>();
     private final MutableLiveData<String> selectedAlgorithm = new MutableLiveData<>();
     private final MutableLiveData<List<ImageMatcher.MatchResult>> matchResults = new MutableLiveData<>(new ArrayList<>());
-    private final MutableLiveData<Map<String, Map<String, Double>>> batchResults = new MutableLiveData<>(new HashMap<>());
+    private final MutableLiveData<SimilarityMatrix> batchResults = new MutableLiveData<>();
+    private final AtomicLong lastBatchPublish = new AtomicLong();
+    private volatile SimilarityMatrix batchMatrix;
+    private final Map<String, BuiltIndex> candidateIndexes = new ConcurrentHashMap<>();
+    private volatile SpatialIndex spatialIndex;
+    private volatile double[] locationPrior;
+    private volatile GeometricVerifier.Model verification;
+    private volatile int keypointBudget;
 
     public void setSelectedImages(List<Uri> images) {
+        candidateIndexes.clear();
+        spatialIndex = null;
         selectedImages.setValue(images);
     }
 
@@ -25,20 +42,30 @@ public class SharedViewModel extends ViewModel {
         return selectedImages;
     }
 
+    /**
+     * Append an image to the reference set. The next batch analysis with the same algorithm
+     * only compares it with the other images, see {@link com.esigelec.visualgeolocation.services.BatchJob}
+     */
     public void addImage(Uri image) {
         List<Uri> currentList = selectedImages.getValue();
         if (currentList != null) {
+            candidateIndexes.clear();
+            spatialIndex = null;
             currentList.add(image);
             selectedImages.setValue(currentList);
         }
     }
 
     public void clearImages() {
+        candidateIndexes.clear();
+        spatialIndex = null;
+        locationPrior = null;
         selectedImages.setValue(new ArrayList<>());
         testImage.setValue(null);
         selectedAlgorithm.setValue(null);
         matchResults.setValue(new ArrayList<>());
-        batchResults.setValue(new HashMap<>());
+        batchMatrix = null;
+        batchResults.setValue(null);
     }
 
     public void setTestImage(Uri image) {
@@ -57,6 +84,70 @@ public class SharedViewModel extends ViewModel {
         return selectedAlgorithm;
     }
 
+    /**
+     * Get the reference shortlist index built for the current images, if any
+     *
+     * @param algorithm Algorithm and settings the index was built with
+     * @param referenceSet Fingerprint of the references, see {@link ImageSource#fingerprint}
+     * @return Index, or null if the references changed since it was built
+     */
+    public CandidateIndex getCandidateIndex(String algorithm, String referenceSet) {
+        BuiltIndex built = candidateIndexes.get(algorithm);
+        return built != null && built.referenceSet.equals(referenceSet) ? built.index : null;
+    }
+
+    public void setCandidateIndex(String algorithm, String referenceSet, CandidateIndex index) {
+        candidateIndexes.put(algorithm, new BuiltIndex(referenceSet, index));
+    }
+
+    /**
+     * Get the index over the locations of the current images, if built
+     *
+     * @return Index, or null if the images changed since it was built
+     */
+    public SpatialIndex getSpatialIndex() {
+        return spatialIndex;
+    }
+
+    public void setSpatialIndex(SpatialIndex index) {
+        spatialIndex = index;
+    }
+
+    /**
+     * Restrict the next query to references near a coarse location
+     *
+     * @param prior [latitude, longitude, radius in meters], or null to match every reference
+     */
+    public void setLocationPrior(double[] prior) {
+        locationPrior = prior;
+    }
+
+    public double[] getLocationPrior() {
+        return locationPrior;
+    }
+
+    /**
+     * @param verification Transform matches must agree on in the next matching or batch, or null for none
+     */
+    public void setVerification(GeometricVerifier.Model verification) {
+        this.verification = verification;
+    }
+
+    public GeometricVerifier.Model getVerification() {
+        return verification;
+    }
+
+    /**
+     * @param keypointBudget Keypoints described per image by the next matching or batch, 0 for all
+     */
+    public void setKeypointBudget(int keypointBudget) {
+        this.keypointBudget = keypointBudget;
+    }
+
+    public int getKeypointBudget() {
+        return keypointBudget;
+    }
+
     public void setMatchResults(List<ImageMatcher.MatchResult> results) {
         matchResults.setValue(results);
     }
@@ -65,24 +156,91 @@ public class SharedViewModel extends ViewModel {
         return matchResults;
     }
     
-    public void setBatchResults(Map<String, Map<String, Double>> results) {
-        batchResults.setValue(results);
+    /**
+     * Start a new batch with an empty similarity matrix over the given images
+     *
+     * @param imageIds Ids of the batch images, in matrix order
+     */
+    public void startBatchResults(List<String> imageIds) {
+        batchMatrix = new SimilarityMatrix(imageIds);
+        lastBatchPublish.set(SystemClock.uptimeMillis());
+        batchResults.setValue(batchMatrix);
     }
     
-    public void updateBatchResult(String sourceImageId, String targetImageId, double similarity) {
-        Map<String, Map<String, Double>> currentResults = batchResults.getValue();
-        if (currentResults == null) {
-            currentResults = new HashMap<>();
+    /**
+     * Show the scores of a batch filled elsewhere, such as a background batch job
+     *
+     * @param matrix Matrix written by the batch; call {@link #batchResultsChanged()} as it fills
+     */
+    public void startBatchResults(SimilarityMatrix matrix) {
+        batchMatrix = matrix;
+        lastBatchPublish.set(SystemClock.uptimeMillis());
+        batchResults.setValue(matrix);
+    }
+    
+    /**
+     * Store one pair score; may be called from any thread. Observers are notified at
+     * most once per {@link #BATCH_PUBLISH_INTERVAL_MS}.
+     */
+    public void updateBatchResult(int sourceIndex, int targetIndex, double similarity) {
+        SimilarityMatrix matrix = batchMatrix;
+        if (matrix == null) {
+            return;
         }
         
-        Map<String, Double> sourceResults = currentResults.getOrDefault(sourceImageId, new HashMap<>());
-        sourceResults.put(targetImageId, similarity);
-        currentResults.put(sourceImageId, sourceResults);
+        matrix.set(sourceIndex, targetIndex, (float) similarity);
+        batchResultsChanged();
+    }
+    
+    /**
+     * Notify observers that the matrix changed; may be called from any thread, and is
+     * throttled like {@link #updateBatchResult(int, int, double)}
+     */
+    public void batchResultsChanged() {
+        SimilarityMatrix matrix = batchMatrix;
+        if (matrix == null) {
+            return;
+        }
         
-        batchResults.postValue(currentResults);
+        long now = SystemClock.uptimeMillis();
+        long last = lastBatchPublish.get();
+        if (now - last >= BATCH_PUBLISH_INTERVAL_MS && lastBatchPublish.compareAndSet(last, now)) {
+            batchResults.postValue(matrix);
+        }
     }
     
-    public LiveData<Map<String, Map<String, Double>>> getBatchResults() {
+    public void updateBatchResult(String sourceImageId, String targetImageId, double similarity) {
+        SimilarityMatrix matrix = batchMatrix;
+        if (matrix == null) {
+            return;
+        }
+        
+        int sourceIndex = matrix.indexOf(sourceImageId);
+        int targetIndex = matrix.indexOf(targetImageId);
+        if (sourceIndex >= 0 && targetIndex >= 0) {
+            updateBatchResult(sourceIndex, targetIndex, similarity);
+        }
+    }
+    
+    /**
+     * Notify observers of the latest scores regardless of throttling
+     */
+    public void publishBatchResults() {
+        lastBatchPublish.set(SystemClock.uptimeMillis());
+        batchResults.postValue(batchMatrix);
+    }
+    
+    public LiveData<SimilarityMatrix> getBatchResults() {
         return batchResults;
     }
-} 
\ No newline at end of file
+
+    private static final class BuiltIndex {
+        final String referenceSet;
+        final CandidateIndex index;
+
+        BuiltIndex(String referenceSet, CandidateIndex index) {
+            this.referenceSet = referenceSet;
+            this.index = index;
+        }
+    }
+}
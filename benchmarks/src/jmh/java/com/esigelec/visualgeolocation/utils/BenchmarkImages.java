@@ -0,0 +1,81 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Loads benchmark inputs from TestImages/ at a chosen resolution
+ */
+final class BenchmarkImages {
+    /** System property pointing at the image directory; set by the jmh task */
+    static final String IMAGES_PROPERTY = "benchmark.images";
+
+    static {
+        nu.pattern.OpenCV.loadLocally();
+    }
+
+    private BenchmarkImages() {
+    }
+
+    static List<File> files() throws IOException {
+        File directory = new File(System.getProperty(IMAGES_PROPERTY, "TestImages"));
+        List<File> files = new ArrayList<>();
+        for (ImageSource image : FileImageSource.listDirectory(directory)) {
+            files.add(((FileImageSource) image).getFile());
+        }
+        if (files.size() < 2) {
+            throw new IOException("Benchmarks need at least two images in " + directory.getAbsolutePath());
+        }
+        return files;
+    }
+
+    /**
+     * Decode an image to grayscale and scale it so its longer side has the given length
+     *
+     * @param file Image file
+     * @param longSide Length of the longer side in pixels, or 0 for full resolution
+     */
+    static Mat loadGray(File file, int longSide) throws IOException {
+        Mat image = Imgcodecs.imread(file.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+        if (image.empty()) {
+            throw new IOException("Cannot decode " + file);
+        }
+        if (longSide > 0) {
+            double scale = longSide / (double) Math.max(image.cols(), image.rows());
+            Imgproc.resize(image, image, new Size(Math.round(image.cols() * scale), Math.round(image.rows() * scale)),
+                    0, 0, Imgproc.INTER_AREA);
+        }
+        return image;
+    }
+
+    /**
+     * Matchers need a descriptor cache; benchmarks get a throwaway one so runs start cold
+     */
+    static DescriptorCache newCache() throws IOException {
+        File directory = Files.createTempDirectory("benchmark-descriptors").toFile();
+        directory.deleteOnExit();
+        return new DescriptorCache(directory, 64L * 1024 * 1024);
+    }
+
+    static BaseImageMatcher newMatcher(String algorithm) throws IOException {
+        return MatcherFactory.create(newCache(), algorithm);
+    }
+
+    /**
+     * Detect features directly, bypassing decode and cache
+     */
+    static ImageFeatures detect(BaseImageMatcher matcher, Mat image) {
+        org.opencv.core.MatOfKeyPoint keypoints = new org.opencv.core.MatOfKeyPoint();
+        Mat descriptors = new Mat();
+        matcher.detector.detectAndCompute(image, new Mat(), keypoints, descriptors);
+        return new ImageFeatures(keypoints, descriptors);
+    }
+}
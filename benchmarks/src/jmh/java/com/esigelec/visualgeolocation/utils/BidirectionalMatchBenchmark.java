@@ -0,0 +1,55 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SIFT's symmetric cross-check, which dominates SIFT batch time
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BidirectionalMatchBenchmark {
+    @Param({"500", "1000"})
+    public int longSide;
+
+    private SiftImageMatcher matcher;
+    private ImageFeatures testFeatures;
+    private ImageFeatures refFeatures;
+
+    @Setup
+    public void setUp() throws IOException {
+        matcher = (SiftImageMatcher) BenchmarkImages.newMatcher("SIFT");
+        List<File> files = BenchmarkImages.files();
+        Mat test = BenchmarkImages.loadGray(files.get(0), longSide);
+        Mat ref = BenchmarkImages.loadGray(files.get(1), longSide);
+        testFeatures = BenchmarkImages.detect(matcher, test);
+        refFeatures = BenchmarkImages.detect(matcher, ref);
+        test.release();
+        ref.release();
+    }
+
+    @TearDown
+    public void tearDown() {
+        testFeatures.release();
+        refFeatures.release();
+    }
+
+    @Benchmark
+    public int findBidirectionalMatches() {
+        return matcher.findBidirectionalMatches(testFeatures.getDescriptors(), refFeatures.getDescriptors());
+    }
+}
@@ -0,0 +1,65 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keypoint detection and description per algorithm and input resolution
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ExtractionBenchmark {
+    @Param({"SIFT", "AKAZE", "ORB", "FAST"})
+    public String algorithm;
+
+    @Param({"500", "1000", "2000"})
+    public int longSide;
+
+    private BaseImageMatcher matcher;
+    private Mat image;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        matcher = BenchmarkImages.newMatcher(algorithm);
+        file = BenchmarkImages.files().get(0);
+        image = BenchmarkImages.loadGray(file, longSide);
+    }
+
+    @TearDown
+    public void tearDown() {
+        image.release();
+    }
+
+    @Benchmark
+    public int detectAndCompute() {
+        ImageFeatures features = BenchmarkImages.detect(matcher, image);
+        int rows = features.getDescriptors().rows();
+        features.release();
+        return rows;
+    }
+
+    /**
+     * Decode plus detection at the matcher's own preprocessing, as a cache miss costs
+     */
+    @Benchmark
+    public int decodeAndDetect() throws IOException {
+        ImageFeatures features = matcher.detectFeatures(new FileImageSource(file));
+        int rows = features.getDescriptors().rows();
+        features.release();
+        return rows;
+    }
+}
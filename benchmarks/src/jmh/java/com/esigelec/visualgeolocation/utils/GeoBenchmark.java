@@ -0,0 +1,122 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coordinate math and EXIF parsing, run once per image or per located match
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GeoBenchmark {
+    private static final int POINTS = 1024;
+    private static final int HEADER_BYTES = 128 * 1024;
+
+    private final double[] lat = new double[POINTS];
+    private final double[] lng = new double[POINTS];
+    private final int[] nearby = new int[POINTS];
+    private SpatialIndex index;
+    private byte[][] headers;
+
+    @Setup
+    public void setUp() throws IOException {
+        // Points scattered around the TestImages location
+        Random random = new Random(42);
+        for (int i = 0; i < POINTS; i++) {
+            lat[i] = 49.38 + random.nextGaussian() * 0.01;
+            lng[i] = 1.077 + random.nextGaussian() * 0.01;
+        }
+        double[][] coordinates = new double[POINTS][];
+        for (int i = 0; i < POINTS; i++) {
+            coordinates[i] = new double[] {lat[i], lng[i]};
+        }
+        index = new SpatialIndex(coordinates);
+
+        List<File> files = BenchmarkImages.files();
+        headers = new byte[files.size()][];
+        for (int i = 0; i < files.size(); i++) {
+            try (InputStream inputStream = new FileInputStream(files.get(i))) {
+                headers[i] = inputStream.readNBytes(HEADER_BYTES);
+            }
+        }
+    }
+
+    /**
+     * Distances from one point to every other, per call
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double calculateDistance() {
+        double sum = 0;
+        for (int i = 1; i < POINTS; i++) {
+            sum += LocationUtils.calculateDistance(lat[0], lng[0], lat[i], lng[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Same points checked against a 500 m radius in one pass
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int filterWithinDistance() {
+        return LocationUtils.filterWithinDistance(lat[0], lng[0], 500, lat, lng, 1, POINTS, nearby, 0);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int spatialIndexQuery() {
+        return index.query(lat[0], lng[0], 500).length;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double calculateBearing() {
+        double sum = 0;
+        for (int i = 1; i < POINTS; i++) {
+            sum += LocationUtils.calculateBearing(lat[0], lng[0], lat[i], lng[i]);
+        }
+        return sum;
+    }
+
+    /**
+     * Attribute-string path used with android.media.ExifInterface
+     */
+    @Benchmark
+    public double parseExifCoordinate() {
+        return ExifReader.parseCoordinate("49/1,22/1,5819/100");
+    }
+
+    @Benchmark
+    public double parseExifAltitude() {
+        return ExifReader.parseRational("10350/100");
+    }
+
+    /**
+     * Binary header path used by the headless runner, over every test image
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public double readExifHeader() throws IOException {
+        double sum = 0;
+        for (byte[] header : headers) {
+            sum += ExifReader.read(new ByteArrayInputStream(header)).getLatitude();
+        }
+        return sum;
+    }
+}
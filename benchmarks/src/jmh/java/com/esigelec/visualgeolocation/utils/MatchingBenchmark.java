@@ -0,0 +1,96 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-pair matching costs on two neighbouring shots from TestImages/
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MatchingBenchmark {
+    @Param({"SIFT", "AKAZE", "ORB", "FAST"})
+    public String algorithm;
+
+    @Param({"500", "1000"})
+    public int longSide;
+
+    private BaseImageMatcher matcher;
+    private ImageFeatures testFeatures;
+    private ImageFeatures refFeatures;
+    private MatOfDMatch matches;
+    private final float[] row = new float[8];
+
+    @Setup
+    public void setUp() throws IOException {
+        matcher = BenchmarkImages.newMatcher(algorithm);
+        List<File> files = BenchmarkImages.files();
+        Mat test = BenchmarkImages.loadGray(files.get(0), longSide);
+        Mat ref = BenchmarkImages.loadGray(files.get(1), longSide);
+        testFeatures = BenchmarkImages.detect(matcher, test);
+        refFeatures = BenchmarkImages.detect(matcher, ref);
+        test.release();
+        ref.release();
+
+        matches = new MatOfDMatch();
+        matcher.matcher.match(testFeatures.getDescriptors(), refFeatures.getDescriptors(), matches);
+    }
+
+    @TearDown
+    public void tearDown() {
+        testFeatures.release();
+        refFeatures.release();
+        matches.release();
+    }
+
+    /**
+     * Two-nearest-neighbour matching followed by Lowe's ratio test
+     */
+    @Benchmark
+    public int knnMatchRatioTest() {
+        List<MatOfDMatch> knnMatches = new ArrayList<>();
+        matcher.matcher.knnMatch(testFeatures.getDescriptors(), refFeatures.getDescriptors(), knnMatches, 2);
+
+        int good = 0;
+        for (MatOfDMatch knnRow : knnMatches) {
+            if (knnRow.total() >= 2) {
+                knnRow.get(0, 0, row);
+                if (row[3] < SiftImageMatcher.RATIO_THRESHOLD * row[7]) good++;
+            }
+            knnRow.release();
+        }
+        return good;
+    }
+
+    /**
+     * calculateSimilarity of the matcher on a precomputed match set
+     */
+    @Benchmark
+    public double calculateSimilarity() {
+        return matcher.calculateSimilarity(matches);
+    }
+
+    /**
+     * Full scoring of one pair from cached features, as run for every batch pair
+     */
+    @Benchmark
+    public double scoreFeatures() {
+        return matcher.scoreFeatures(testFeatures, refFeatures);
+    }
+}
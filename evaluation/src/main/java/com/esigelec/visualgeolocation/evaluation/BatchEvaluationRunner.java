@@ -0,0 +1,443 @@
+package com.esigelec.visualgeolocation.evaluation;
+
+import com.esigelec.visualgeolocation.utils.BaseImageMatcher;
+import com.esigelec.visualgeolocation.utils.BatchCheckpoint;
+import com.esigelec.visualgeolocation.utils.BatchEngine;
+import com.esigelec.visualgeolocation.utils.CandidateIndex;
+import com.esigelec.visualgeolocation.utils.DescriptorCache;
+import com.esigelec.visualgeolocation.utils.FileImageSource;
+import com.esigelec.visualgeolocation.utils.GeometricVerifier;
+import com.esigelec.visualgeolocation.utils.ImageSource;
+import com.esigelec.visualgeolocation.utils.KdForestIndex;
+import com.esigelec.visualgeolocation.utils.LocationAnalysis;
+import com.esigelec.visualgeolocation.utils.MatchLog;
+import com.esigelec.visualgeolocation.utils.MatchMetrics;
+import com.esigelec.visualgeolocation.utils.MetadataCache;
+import com.esigelec.visualgeolocation.utils.MatcherFactory;
+import com.esigelec.visualgeolocation.utils.MatcherPool;
+import com.esigelec.visualgeolocation.utils.OrbSiftMatcher;
+import com.esigelec.visualgeolocation.utils.PrefilterRecall;
+import com.esigelec.visualgeolocation.utils.SiftImageMatcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Command-line batch analysis over a directory of images.
+ *
+ * Runs the same matchers, batch engine and location averaging as the batch analysis
+ * screen, and writes the same CSV as its export.
+ *
+ * Usage: BatchEvaluationRunner [options] image-directory
+ *   --algorithm SIFT|AKAZE|ORB|FAST|ORB-SIFT   matcher to use (default SIFT)
+ *   --threads N                                worker threads (default cores - 1)
+ *   --output FILE                              CSV destination (default standard output)
+ *   --cache DIR                                descriptor cache root (default ./build/evaluation-cache)
+ *   --metrics FILE                             write per-stage timings and counters as CSV
+ *   --native-memory                            also track the native-memory high-water mark (slower)
+ *   --verify homography|fundamental            score pairs by RANSAC inliers (default off)
+ *   --keypoints N                              keypoint budget per image, 0 for unlimited (default 0)
+ *   --budgets N,N,...                          run once per keypoint budget and write accuracy per budget
+ *   --checkpoint FILE                          log pair scores to FILE and resume from it when rerun
+ *   --kd-forest CHECKS                         shortlist SIFT references with a KD-tree forest and report its recall
+ *   --kd-report N,N,...                        write SIFT KD-forest recall and speed per checks value
+ *   --orb-survivors N                          references per batch row ORB-SIFT's ORB stage passes on to SIFT (default 20)
+ *   --orb-min-similarity X                     ORB similarity a reference must exceed to survive (default 0)
+ *   --verbose                                  log matcher debug output
+ */
+public class BatchEvaluationRunner {
+    private static final String TAG = "BatchEvaluationRunner";
+    private static final int SHORTLIST_SIZE = 20; // As in the single-image screen
+
+    public static void main(String[] args) throws Exception {
+        String algorithm = "SIFT";
+        int threads = BatchEngine.defaultThreadCount();
+        File output = null;
+        File cacheRoot = new File("build", "evaluation-cache");
+        File metricsOutput = null;
+        GeometricVerifier.Model verification = null;
+        int keypointBudget = BaseImageMatcher.DEFAULT_KEYPOINT_BUDGET;
+        int[] budgets = null;
+        File checkpoint = null;
+        int kdForestChecks = 0;
+        int[] kdReportChecks = null;
+        int orbSurvivors = -1;
+        double orbMinSimilarity = -1;
+        boolean verbose = false;
+        File imageDirectory = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--algorithm":
+                    algorithm = args[++i].toUpperCase(Locale.US);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "--output":
+                    output = new File(args[++i]);
+                    break;
+                case "--cache":
+                    cacheRoot = new File(args[++i]);
+                    break;
+                case "--metrics":
+                    metricsOutput = new File(args[++i]);
+                    break;
+                case "--native-memory":
+                    MatchMetrics.setNativeTracking(true);
+                    break;
+                case "--verify":
+                    verification = GeometricVerifier.Model.valueOf(args[++i].toUpperCase(Locale.US));
+                    break;
+                case "--keypoints":
+                    keypointBudget = Integer.parseInt(args[++i]);
+                    break;
+                case "--budgets":
+                    budgets = parseList(args[++i]);
+                    break;
+                case "--checkpoint":
+                    checkpoint = new File(args[++i]);
+                    break;
+                case "--kd-forest":
+                    kdForestChecks = Integer.parseInt(args[++i]);
+                    break;
+                case "--kd-report":
+                    kdReportChecks = parseList(args[++i]);
+                    break;
+                case "--orb-survivors":
+                    orbSurvivors = Integer.parseInt(args[++i]);
+                    break;
+                case "--orb-min-similarity":
+                    orbMinSimilarity = Double.parseDouble(args[++i]);
+                    break;
+                case "--verbose":
+                    verbose = true;
+                    break;
+                default:
+                    imageDirectory = new File(args[i]);
+                    break;
+            }
+        }
+        if (imageDirectory == null) {
+            System.err.println("Usage: BatchEvaluationRunner [--algorithm SIFT|AKAZE|ORB|FAST|ORB-SIFT] [--threads N]"
+                    + " [--output FILE] [--cache DIR] [--metrics FILE] [--native-memory]"
+                    + " [--verify homography|fundamental] [--keypoints N] [--budgets N,N,...] [--checkpoint FILE]"
+                    + " [--kd-forest CHECKS] [--kd-report N,N,...] [--orb-survivors N] [--orb-min-similarity X]"
+                    + " [--verbose]"
+                    + " image-directory");
+            System.exit(2);
+        }
+
+        nu.pattern.OpenCV.loadLocally();
+        MatchLog.setBackend(new MatchLog.ConsoleBackend(verbose ? MatchLog.DEBUG : MatchLog.WARN));
+
+        Writer writer = output != null
+                ? new OutputStreamWriter(new FileOutputStream(output), StandardCharsets.UTF_8)
+                : new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+        if (kdReportChecks != null) {
+            reportKdForest(imageDirectory, cacheRoot, keypointBudget, kdReportChecks, writer);
+        } else if (budgets != null) {
+            sweepKeypointBudgets(imageDirectory, algorithm, threads, cacheRoot, verification, budgets, writer);
+        } else {
+            // Anything that changes scores is part of the job, so a resumed run never mixes settings;
+            // the KD-forest only shortlists single queries, so it is not
+            String job = algorithm + " verify=" + verification + " keypoints=" + keypointBudget;
+            if (OrbSiftMatcher.ALGORITHM.equals(algorithm)) {
+                job += " orb=" + orbSurvivors + "," + orbMinSimilarity;
+            }
+            LocationAnalysis analysis = run(imageDirectory, algorithm, threads, cacheRoot, verification,
+                    configurator(keypointBudget, kdForestChecks)
+                            .andThen(orbPruning(orbMinSimilarity, orbSurvivors)),
+                    checkpoint, job);
+            analysis.writeCsv(writer);
+        }
+        if (output != null) {
+            writer.close();
+            System.err.println("CSV written to " + output);
+        } else {
+            writer.flush();
+        }
+
+        MatchMetrics.Snapshot metrics = MatchMetrics.forAlgorithm(algorithm).snapshot();
+        System.err.println(metrics);
+        if (metricsOutput != null) {
+            try (Writer metricsWriter = new OutputStreamWriter(new FileOutputStream(metricsOutput),
+                    StandardCharsets.UTF_8)) {
+                metrics.writeCsv(metricsWriter, true);
+            }
+            System.err.println("Metrics written to " + metricsOutput);
+        }
+    }
+
+    /**
+     * Compare every image of a directory against every other and estimate their locations
+     *
+     * @param imageDirectory Directory of JPEG or PNG images
+     * @param algorithm Matcher name, as in the app's selection dialog
+     * @param threads Number of worker threads
+     * @param cacheRoot Root of the on-disk descriptor cache
+     * @return Location estimates with averages computed
+     */
+    public static LocationAnalysis run(File imageDirectory, String algorithm, int threads, File cacheRoot)
+            throws IOException, InterruptedException {
+        return run(imageDirectory, algorithm, threads, cacheRoot, null, matcher -> { });
+    }
+
+    /**
+     * Same as {@link #run(File, String, int, File)} with matchers set up by a configurator
+     *
+     * @param verification Transform matches must agree on, or null to score raw matches
+     * @param configurator Applied to every matcher, see {@link #configurator}
+     */
+    public static LocationAnalysis run(File imageDirectory, String algorithm, int threads, File cacheRoot,
+                                       GeometricVerifier.Model verification, Consumer<BaseImageMatcher> configurator)
+            throws IOException, InterruptedException {
+        return run(imageDirectory, algorithm, threads, cacheRoot, verification, configurator, null, null);
+    }
+
+    /**
+     * Same as {@link #run(File, String, int, File, GeometricVerifier.Model, Consumer)}, resuming
+     * from a checkpoint
+     *
+     * @param checkpointFile Log of computed pair scores, or null to compute every pair
+     * @param job Algorithm and settings the checkpoint belongs to
+     */
+    public static LocationAnalysis run(File imageDirectory, String algorithm, int threads, File cacheRoot,
+                                       GeometricVerifier.Model verification, Consumer<BaseImageMatcher> configurator,
+                                       File checkpointFile, String job)
+            throws IOException, InterruptedException {
+        List<ImageSource> images = FileImageSource.listDirectory(imageDirectory);
+        if (images.size() < 2) {
+            throw new IOException("Not enough images to perform batch analysis in " + imageDirectory);
+        }
+
+        // Coordinates and content hashes come from one read per image, kept across runs
+        MetadataCache metadata = MetadataCache.getInstance(cacheRoot);
+        LocationAnalysis analysis = new LocationAnalysis();
+        for (ImageSource image : images) {
+            analysis.addImage(image.getName(), metadata.getCoordinates(image));
+        }
+
+        int totalTasks = images.size() * (images.size() - 1);
+        AtomicInteger completedTasks = new AtomicInteger();
+        AtomicInteger failedTasks = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        System.err.println("Comparing " + images.size() + " images using " + algorithm
+                + " algorithm on " + threads + " threads");
+
+        DescriptorCache cache = DescriptorCache.getInstance(cacheRoot);
+        MatcherPool matcherPool = new MatcherPool(cache, algorithm, verification, configurator);
+        BaseImageMatcher matcher = matcherPool.get();
+        // A packed store exported by an earlier run over the same images replaces the per-image files
+        if (matcher.attachReferenceStore(images)) {
+            System.err.println("Reading features from the packed store of an earlier run");
+        }
+        PrefilterRecall prefilterRecall = new PrefilterRecall();
+        BatchCheckpoint checkpoint = checkpointFile != null ? new BatchCheckpoint(checkpointFile, job, images) : null;
+        if (checkpoint != null && checkpoint.getDoneCount() > 0) {
+            System.err.println("Resuming from " + checkpointFile + " with " + checkpoint.getDoneCount()
+                    + " pairs already compared");
+        }
+        BatchEngine batchEngine = new BatchEngine(matcherPool, threads);
+        batchEngine.start(images, new BatchEngine.Listener() {
+            @Override
+            public void onResult(int source, int target, double similarity, boolean matched) {
+                if (matched) {
+                    prefilterRecall.addMatch(source, target);
+                    analysis.addMatch(images.get(source).getName(), images.get(target).getName(), similarity);
+                }
+                reportProgress();
+            }
+
+            @Override
+            public void onError(int source, int target, Exception e) {
+                failedTasks.incrementAndGet();
+                reportProgress();
+            }
+
+            private void reportProgress() {
+                int completed = completedTasks.incrementAndGet();
+                if (completed % images.size() == 0 || completed == totalTasks) {
+                    System.err.printf(Locale.US, "Progress: %d/%d comparisons completed%n", completed, totalTasks);
+                }
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        }, checkpoint);
+        done.await();
+        if (checkpoint != null) {
+            checkpoint.close();
+        }
+
+        if (failedTasks.get() > 0) {
+            System.err.println(failedTasks.get() + " comparisons failed and were left out");
+        }
+
+        analysis.calculateAverages();
+        MatchLog.i(TAG, "Batch finished in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        System.err.printf(Locale.US, "%d located images, average distance %.2f m (weighted %.2f m)%n",
+                analysis.getValidLocationCount(),
+                analysis.getAverageNonWeightedDistance(),
+                analysis.getAverageWeightedDistance());
+
+        // Every feature is cached by now, so packing them only reads them back
+        try {
+            matcher.exportReferenceStore(images);
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not export the packed descriptor store", e);
+        }
+
+        // Recall of the global-signature prefilter, to tune how many references it forwards
+        float[][] signatures = matcher.getSignatures(images);
+        System.err.println(matcher.getPrefilterSize() > 0
+                ? prefilterRecall.report(signatures, 5, 10, 20, matcher.getPrefilterSize())
+                : prefilterRecall.report(signatures, 5, 10, 20));
+        if (matcher instanceof SiftImageMatcher && ((SiftImageMatcher) matcher).isKdForestEnabled()) {
+            System.err.printf(Locale.US, "KD-forest shortlist recall over %d matched pairs: @%d %.1f%%%n",
+                    prefilterRecall.getMatchCount(), SHORTLIST_SIZE,
+                    100 * prefilterRecall.recallWithin(shortlistAll(matcher, images)));
+        }
+        return analysis;
+    }
+
+    /**
+     * Shortlist every image of the batch against all the others with the matcher's candidate index
+     *
+     * @return Shortlisted batch indices per image, by batch index
+     */
+    private static int[][] shortlistAll(BaseImageMatcher matcher, List<ImageSource> images) throws IOException {
+        CandidateIndex index = matcher.buildCandidateIndex(images);
+        int[][] shortlists = new int[images.size()][];
+        for (int i = 0; i < shortlists.length; i++) {
+            // The image itself ranks first and takes one slot
+            shortlists[i] = index.shortlist(matcher.getFeatures(images.get(i)).getDescriptors(), SHORTLIST_SIZE + 1);
+        }
+        return shortlists;
+    }
+
+    /**
+     * @param keypointBudget Keypoints described per image, or 0 for all
+     * @return Configurator applying the keypoint budget to a matcher
+     */
+    public static Consumer<BaseImageMatcher> configurator(int keypointBudget) {
+        return configurator(keypointBudget, 0);
+    }
+
+    /**
+     * Geometric verification is passed to {@link MatcherPool} instead, which needs it to
+     * know whether scores are symmetric
+     *
+     * @param kdForestChecks Checks of the KD-forest shortlist for SIFT, or 0 for the vocabulary
+     * @return Configurator applying the settings to a matcher
+     */
+    public static Consumer<BaseImageMatcher> configurator(int keypointBudget, int kdForestChecks) {
+        return matcher -> {
+            matcher.setKeypointBudget(keypointBudget);
+            if (kdForestChecks > 0 && matcher instanceof SiftImageMatcher) {
+                ((SiftImageMatcher) matcher).setKdForest(true, kdForestChecks);
+            }
+        };
+    }
+
+    /**
+     * @param minSimilarity ORB similarity a reference must exceed, or negative for the default
+     * @param survivors References passed on to SIFT, or negative for the default
+     * @return Configurator setting the pruning of ORB-SIFT matchers; other matchers are left as is
+     */
+    public static Consumer<BaseImageMatcher> orbPruning(double minSimilarity, int survivors) {
+        return matcher -> {
+            if (!(matcher instanceof OrbSiftMatcher)) return;
+            OrbSiftMatcher orbSift = (OrbSiftMatcher) matcher;
+            orbSift.setPruning(minSimilarity >= 0 ? minSimilarity : orbSift.getMinOrbSimilarity(),
+                    survivors > 0 ? survivors : orbSift.getSurvivorCount());
+        };
+    }
+
+    /**
+     * Write the recall and speed of SIFT's KD-forest against brute-force search, one row per
+     * checks value. Every other image is a query and the rest are indexed, so no query
+     * finds its own descriptors.
+     *
+     * @param checksValues Checks values to compare
+     * @param writer Destination of the CSV; not closed
+     */
+    public static void reportKdForest(File imageDirectory, File cacheRoot, int keypointBudget, int[] checksValues,
+                                      Writer writer) throws IOException {
+        List<ImageSource> images = FileImageSource.listDirectory(imageDirectory);
+        List<ImageSource> queries = new ArrayList<>();
+        List<ImageSource> references = new ArrayList<>();
+        for (int i = 0; i < images.size(); i++) {
+            (i % 2 == 0 ? references : queries).add(images.get(i));
+        }
+        if (queries.isEmpty()) {
+            throw new IOException("Not enough images to evaluate the KD-forest in " + imageDirectory);
+        }
+
+        SiftImageMatcher matcher = new SiftImageMatcher(DescriptorCache.getInstance(cacheRoot));
+        matcher.setKeypointBudget(keypointBudget);
+        writer.write("Checks,Recall,Vote Agreement,Time per Query (us),Brute Force Time per Query (us)\n");
+        for (KdForestIndex.OperatingPoint point : matcher.evaluateKdForest(queries, references, checksValues)) {
+            String row = String.format(Locale.US, "%d,%.4f,%.4f,%.2f,%.2f\n", point.checks, point.recall,
+                    point.voteAgreement, point.microsPerQuery, point.bruteForceMicrosPerQuery);
+            System.err.print("KD-forest " + row);
+            writer.write(row);
+        }
+    }
+
+    private static int[] parseList(String list) {
+        String[] values = list.split(",");
+        int[] parsed = new int[values.length];
+        for (int i = 0; i < values.length; i++) {
+            parsed[i] = Integer.parseInt(values[i].trim());
+        }
+        return parsed;
+    }
+
+    /**
+     * Run the batch once per keypoint budget and write location accuracy and time per budget
+     *
+     * @param budgets Keypoint budgets to compare, 0 meaning unlimited
+     * @param writer Destination of the CSV; not closed
+     */
+    public static void sweepKeypointBudgets(File imageDirectory, String algorithm, int threads, File cacheRoot,
+                                            GeometricVerifier.Model verification, int[] budgets, Writer writer)
+            throws IOException, InterruptedException {
+        writer.write("Keypoint Budget,Keypoints per Image,Located Images,"
+                + "Average Distance (m),Average Weighted Distance (m),Time (ms)\n");
+        List<ImageSource> images = FileImageSource.listDirectory(imageDirectory);
+        for (int budget : budgets) {
+            Consumer<BaseImageMatcher> configurator = configurator(budget);
+            long start = System.nanoTime();
+            LocationAnalysis analysis = run(imageDirectory, algorithm, threads, cacheRoot, verification, configurator);
+            long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+            // Features are cached by now, so this only reads them back
+            BaseImageMatcher matcher = MatcherFactory.create(DescriptorCache.getInstance(cacheRoot), algorithm);
+            configurator.accept(matcher);
+            long keypoints = 0;
+            for (ImageSource image : images) {
+                keypoints += matcher.getFeatures(image).getKeypoints().rows();
+            }
+
+            String row = String.format(Locale.US, "%d,%.1f,%d,%.2f,%.2f,%d\n",
+                    budget, keypoints / (double) images.size(), analysis.getValidLocationCount(),
+                    analysis.getAverageNonWeightedDistance(), analysis.getAverageWeightedDistance(), elapsedMillis);
+            System.err.print("Budget " + row);
+            writer.write(row);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.DMatch;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.AKAZE;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class AkazeMatcher extends BaseImageMatcher {
+    private static final String TAG = "AkazeMatcher";
+    private static final Size STANDARD_SIZE = new Size(500, 500);
+    private static final int PREFILTER_SIZE = 50; // References forwarded by the global-signature prefilter
+    private static final float RATIO_THRESHOLD = 0.7f;
+
+    // Reused across pairs; its Mats are released at the end of each pair
+    private final List<MatOfDMatch> knnMatches = new ArrayList<>();
+
+    public AkazeMatcher(DescriptorCache cache) {
+        super(cache,
+              AKAZE.create(),
+              DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING),
+              "AKAZE");
+    }
+
+    @Override
+    protected double calculateSimilarity(MatOfDMatch matches) {
+        DMatch[] matchArray = matches.toArray();
+        if (matchArray.length == 0) return 0.0;
+
+        // Count good matches using ratio test
+        int goodMatches = 0;
+        for (DMatch match : matchArray) {
+            if (match.distance < 50.0) { // AKAZE threshold
+                goodMatches++;
+            }
+        }
+
+        // Calculate similarity based on number of good matches
+        return (double) goodMatches / 100.0; // Normalize by expected number of matches
+    }
+
+    @Override
+    protected Size getTargetSize() {
+        return STANDARD_SIZE;
+    }
+
+    @Override
+    protected int getDefaultPrefilterSize() {
+        return PREFILTER_SIZE;
+    }
+
+    @Override
+    protected double scoreFeatures(ImageFeatures testFeatures, ImageFeatures refFeatures) {
+        return scoreFeatures(testFeatures, refFeatures, Double.NEGATIVE_INFINITY);
+    }
+
+    @Override
+    protected double scoreFeatures(ImageFeatures testFeatures, ImageFeatures refFeatures, double threshold) {
+        List<DMatch> goodMatches = new ArrayList<>();
+        double similarity;
+        try (MatArena.Scope scope = arena.open()) {
+            // Use knnMatch for ratio test; it returns one MatOfDMatch per query descriptor
+            scope.trackAll(knnMatches);
+            long start = metrics.start();
+            matcher.knnMatch(testFeatures.getDescriptors(), refFeatures.getDescriptors(), knnMatches, 2);
+            metrics.stop(MatchMetrics.Stage.MATCH, start);
+            metrics.count(MatchMetrics.Counter.RAW_MATCHES, knnMatches.size());
+
+            // Apply ratio test
+            start = metrics.start();
+            for (MatOfDMatch matOfDMatch : knnMatches) {
+                DMatch[] matches = matOfDMatch.toArray();
+                if (matches.length >= 2 && matches[0].distance < RATIO_THRESHOLD * matches[1].distance) {
+                    goodMatches.add(matches[0]);
+                }
+            }
+
+            MatOfDMatch matches = arena.scratch(SCRATCH_MATCHES, MatOfDMatch::new);
+            if (goodMatches.isEmpty()) {
+                // fromList leaves the buffer untouched when empty, keeping the last pair's matches
+                matches.release();
+            } else {
+                matches.fromList(goodMatches);
+            }
+            metrics.stop(MatchMetrics.Stage.FILTER, start);
+            metrics.count(MatchMetrics.Counter.GOOD_MATCHES, goodMatches.size());
+
+            start = metrics.start();
+            similarity = calculateSimilarity(matches);
+            metrics.stop(MatchMetrics.Stage.SCORE, start);
+        }
+
+        // Inliers are at most the ratio-tested matches, which bounds the verified score
+        if (isGeometricVerificationEnabled() && similarity > 0) {
+            if (goodMatches.size() / 100.0 <= threshold) {
+                metrics.increment(MatchMetrics.Counter.VERIFY_SKIPPED);
+                return similarity;
+            }
+            int[] pairs = new int[2 * goodMatches.size()];
+            for (int i = 0; i < goodMatches.size(); i++) {
+                pairs[2 * i] = goodMatches.get(i).queryIdx;
+                pairs[2 * i + 1] = goodMatches.get(i).trainIdx;
+            }
+            int inliers = verifyGeometry(testFeatures, refFeatures, pairs, goodMatches.size());
+            if (inliers < MIN_INLIERS) {
+                return NO_MATCH;
+            }
+            similarity = inliers / 100.0;
+        }
+        if (MatchLog.isLoggable(TAG, MatchLog.DEBUG)) {
+            MatchLog.d(TAG, "Similarity score: " + similarity);
+        }
+        return similarity > 0 ? similarity : NO_MATCH;
+    }
+} 
\ No newline at end of file
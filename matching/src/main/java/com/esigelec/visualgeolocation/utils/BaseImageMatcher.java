@@ -0,0 +1,541 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.Size;
+import org.opencv.features2d.DescriptorMatcher;
+import org.opencv.features2d.Feature2D;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public abstract class BaseImageMatcher implements ImageMatcher {
+    private static final String TAG = "BaseImageMatcher";
+    /** Returned by {@link #scoreFeatures} for pairs that should not be reported as matches */
+    protected static final double NO_MATCH = -1.0;
+    /** Fewest geometrically consistent matches for a verified pair to be reported */
+    protected static final int MIN_INLIERS = 8;
+    /** Keypoints kept per image unless changed with {@link #setKeypointBudget}; 0 keeps them all */
+    public static final int DEFAULT_KEYPOINT_BUDGET = 0;
+    // Scratch slots of the arena
+    protected static final int SCRATCH_MASK = 0;
+    protected static final int SCRATCH_MATCHES = 1;
+    private static final int SCRATCH_SLOTS = 2;
+    protected final Feature2D detector;
+    protected final DescriptorMatcher matcher;
+    protected final String algorithmName;
+    protected final DescriptorCache cache;
+    protected final MatchMetrics metrics;
+    /** Native buffers of this matcher's temporary Mats; see {@link MatArena} */
+    protected final MatArena arena;
+    private int prefilterSize;
+    private GeometricVerifier verifier;
+    private int keypointBudget = DEFAULT_KEYPOINT_BUDGET;
+
+    protected BaseImageMatcher(DescriptorCache cache, Feature2D detector, DescriptorMatcher matcher, String algorithmName) {
+        this.detector = detector;
+        this.matcher = matcher;
+        this.algorithmName = algorithmName;
+        this.cache = cache;
+        this.metrics = MatchMetrics.forAlgorithm(algorithmName);
+        this.arena = new MatArena(metrics, SCRATCH_SLOTS);
+        this.prefilterSize = getDefaultPrefilterSize();
+    }
+
+    @Override
+    public void findMatches(ImageSource testImage, List<ImageSource> referenceImages, TopKCollector collector) {
+        try {
+            boolean debug = MatchLog.isLoggable(TAG, MatchLog.DEBUG);
+            if (debug) MatchLog.d(TAG, "Loading test image: " + testImage);
+            ImageFeatures testFeatures = extractFeatures(testImage);
+            if (debug) {
+                MatchLog.d(TAG, "Test image keypoints: " + testFeatures.getKeypoints().size());
+                MatchLog.d(TAG, "Test image descriptors: " + testFeatures.getDescriptors().size());
+            }
+            
+            // Compare with each reference image
+            for (ImageSource refImage : referenceImages) {
+                // Skip if this is the same image
+                if (refImage.equals(testImage)) {
+                    if (debug) MatchLog.d(TAG, "Skipping self-match for image: " + refImage);
+                    continue;
+                }
+                
+                matchReference(testFeatures, refImage, collector);
+            }
+        } catch (Exception e) {
+            // Results collected before the failure are kept
+            MatchLog.e(TAG, "Error during matching", e);
+        }
+    }
+
+    /**
+     * Score one reference against features already extracted from the test image
+     *
+     * @param testFeatures Features of the test image, see {@link #getFeatures}
+     * @param refImage Reference image
+     * @param collector Receives the result if the pair is reported as a match
+     * @return Whether the pair was reported as a match
+     */
+    public boolean matchReference(ImageFeatures testFeatures, ImageSource refImage, TopKCollector collector)
+            throws IOException {
+        boolean debug = MatchLog.isLoggable(TAG, MatchLog.DEBUG);
+        if (debug) MatchLog.d(TAG, "Processing reference image: " + refImage);
+        ImageFeatures refFeatures = extractFeatures(refImage);
+        if (debug) {
+            MatchLog.d(TAG, "Reference image keypoints: " + refFeatures.getKeypoints().size());
+            MatchLog.d(TAG, "Reference image descriptors: " + refFeatures.getDescriptors().size());
+        }
+        
+        // Pairs that cannot enter the collector's top K may skip costly scoring stages
+        double similarity = scoreFeatures(testFeatures, refFeatures, collector.getThreshold());
+        metrics.increment(MatchMetrics.Counter.PAIRS);
+        if (debug) MatchLog.d(TAG, "Similarity score: " + similarity);
+        
+        if (similarity == NO_MATCH) {
+            return false;
+        }
+        collector.offer(new MatchResult(refImage, similarity, algorithmName));
+        return true;
+    }
+
+    /**
+     * Get keypoints and descriptors for an image, detecting them only on a cache miss.
+     * The returned features are shared through the cache and must not be released.
+     *
+     * @param image The image
+     * @return Keypoints and descriptors of the prepared image
+     */
+    protected ImageFeatures extractFeatures(ImageSource image) throws IOException {
+        boolean[] detected = new boolean[1];
+        ImageFeatures features = cache.getOrCompute(getCacheKey(image), () -> {
+            detected[0] = true;
+            return detectFeatures(image);
+        });
+        metrics.increment(detected[0] ? MatchMetrics.Counter.CACHE_MISSES : MatchMetrics.Counter.CACHE_HITS);
+        return features;
+    }
+
+    /**
+     * @return Timings and counters shared by every matcher of this algorithm
+     */
+    public MatchMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Public entry point to the cached features of an image
+     *
+     * @param image The image
+     * @return Shared keypoints and descriptors; must not be released
+     */
+    public ImageFeatures getFeatures(ImageSource image) throws IOException {
+        return extractFeatures(image);
+    }
+
+    /**
+     * Build an index that shortlists references before full matching
+     *
+     * @param referenceImages Reference images, addressed by position in the index
+     * @return Index over the reference descriptors
+     */
+    public CandidateIndex buildCandidateIndex(List<ImageSource> referenceImages) throws IOException {
+        // An exported store of this exact reference set is indexed from its mapped rows
+        DescriptorStore.Reader store = getReferenceStore(referenceImages);
+        if (store != null) {
+            CandidateIndex index = buildCandidateIndex(store);
+            if (index != null) {
+                return index;
+            }
+        }
+
+        List<Mat> descriptors = new ArrayList<>(referenceImages.size());
+        for (ImageSource image : referenceImages) {
+            descriptors.add(extractFeatures(image).getDescriptors());
+        }
+        return indexDescriptors(descriptors);
+    }
+
+    /**
+     * Build the candidate index from the descriptors of each reference
+     *
+     * @param descriptors Descriptors of each reference, in reference order
+     * @return Index over the references
+     */
+    protected CandidateIndex indexDescriptors(List<Mat> descriptors) {
+        boolean binary = false;
+        for (Mat refDescriptors : descriptors) {
+            binary |= !refDescriptors.empty() && refDescriptors.depth() == CvType.CV_8U;
+        }
+        // Binary descriptors vote through multi-index hashing; float descriptors use a vocabulary
+        return binary ? BinaryDescriptorIndex.build(descriptors) : VocabularyIndex.build(descriptors);
+    }
+
+    /**
+     * Build the candidate index straight from the descriptor rows of a packed store
+     *
+     * @param store Store holding the references in order, with at least one descriptor
+     * @return Index over the store's images, or null if this index needs per-image Mats
+     */
+    protected CandidateIndex buildCandidateIndex(DescriptorStore.Reader store) {
+        return CvType.depth(store.getDescriptorType()) == CvType.CV_8U ? BinaryDescriptorIndex.build(store) : null;
+    }
+
+    /**
+     * Select the references most likely to match the test image among the candidates left
+     * by the earlier stages of the cascade
+     *
+     * @param index Index built from referenceImages
+     * @param testImage URI of the test image
+     * @param referenceImages Reference images the index was built from
+     * @param candidates Subset of referenceImages still in the running
+     * @param topK Maximum number of references to keep
+     * @return Shortlisted candidates, best first
+     */
+    public List<ImageSource> shortlist(CandidateIndex index, ImageSource testImage,
+                                       List<ImageSource> referenceImages, List<ImageSource> candidates, int topK)
+            throws IOException {
+        // The index ranks the whole reference set; candidates dropped earlier are skipped
+        Set<ImageSource> remaining = new HashSet<>(candidates);
+        int[] ranked = index.shortlist(extractFeatures(testImage).getDescriptors(),
+                remaining.size() == referenceImages.size() ? topK : referenceImages.size());
+        List<ImageSource> shortlisted = new ArrayList<>(Math.min(topK, candidates.size()));
+        for (int i = 0; i < ranked.length && shortlisted.size() < topK; i++) {
+            ImageSource reference = referenceImages.get(ranked[i]);
+            if (remaining.contains(reference)) {
+                shortlisted.add(reference);
+            }
+        }
+        return shortlisted;
+    }
+
+    /**
+     * Coarse stage of a batch row: pick the targets worth full matching against the source.
+     * Called once per row by {@link BatchEngine}; the targets left out are reported as
+     * non-matches without being scored.
+     *
+     * @param source Source image of the row
+     * @param targets Every target the row schedules
+     * @return The targets unchanged, or the subset passed on to full matching
+     */
+    public List<ImageSource> selectTargets(ImageSource source, List<ImageSource> targets) throws IOException {
+        return targets;
+    }
+
+    /**
+     * Signature stage of the matching cascade, after any location prior and before the
+     * index shortlist: keep the references whose global signature is
+     * closest to the test image, so only those go through local-feature matching
+     *
+     * @param testImage Image to locate; excluded from the result
+     * @param referenceImages Candidate references
+     * @return At most {@link #getPrefilterSize()} references, best first, or the references
+     *         unchanged when the prefilter is off or would keep them all
+     */
+    public List<ImageSource> prefilter(ImageSource testImage, List<ImageSource> referenceImages) throws IOException {
+        if (prefilterSize <= 0 || referenceImages.size() <= prefilterSize) {
+            return referenceImages;
+        }
+
+        long start = metrics.start();
+        List<ImageSource> others = new ArrayList<>(referenceImages.size());
+        for (ImageSource image : referenceImages) {
+            if (!image.equals(testImage)) others.add(image);
+        }
+        int[] ranked = GlobalSignature.rank(getSignature(testImage), getSignatures(others), prefilterSize);
+        List<ImageSource> kept = new ArrayList<>(ranked.length);
+        for (int index : ranked) {
+            kept.add(others.get(index));
+        }
+        metrics.stop(MatchMetrics.Stage.PREFILTER, start);
+        return kept;
+    }
+
+    /**
+     * Get the global signature of an image, decoding a small thumbnail if detection has
+     * not already computed it
+     *
+     * @param image The image
+     * @return Signature from {@link GlobalSignature#compute}
+     */
+    public float[] getSignature(ImageSource image) throws IOException {
+        float[] signature = cache.getSignature(image);
+        if (signature == null) {
+            Mat thumbnail = image.decodeGray(GlobalSignature.DECODE_SIZE);
+            signature = GlobalSignature.compute(thumbnail);
+            thumbnail.release();
+            cache.putSignature(image, signature);
+        }
+        return signature;
+    }
+
+    public float[][] getSignatures(List<ImageSource> images) throws IOException {
+        float[][] signatures = new float[images.size()][];
+        for (int i = 0; i < signatures.length; i++) {
+            signatures[i] = getSignature(images.get(i));
+        }
+        return signatures;
+    }
+
+    /**
+     * @param prefilterSize Number of references {@link #prefilter} forwards, or 0 to match every reference
+     */
+    public void setPrefilterSize(int prefilterSize) {
+        this.prefilterSize = prefilterSize;
+    }
+
+    public int getPrefilterSize() {
+        return prefilterSize;
+    }
+
+    /**
+     * Prefilter size for this algorithm; off unless a matcher's local matching is costly
+     */
+    protected int getDefaultPrefilterSize() {
+        return 0;
+    }
+
+    /**
+     * Pack the features of a reference set into a single memory-mappable store and
+     * attach it to the descriptor cache
+     *
+     * @param images Reference images to extract
+     * @param storeFile Destination file
+     * @return Whether the store was written and attached
+     */
+    public boolean exportFeatures(List<ImageSource> images, File storeFile) throws IOException {
+        File temp = new File(storeFile.getPath() + ".tmp");
+        try (DescriptorStore.Writer writer = new DescriptorStore.Writer(temp)) {
+            for (ImageSource image : images) {
+                writer.add(getCacheKey(image), extractFeatures(image));
+            }
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+        cache.commitStore(temp, storeFile);
+        return cache.attachStore(storeFile);
+    }
+
+    /**
+     * Serve the features of a reference set from the packed store exported for it, if any
+     *
+     * @param images Reference set, in order
+     * @return Whether a store was attached
+     */
+    public boolean attachReferenceStore(List<ImageSource> images) throws IOException {
+        return cache.attachStore(getReferenceStoreFile(images));
+    }
+
+    /**
+     * Export the packed store of a reference set unless it already has one. Call it once the
+     * features of every reference are cached, so exporting only reads them back.
+     *
+     * @param images Reference set, in order
+     */
+    public void exportReferenceStore(List<ImageSource> images) throws IOException {
+        File storeFile = getReferenceStoreFile(images);
+        if (!cache.attachStore(storeFile)) {
+            exportFeatures(images, storeFile);
+        }
+    }
+
+    /**
+     * @param images Reference set, in order
+     * @return The attached store holding the current features of exactly these images in
+     *         this order, or null if there is none or an image changed since it was exported
+     */
+    private DescriptorStore.Reader getReferenceStore(List<ImageSource> images) throws IOException {
+        DescriptorStore.Reader store = cache.getStore(getReferenceStoreFile(images));
+        if (store == null || store.size() != images.size() || store.getTotalRows() == 0) {
+            return null;
+        }
+        for (int i = 0; i < images.size(); i++) {
+            if (!store.getKey(i).equals(getCacheKey(images.get(i)))) {
+                return null;
+            }
+        }
+        return store;
+    }
+
+    private File getReferenceStoreFile(List<ImageSource> images) throws IOException {
+        return cache.getStoreFile(algorithmName + "|" + getPreprocessingKey(), images);
+    }
+
+    /**
+     * Decode, resize and run the detector on an image, bypassing the cache
+     *
+     * @param image The image
+     * @return Freshly computed keypoints and descriptors
+     */
+    protected ImageFeatures detectFeatures(ImageSource image) throws IOException {
+        long start = metrics.start();
+        Mat imageMat = loadImage(image);
+        metrics.stop(MatchMetrics.Stage.DECODE, start);
+
+        // The decoded image is at hand, so the cascade's signature comes almost for free
+        if (cache.getSignature(image) == null) {
+            cache.putSignature(image, GlobalSignature.compute(imageMat));
+        }
+
+        Size targetSize = getTargetSize();
+        if (targetSize != null) {
+            start = metrics.start();
+            Imgproc.resize(imageMat, imageMat, targetSize);
+            metrics.stop(MatchMetrics.Stage.RESIZE, start);
+        }
+        
+        MatOfKeyPoint keypoints = new MatOfKeyPoint();
+        Mat descriptors = new Mat();
+        
+        if (MatchLog.isLoggable(TAG, MatchLog.DEBUG)) {
+            MatchLog.d(TAG, "Detecting keypoints and computing descriptors for " + image);
+        }
+        start = metrics.start();
+        if (keypointBudget > 0) {
+            // Describe only the keypoints kept by the budget. SIFT and AKAZE build their scale
+            // space again in compute, so this only pays off when matching dominates detection
+            detector.detect(imageMat, keypoints);
+            MatOfKeyPoint selected = KeypointBudget.select(keypoints, keypointBudget, imageMat.cols(), imageMat.rows());
+            if (selected != keypoints) {
+                keypoints.release();
+                keypoints = selected;
+            }
+            detector.compute(imageMat, keypoints, descriptors);
+        } else {
+            detector.detectAndCompute(imageMat, arena.scratch(SCRATCH_MASK, Mat::new), keypoints, descriptors);
+        }
+        metrics.stop(MatchMetrics.Stage.DETECT, start);
+        metrics.count(MatchMetrics.Counter.KEYPOINTS, keypoints.rows());
+        imageMat.release();
+        
+        return new ImageFeatures(keypoints, descriptors);
+    }
+
+    /**
+     * Score a pair of images from their features
+     *
+     * @param testFeatures Features of the test image
+     * @param refFeatures Features of the reference image
+     * @return Similarity score, or {@link #NO_MATCH} if the pair should not be reported
+     */
+    protected double scoreFeatures(ImageFeatures testFeatures, ImageFeatures refFeatures) {
+        // Match descriptors into a buffer reused across pairs
+        MatOfDMatch matches = arena.scratch(SCRATCH_MATCHES, MatOfDMatch::new);
+        long start = metrics.start();
+        matcher.match(testFeatures.getDescriptors(), refFeatures.getDescriptors(), matches);
+        metrics.stop(MatchMetrics.Stage.MATCH, start);
+        metrics.count(MatchMetrics.Counter.RAW_MATCHES, matches.rows());
+        if (MatchLog.isLoggable(TAG, MatchLog.DEBUG)) {
+            MatchLog.d(TAG, "Number of matches found: " + matches.size());
+        }
+        
+        // Calculate similarity score
+        start = metrics.start();
+        double similarity = calculateSimilarity(matches);
+        metrics.stop(MatchMetrics.Stage.SCORE, start);
+        if (MatchMetrics.isNativeTrackingEnabled()) {
+            metrics.recordNativeBytes(arena.nativeBytes());
+        }
+        return similarity;
+    }
+
+    /**
+     * Score a pair that only matters if it beats a threshold. Matchers with a costly final
+     * stage skip it when the cheaper score already proves the pair cannot beat the threshold.
+     *
+     * @param testFeatures Features of the test image
+     * @param refFeatures Features of the reference image
+     * @param threshold Similarity the pair has to exceed to be kept, see {@link TopKCollector#getThreshold()}
+     * @return Similarity score, or {@link #NO_MATCH} if the pair should not be reported
+     */
+    protected double scoreFeatures(ImageFeatures testFeatures, ImageFeatures refFeatures, double threshold) {
+        return scoreFeatures(testFeatures, refFeatures);
+    }
+
+    /**
+     * @param keypointBudget Maximum keypoints described per image, spread over the frame by
+     *                       {@link KeypointBudget}, or 0 to keep every detected keypoint
+     */
+    public void setKeypointBudget(int keypointBudget) {
+        this.keypointBudget = Math.max(0, keypointBudget);
+    }
+
+    public int getKeypointBudget() {
+        return keypointBudget;
+    }
+
+    /**
+     * Turn geometric verification on or off for matchers that support it (SIFT and AKAZE)
+     *
+     * @param model Transform the matches must agree on, or null to score raw matches
+     */
+    public void setGeometricVerification(GeometricVerifier.Model model) {
+        this.verifier = model == null ? null : new GeometricVerifier(model);
+    }
+
+    public boolean isGeometricVerificationEnabled() {
+        return verifier != null;
+    }
+
+    /**
+     * Count the matches of a pair consistent with one transform
+     *
+     * @param testFeatures Features of the test image
+     * @param refFeatures Features of the reference image
+     * @param pairs Matches as consecutive (test keypoint index, reference keypoint index)
+     * @param pairCount Number of matches in pairs
+     * @return Number of inliers, or -1 when verification is off
+     */
+    protected int verifyGeometry(ImageFeatures testFeatures, ImageFeatures refFeatures, int[] pairs, int pairCount) {
+        if (verifier == null) return -1;
+        long start = metrics.start();
+        int inliers = verifier.countInliers(testFeatures.getKeypoints(), refFeatures.getKeypoints(), pairs, pairCount);
+        metrics.stop(MatchMetrics.Stage.VERIFY, start);
+        metrics.count(MatchMetrics.Counter.INLIERS, inliers);
+        return inliers;
+    }
+
+    /**
+     * Size images are resized to before detection, or null to keep full resolution
+     */
+    protected Size getTargetSize() {
+        return null;
+    }
+
+    private String getCacheKey(ImageSource image) throws IOException {
+        return DescriptorCache.buildKey(algorithmName, getPreprocessingKey(), image.getId(),
+                cache.getContentHash(image));
+    }
+
+    private String getPreprocessingKey() {
+        Size targetSize = getTargetSize();
+        // Features depend on the decode path as well as the final size
+        String size = targetSize == null ? "full" : (int) targetSize.width + "x" + (int) targetSize.height;
+        return size + "-gray" + (keypointBudget > 0 ? "-kp" + keypointBudget : "");
+    }
+
+    /**
+     * Decode an image to an 8-bit grayscale Mat, subsampled toward {@link #getTargetSize()}
+     * by the platform decoder so full-resolution bitmaps of camera images are never allocated
+     *
+     * @param image The image
+     * @return Single-channel image, at full resolution when there is no target size
+     */
+    protected Mat loadImage(ImageSource image) throws IOException {
+        Mat mat = image.decodeGray(getTargetSize());
+        if (MatchLog.isLoggable(TAG, MatchLog.DEBUG)) {
+            MatchLog.d(TAG, "Mat created, size: " + mat.size());
+        }
+        return mat;
+    }
+
+    protected abstract double calculateSimilarity(MatOfDMatch matches);
+} 
\ No newline at end of file
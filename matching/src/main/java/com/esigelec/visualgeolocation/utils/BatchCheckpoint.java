@@ -0,0 +1,358 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Append-only log of the pair scores of a batch analysis, from which an interrupted batch resumes.
+ *
+ * The log opens with the job it belongs to (algorithm and settings), followed by IMAGE records
+ * naming the images and PAIR records holding the score of one computed pair, written as soon
+ * as the pair is scored. Opening the log for a list of images keeps the pairs whose two images
+ * are still in the list, unchanged, and marks them done; {@link BatchEngine} then replays them
+ * instead of matching them again. Images are identified by id, modification time and size;
+ * the pairs of an image whose modification time is unknown are never taken from an earlier log.
+ *
+ * When the images were reordered or removed, or the last record was torn by the process
+ * dying, the log is rewritten in the new image order on open. A log of another job is
+ * discarded. Only the completion bits are held in memory, one per directed pair.
+ */
+public class BatchCheckpoint implements Closeable {
+    private static final String TAG = "BatchCheckpoint";
+    private static final int MAGIC = 0x56474243; // "VGBC"
+    private static final int VERSION = 3; // 3: ORB-SIFT rows are pruned by ORB
+    private static final int IMAGE = 0x49;
+    private static final int PAIR = 0x50;
+
+    private final File file;
+    private final String job;
+    private final List<String> keys = new ArrayList<>();
+    private final BitSet unversioned = new BitSet(); // Images without a modification time
+    private final BitSet done = new BitSet();
+    private int doneCount;
+    private int replayCount;
+    private DataOutputStream log;
+
+    /**
+     * Open or create the checkpoint of a batch
+     *
+     * @param file Log file, created if missing
+     * @param job Algorithm and any setting that changes scores; a log of another job is discarded
+     * @param images Images of the batch, in the order the engine addresses them
+     */
+    public BatchCheckpoint(File file, String job, List<ImageSource> images) {
+        this.file = file;
+        this.job = job;
+        for (ImageSource image : images) {
+            addKey(image);
+        }
+        load();
+    }
+
+    /**
+     * @return Whether the pair was scored by an earlier run
+     */
+    public synchronized boolean isDone(int source, int target) {
+        return done.get(bitOf(source, target));
+    }
+
+    /**
+     * @return Number of pairs with a logged score
+     */
+    public synchronized int getDoneCount() {
+        return doneCount;
+    }
+
+    /**
+     * Persist the score of a pair; called from the worker threads
+     */
+    public synchronized void record(int source, int target, double similarity, boolean matched) {
+        int bit = bitOf(source, target);
+        if (done.get(bit)) return;
+        done.set(bit);
+        doneCount++;
+        if (log == null) return;
+        try {
+            writePair(log, source, target, (float) similarity, matched);
+            log.flush();
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not append to batch checkpoint: " + file, e);
+            closeLog();
+        }
+    }
+
+    /**
+     * Append images to the batch, after every image already in it
+     *
+     * @param added Appended images, in batch order
+     */
+    public synchronized void addImages(List<ImageSource> added) {
+        int oldCount = keys.size();
+        int newCount = oldCount + added.size();
+        BitSet moved = new BitSet();
+        for (int bit = done.nextSetBit(0); bit >= 0; bit = done.nextSetBit(bit + 1)) {
+            moved.set(bit / oldCount * newCount + bit % oldCount);
+        }
+        done.clear();
+        done.or(moved);
+
+        for (ImageSource image : added) {
+            String key = addKey(image);
+            if (log != null) {
+                appendImage(key);
+            }
+        }
+    }
+
+    /**
+     * Deliver the scores found when the checkpoint was opened, in log order.
+     * Pairs recorded since are not replayed.
+     *
+     * @param listener Receives one call per logged pair, as scored
+     */
+    public void replay(BatchEngine.Listener listener) throws IOException {
+        int remaining;
+        synchronized (this) {
+            remaining = replayCount;
+        }
+        if (remaining == 0) return;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            in.readInt();
+            in.readInt();
+            in.readUTF();
+            while (remaining > 0) {
+                int marker = in.read();
+                if (marker == IMAGE) {
+                    in.readUTF();
+                } else if (marker == PAIR) {
+                    int source = in.readInt();
+                    int target = in.readInt();
+                    float similarity = in.readFloat();
+                    boolean matched = in.readBoolean();
+                    listener.onResult(source, target, similarity, matched);
+                    remaining--;
+                } else {
+                    throw new EOFException("Batch checkpoint ended early: " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the log, so the next batch starts from scratch
+     */
+    public synchronized void delete() {
+        closeLog();
+        done.clear();
+        doneCount = 0;
+        replayCount = 0;
+        if (file.exists() && !file.delete()) {
+            MatchLog.w(TAG, "Could not delete batch checkpoint: " + file);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closeLog();
+    }
+
+    private int bitOf(int source, int target) {
+        return source * keys.size() + target;
+    }
+
+    private String addKey(ImageSource image) {
+        if (image.getModifiedTime() <= 0) {
+            unversioned.set(keys.size());
+        }
+        String key = ImageSource.versionKey(image);
+        keys.add(key);
+        return key;
+    }
+
+    private void load() {
+        Map<String, Integer> indexByKey = new HashMap<>(keys.size() * 2);
+        for (int i = 0; i < keys.size(); i++) {
+            // An image that may have changed without notice is compared again
+            if (!unversioned.get(i)) {
+                indexByKey.put(keys.get(i), i);
+            }
+        }
+
+        // Index in the current list of every image of the log, -1 for images dropped since
+        List<Integer> mapping = new ArrayList<>();
+        int records = 0;
+        boolean intact = false;
+        boolean inOrder = true;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION && in.readUTF().equals(job)) {
+                    while (true) {
+                        int marker = in.read();
+                        if (marker == -1) {
+                            intact = true;
+                            break;
+                        }
+                        if (marker == IMAGE) {
+                            Integer index = indexByKey.get(in.readUTF());
+                            inOrder &= index != null && index == mapping.size();
+                            mapping.add(index != null ? index : -1);
+                        } else if (marker == PAIR) {
+                            int source = mapping.get(in.readInt());
+                            int target = mapping.get(in.readInt());
+                            in.readFloat();
+                            in.readBoolean();
+                            records++;
+                            if (source >= 0 && target >= 0 && !done.get(bitOf(source, target))) {
+                                done.set(bitOf(source, target));
+                                doneCount++;
+                            }
+                        } else {
+                            break;
+                        }
+                    }
+                }
+            } catch (IOException | IndexOutOfBoundsException e) {
+                MatchLog.w(TAG, "Batch checkpoint truncated or unreadable, keeping " + doneCount + " pairs", e);
+            }
+        }
+
+        if (intact && inOrder && records == doneCount) {
+            replayCount = doneCount;
+            openLog();
+            // Images new to the batch follow the logged ones
+            for (int i = mapping.size(); i < keys.size() && log != null; i++) {
+                appendImage(keys.get(i));
+            }
+        } else {
+            rewrite(mapping);
+        }
+    }
+
+    /**
+     * Copy the pairs still done into a new log in the current image order, then leave it
+     * open for appending
+     */
+    private void rewrite(List<Integer> mapping) {
+        File temp = new File(file.getPath() + ".tmp");
+        int copied = 0;
+        BitSet copiedPairs = new BitSet();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(job);
+            for (String key : keys) {
+                out.writeByte(IMAGE);
+                out.writeUTF(key);
+            }
+            if (doneCount > 0) {
+                copied = copyPairs(out, mapping, copiedPairs);
+            }
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not write batch checkpoint: " + temp, e);
+            temp.delete();
+            done.clear();
+            doneCount = 0;
+            return;
+        }
+
+        if ((file.exists() && !file.delete()) || !temp.renameTo(file)) {
+            MatchLog.w(TAG, "Could not move batch checkpoint into place: " + file);
+            temp.delete();
+            done.clear();
+            doneCount = 0;
+            return;
+        }
+        done.clear();
+        done.or(copiedPairs);
+        doneCount = copied;
+        replayCount = copied;
+        openLog();
+    }
+
+    private int copyPairs(DataOutputStream out, List<Integer> mapping, BitSet copiedPairs) throws IOException {
+        int copied = 0;
+        int images = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            in.readInt();
+            in.readInt();
+            in.readUTF();
+            while (copied < doneCount) {
+                int marker = in.read();
+                if (marker == IMAGE) {
+                    in.readUTF();
+                    images++;
+                } else if (marker == PAIR) {
+                    int source = in.readInt();
+                    int target = in.readInt();
+                    float similarity = in.readFloat();
+                    boolean matched = in.readBoolean();
+                    if (source >= images || target >= images) break;
+                    source = mapping.get(source);
+                    target = mapping.get(target);
+                    if (source < 0 || target < 0 || copiedPairs.get(bitOf(source, target))) continue;
+                    copiedPairs.set(bitOf(source, target));
+                    writePair(out, source, target, similarity, matched);
+                    copied++;
+                } else {
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            // The torn last record is dropped
+        }
+        return copied;
+    }
+
+    private void appendImage(String key) {
+        try {
+            log.writeByte(IMAGE);
+            log.writeUTF(key);
+            log.flush();
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not append to batch checkpoint: " + file, e);
+            closeLog();
+        }
+    }
+
+    private static void writePair(DataOutputStream out, int source, int target, float similarity, boolean matched)
+            throws IOException {
+        out.writeByte(PAIR);
+        out.writeInt(source);
+        out.writeInt(target);
+        out.writeFloat(similarity);
+        out.writeBoolean(matched);
+    }
+
+    private void openLog() {
+        try {
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not open batch checkpoint: " + file, e);
+            log = null;
+        }
+    }
+
+    private void closeLog() {
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not close batch checkpoint: " + file, e);
+        }
+        log = null;
+    }
+}
@@ -0,0 +1,245 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs an all-pairs batch comparison across a fixed thread pool.
+ *
+ * Every worker matches with its own matcher from a {@link MatcherPool}, so throughput
+ * scales with the number of threads. Symmetric matchers only compute the upper triangle
+ * and each result is reported for both directions. Matchers with a coarse stage (ORB-SIFT)
+ * run it once per source row, and the targets it drops are reported as non-matches. A pair
+ * whose scoring fails is reported as an error rather than as a non-match, and is not logged
+ * to the checkpoint. With a {@link BatchCheckpoint}, scores survive cancellation and the
+ * next start only matches the pairs still missing.
+ */
+public class BatchEngine {
+    private static final String TAG = "BatchEngine";
+
+    public interface Listener {
+        /**
+         * Called on a worker thread for every directed pair (source, target)
+         */
+        void onResult(int source, int target, double similarity, boolean matched);
+
+        /**
+         * Called on a worker thread for every directed pair that could not be scored. The pair
+         * gets no result and is not logged, so a resumed batch compares it again.
+         */
+        default void onError(int source, int target, Exception e) {
+        }
+
+        /**
+         * Called on a worker thread once every scheduled pair has been processed
+         */
+        void onComplete();
+    }
+
+    private final MatcherPool matcherPool;
+    private final int threadCount;
+    private ExecutorService executorService;
+
+    public BatchEngine(MatcherPool matcherPool, int threadCount) {
+        this.matcherPool = matcherPool;
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    public static int defaultThreadCount() {
+        // Leave one core for the UI thread
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * Start comparing every image against every other image
+     *
+     * @param images Images of the batch, addressed by index in the listener
+     * @param listener Receives results from the worker threads
+     */
+    public synchronized void start(List<ImageSource> images, Listener listener) {
+        start(images, listener, null);
+    }
+
+    /**
+     * Start or resume a batch. Pairs already in the checkpoint are replayed to the listener
+     * instead of being matched, and every new score is logged before it is reported, so a
+     * cancelled or killed batch loses at most the pairs in flight.
+     *
+     * @param images Images of the batch, addressed by index in the listener
+     * @param listener Receives results from the worker threads
+     * @param checkpoint Log opened for the same images, or null to keep nothing
+     */
+    public synchronized void start(List<ImageSource> images, Listener listener, BatchCheckpoint checkpoint) {
+        run(images, 0, listener, checkpoint, true);
+    }
+
+    /**
+     * Compare the images appended to a finished batch with every image of the batch. Pairs
+     * between the earlier images are neither matched nor replayed, so only the new rows and
+     * columns reach the listener.
+     *
+     * @param images Images of the batch, the appended ones last
+     * @param firstAdded Index of the first appended image
+     * @param listener Receives results from the worker threads
+     * @param checkpoint Log of the batch, extended with the appended images, or null
+     */
+    public synchronized void extend(List<ImageSource> images, int firstAdded, Listener listener,
+                                    BatchCheckpoint checkpoint) {
+        run(images, firstAdded, listener, checkpoint, false);
+    }
+
+    private void run(List<ImageSource> images, int firstAdded, Listener listener, BatchCheckpoint checkpoint,
+                     boolean replay) {
+        cancel();
+        executorService = Executors.newFixedThreadPool(threadCount);
+
+        final boolean symmetric = matcherPool.isSymmetric();
+        final int imageCount = images.size();
+        final int[][] rows = new int[imageCount][];
+        int pending = 0;
+        for (int source = 0; source < imageCount; source++) {
+            rows[source] = pendingTargets(source, imageCount, symmetric, firstAdded, checkpoint);
+            pending += rows[source].length;
+        }
+        final boolean replaying = replay && checkpoint != null;
+        if (replaying) {
+            // The replay counts as one more task, so onComplete follows it
+            pending++;
+        }
+        final AtomicInteger remaining = new AtomicInteger(pending);
+        if (remaining.get() == 0) {
+            listener.onComplete();
+            return;
+        }
+
+        if (replaying) {
+            executorService.execute(() -> {
+                try {
+                    checkpoint.replay(new Listener() {
+                        @Override
+                        public void onResult(int source, int target, double similarity, boolean matched) {
+                            listener.onResult(source, target, similarity, matched);
+                            if (symmetric) {
+                                listener.onResult(target, source, similarity, matched);
+                            }
+                        }
+
+                        @Override
+                        public void onComplete() {
+                        }
+                    });
+                } catch (IOException e) {
+                    MatchLog.e(TAG, "Error replaying batch checkpoint", e);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    listener.onComplete();
+                }
+            });
+        }
+
+        for (int i = 0; i < imageCount; i++) {
+            final int source = i;
+            final int[] targets = rows[source];
+            if (targets.length == 0) continue;
+
+            executorService.execute(() -> {
+                BaseImageMatcher matcher = matcherPool.get();
+                ImageFeatures sourceFeatures = null;
+                Set<ImageSource> selected = null; // Null when every target is matched
+                Exception sourceError = null;
+                try {
+                    sourceFeatures = matcher.getFeatures(images.get(source));
+                    selected = selectTargets(matcher, images, source, symmetric, firstAdded);
+                } catch (Exception e) {
+                    sourceError = e;
+                }
+
+                for (int j = 0; j < targets.length && !Thread.currentThread().isInterrupted(); j++) {
+                    int target = targets[j];
+                    try {
+                        if (sourceError != null) throw sourceError;
+                        boolean matched = false;
+                        double similarity = 0.0;
+                        if (selected == null || selected.contains(images.get(target))) {
+                            TopKCollector collector = new TopKCollector(1);
+                            matched = matcher.matchReference(sourceFeatures, images.get(target), collector);
+                            similarity = matched ? collector.snapshot().get(0).getSimilarity() : 0.0;
+                        }
+
+                        // A pair cut short by cancel() is left for the next run
+                        if (Thread.currentThread().isInterrupted()) break;
+                        if (checkpoint != null) {
+                            checkpoint.record(source, target, similarity, matched);
+                        }
+                        listener.onResult(source, target, similarity, matched);
+                        if (symmetric) {
+                            listener.onResult(target, source, similarity, matched);
+                        }
+                    } catch (Exception e) {
+                        if (Thread.currentThread().isInterrupted()) break;
+                        MatchLog.e(TAG, "Error comparing images " + source + " and " + target, e);
+                        listener.onError(source, target, e);
+                        if (symmetric) {
+                            listener.onError(target, source, e);
+                        }
+                    }
+
+                    if (remaining.decrementAndGet() == 0) {
+                        listener.onComplete();
+                    }
+                }
+            });
+        }
+
+        // Queued rows still run; cancel() interrupts them
+        executorService.shutdown();
+    }
+
+    /**
+     * Run the matcher's coarse stage over the whole scheduled row, not only the pairs still
+     * pending, so a resumed row keeps the targets it had in the first run
+     *
+     * @return Targets passed on to full matching, or null if the matcher keeps them all
+     */
+    private static Set<ImageSource> selectTargets(BaseImageMatcher matcher, List<ImageSource> images, int source,
+                                                  boolean symmetric, int firstAdded) throws IOException {
+        int[] scheduled = BatchScheduler.targetsFor(source, images.size(), symmetric, firstAdded);
+        List<ImageSource> targets = new ArrayList<>(scheduled.length);
+        for (int target : scheduled) {
+            targets.add(images.get(target));
+        }
+        List<ImageSource> selected = matcher.selectTargets(images.get(source), targets);
+        return selected == targets ? null : new HashSet<>(selected);
+    }
+
+    private static int[] pendingTargets(int source, int imageCount, boolean symmetric, int firstAdded,
+                                        BatchCheckpoint checkpoint) {
+        int[] targets = BatchScheduler.targetsFor(source, imageCount, symmetric, firstAdded);
+        if (checkpoint == null) return targets;
+
+        int count = 0;
+        for (int target : targets) {
+            if (!checkpoint.isDone(source, target)) {
+                targets[count++] = target;
+            }
+        }
+        return Arrays.copyOf(targets, count);
+    }
+
+    /**
+     * Interrupt the running batch; results already reported are kept by the listener
+     */
+    public synchronized void cancel() {
+        if (executorService != null) {
+            executorService.shutdownNow();
+            executorService = null;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.esigelec.visualgeolocation.utils;
+
+/**
+ * Utility class for scheduling the image pairs compared by a batch analysis.
+ *
+ * Symmetric matchers only need the upper triangle of the similarity matrix: each pair
+ * (i, j) with i &lt; j is computed once and its score is mirrored into row j. When images are
+ * appended to a finished batch, only the new rows and columns are computed.
+ */
+public class BatchScheduler {
+
+    /**
+     * Get the target images compared against one source image
+     *
+     * @param source Index of the source image
+     * @param imageCount Number of images in the batch
+     * @param symmetric Whether the matcher gives the same score for (i, j) and (j, i)
+     * @return Indices of the target images to compare
+     */
+    public static int[] targetsFor(int source, int imageCount, boolean symmetric) {
+        int first = symmetric ? source + 1 : 0;
+        int count = symmetric ? imageCount - first : imageCount - 1;
+        int[] targets = new int[Math.max(0, count)];
+
+        int k = 0;
+        for (int target = first; target < imageCount; target++) {
+            if (target != source) {
+                targets[k++] = target;
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Get the target images compared against one source image when images were appended to
+     * a batch whose pairs are all known; pairs between the earlier images are skipped
+     *
+     * @param source Index of the source image
+     * @param imageCount Number of images in the batch, appended ones included
+     * @param symmetric Whether the matcher gives the same score for (i, j) and (j, i)
+     * @param firstAdded Index of the first appended image
+     * @return Indices of the target images to compare
+     */
+    public static int[] targetsFor(int source, int imageCount, boolean symmetric, int firstAdded) {
+        if (source >= firstAdded) {
+            return targetsFor(source, imageCount, symmetric);
+        }
+        // Earlier images are only compared with the appended ones, which all follow them
+        int[] targets = new int[Math.max(0, imageCount - firstAdded)];
+        for (int k = 0; k < targets.length; k++) {
+            targets[k] = firstAdded + k;
+        }
+        return targets;
+    }
+
+    /**
+     * Number of matcher calls needed for a batch
+     *
+     * @param imageCount Number of images in the batch
+     * @param symmetric Whether only the upper triangle is computed
+     * @return Number of image pairs to compare
+     */
+    public static int comparisonCount(int imageCount, boolean symmetric) {
+        int directed = imageCount * (imageCount - 1);
+        return symmetric ? directed / 2 : directed;
+    }
+}
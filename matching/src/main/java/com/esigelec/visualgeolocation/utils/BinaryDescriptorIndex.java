@@ -0,0 +1,230 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Multi-index hashing over binary descriptors (ORB, AKAZE) of a whole reference set.
+ *
+ * Descriptors are packed into longs and split into 16-bit substrings; each substring
+ * position has its own hash table. Two descriptors within Hamming distance r share at
+ * least one substring within distance r / tables, so probing each table's bucket and its
+ * one-bit neighbours finds every neighbour closer than twice the table count (for ORB,
+ * where the 16 tables cover all 256 bits). Each query descriptor then votes for the image
+ * of its nearest neighbour, which scores the query against every reference in one pass.
+ */
+public class BinaryDescriptorIndex implements CandidateIndex {
+    private static final int SUBSTRING_BITS = 16;
+    private static final int BUCKETS = 1 << SUBSTRING_BITS;
+    private static final int MAX_TABLES = 16;
+    private static final int MAX_DISTANCE = 50; // Same Hamming threshold as OrbMatcher
+
+    private final int rowBytes;
+    private final int wordsPerRow;
+    private final int tableCount;
+    private final int imageCount;
+    private final long[] packed;
+    private final int[] imageOfRow;
+    private final int[] rowsPerImage;
+    // Per table, bucket b owns entries [bucketStart[t][b], bucketStart[t][b + 1])
+    private final int[][] bucketStart;
+    private final int[][] bucketRows;
+
+    private BinaryDescriptorIndex(int rowBytes, long[] packed, int[] imageOfRow, int imageCount) {
+        this.rowBytes = rowBytes;
+        this.wordsPerRow = (rowBytes + 7) / 8;
+        // Only substrings made entirely of descriptor bits, so padding never fills a bucket
+        this.tableCount = Math.max(1, Math.min(MAX_TABLES, rowBytes * 8 / SUBSTRING_BITS));
+        this.imageCount = imageCount;
+        this.packed = packed;
+        this.imageOfRow = imageOfRow;
+        this.rowsPerImage = new int[imageCount];
+        for (int image : imageOfRow) {
+            rowsPerImage[image]++;
+        }
+
+        int rows = imageOfRow.length;
+        bucketStart = new int[tableCount][];
+        bucketRows = new int[tableCount][];
+        for (int table = 0; table < tableCount; table++) {
+            int[] start = new int[BUCKETS + 1];
+            for (int row = 0; row < rows; row++) {
+                start[substring(packed, row * wordsPerRow, table) + 1]++;
+            }
+            for (int b = 0; b < BUCKETS; b++) {
+                start[b + 1] += start[b];
+            }
+
+            int[] entries = new int[rows];
+            int[] fill = Arrays.copyOf(start, BUCKETS);
+            for (int row = 0; row < rows; row++) {
+                entries[fill[substring(packed, row * wordsPerRow, table)]++] = row;
+            }
+            bucketStart[table] = start;
+            bucketRows[table] = entries;
+        }
+    }
+
+    /**
+     * Index the descriptors of every reference image
+     *
+     * @param referenceDescriptors CV_8U descriptors of each reference, in reference order
+     * @return Index over all reference descriptors
+     */
+    public static BinaryDescriptorIndex build(List<Mat> referenceDescriptors) {
+        int rowBytes = 0;
+        int totalRows = 0;
+        for (Mat descriptors : referenceDescriptors) {
+            if (descriptors.empty()) continue;
+            rowBytes = descriptors.cols();
+            totalRows += descriptors.rows();
+        }
+
+        int wordsPerRow = (rowBytes + 7) / 8;
+        long[] packed = new long[totalRows * wordsPerRow];
+        int[] imageOfRow = new int[totalRows];
+        int row = 0;
+        for (int image = 0; image < referenceDescriptors.size(); image++) {
+            Mat descriptors = referenceDescriptors.get(image);
+            if (descriptors.empty()) continue;
+            byte[] data = new byte[descriptors.rows() * rowBytes];
+            descriptors.get(0, 0, data);
+            for (int r = 0; r < descriptors.rows(); r++, row++) {
+                pack(ByteBuffer.wrap(data, r * rowBytes, rowBytes), rowBytes, packed, row * wordsPerRow);
+                imageOfRow[row] = image;
+            }
+        }
+        return new BinaryDescriptorIndex(rowBytes, packed, imageOfRow, referenceDescriptors.size());
+    }
+
+    /**
+     * Index a packed store directly from its memory-mapped rows
+     *
+     * @param store Descriptor store of binary descriptors
+     * @return Index over all rows of the store, with images in store order
+     */
+    public static BinaryDescriptorIndex build(DescriptorStore.Reader store) {
+        int rowBytes = store.getRowBytes();
+        int wordsPerRow = (rowBytes + 7) / 8;
+        int totalRows = store.getTotalRows();
+        long[] packed = new long[totalRows * wordsPerRow];
+        int[] imageOfRow = new int[totalRows];
+
+        ByteBuffer rows = store.getAllDescriptorRows();
+        for (int image = 0; image < store.size(); image++) {
+            int first = store.getFirstRow(image);
+            for (int r = first; r < first + store.getRowCount(image); r++) {
+                rows.position(r * rowBytes);
+                pack(rows, rowBytes, packed, r * wordsPerRow);
+                imageOfRow[r] = image;
+            }
+        }
+        return new BinaryDescriptorIndex(rowBytes, packed, imageOfRow, store.size());
+    }
+
+    /**
+     * Count, for every reference image, the query descriptors whose nearest neighbour
+     * in the whole reference set belongs to that image
+     *
+     * @param queryDescriptors CV_8U descriptors of the query image
+     * @return Vote count per reference image
+     */
+    public int[] vote(Mat queryDescriptors) {
+        int[] votes = new int[imageCount];
+        int queryRows = queryDescriptors.empty() ? 0 : queryDescriptors.rows();
+        if (queryRows == 0 || imageOfRow.length == 0) {
+            return votes;
+        }
+
+        byte[] data = new byte[queryRows * rowBytes];
+        queryDescriptors.get(0, 0, data);
+        long[] query = new long[wordsPerRow];
+        int[] best = new int[2]; // nearest row and its distance
+        // Stamp rows per query descriptor so each candidate is compared once
+        int[] visited = new int[imageOfRow.length];
+        Arrays.fill(visited, -1);
+
+        for (int q = 0; q < queryRows; q++) {
+            pack(ByteBuffer.wrap(data, q * rowBytes, rowBytes), rowBytes, query, 0);
+
+            best[0] = -1;
+            best[1] = MAX_DISTANCE;
+            for (int table = 0; table < tableCount; table++) {
+                int key = substring(query, 0, table);
+                probe(table, key, query, q, visited, best);
+                // Probe the buckets one bit away as well
+                for (int bit = 0; bit < SUBSTRING_BITS; bit++) {
+                    probe(table, key ^ (1 << bit), query, q, visited, best);
+                }
+            }
+
+            if (best[0] >= 0) {
+                votes[imageOfRow[best[0]]]++;
+            }
+        }
+        return votes;
+    }
+
+    @Override
+    public int[] shortlist(Mat queryDescriptors, int topK) {
+        int[] votes = vote(queryDescriptors);
+        float[] scores = new float[imageCount];
+        for (int image = 0; image < imageCount; image++) {
+            // Normalize so references with many descriptors do not win on volume alone
+            scores[image] = rowsPerImage[image] > 0 ? votes[image] / (float) Math.sqrt(rowsPerImage[image]) : 0f;
+        }
+        return CandidateIndex.topIndices(scores, topK);
+    }
+
+    @Override
+    public int size() {
+        return imageCount;
+    }
+
+    private void probe(int table, int key, long[] query, int stamp, int[] visited, int[] best) {
+        int[] entries = bucketRows[table];
+        int end = bucketStart[table][key + 1];
+        for (int slot = bucketStart[table][key]; slot < end; slot++) {
+            int row = entries[slot];
+            if (visited[row] == stamp) continue;
+            visited[row] = stamp;
+
+            int d = distance(query, row);
+            if (d < best[1]) {
+                best[0] = row;
+                best[1] = d;
+            }
+        }
+    }
+
+    private int distance(long[] query, int row) {
+        int d = 0;
+        int offset = row * wordsPerRow;
+        for (int w = 0; w < wordsPerRow; w++) {
+            d += Long.bitCount(query[w] ^ packed[offset + w]);
+        }
+        return d;
+    }
+
+    private static int substring(long[] words, int offset, int table) {
+        int bit = table * SUBSTRING_BITS;
+        return (int) (words[offset + bit / 64] >>> (bit % 64)) & (BUCKETS - 1);
+    }
+
+    /**
+     * Pack rowBytes bytes from the buffer's position into little-endian longs, zero padded
+     */
+    private static void pack(ByteBuffer source, int rowBytes, long[] target, int offset) {
+        int start = source.position();
+        for (int w = 0; w * 8 < rowBytes; w++) {
+            long word = 0;
+            for (int b = 0; b < 8 && w * 8 + b < rowBytes; b++) {
+                word |= (source.get(start + w * 8 + b) & 0xFFL) << (8 * b);
+            }
+            target[offset + w] = word;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+
+/**
+ * Index over the descriptors of a reference set that ranks references for a query
+ * without matching the query against every reference image
+ */
+public interface CandidateIndex {
+
+    /**
+     * Rank the reference images for a query image
+     *
+     * @param queryDescriptors Descriptors of the query image
+     * @param topK Maximum number of candidates to return
+     * @return Indices of the best references in the list the index was built from, best first
+     */
+    int[] shortlist(Mat queryDescriptors, int topK);
+
+    /**
+     * @return Number of reference images in the index
+     */
+    int size();
+
+    /**
+     * Indices of the largest scores, best first
+     *
+     * @param scores Score of every reference
+     * @param topK Maximum number of indices to return
+     * @return Indices sorted by descending score
+     */
+    static int[] topIndices(float[] scores, int topK) {
+        Integer[] order = new Integer[scores.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Float.compare(scores[b], scores[a]));
+
+        int[] top = new int[Math.min(topK, order.length)];
+        for (int i = 0; i < top.length; i++) {
+            top[i] = order[i];
+        }
+        return top;
+    }
+}
@@ -0,0 +1,468 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Two-tier cache of keypoints and descriptors shared by all matchers.
+ *
+ * Entries are keyed by algorithm, preprocessing parameters, image id and a hash of the
+ * image content, so detection runs once per image per algorithm. The memory tier is an
+ * LRU bounded by native buffer size; the disk tier keeps one {@link DescriptorStore} file per
+ * entry in the app cache, and can be backed by packed stores covering whole reference sets.
+ * Global signatures are stored next to the entries, one small file per image content. The
+ * files of the disk tier are bounded by a byte budget; the least recently used ones are
+ * deleted once it is exceeded.
+ */
+public class DescriptorCache {
+    private static final String TAG = "DescriptorCache";
+    private static final String CACHE_DIR = "descriptors";
+    private static final String SIGNATURE_SUFFIX = ".sig";
+    private static final String STORE_SUFFIX = ".store";
+    private static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+    private static final long DEFAULT_DISK_BUDGET = 512L * 1024 * 1024;
+
+    private static DescriptorCache instance;
+
+    private final File directory;
+    private final long memoryBudget;
+    private final LinkedHashMap<String, ImageFeatures> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, FutureTask<ImageFeatures>> inFlight = new ConcurrentHashMap<>();
+    private final MetadataCache metadata;
+    private final Map<String, float[]> signatures = new ConcurrentHashMap<>();
+    private final List<DescriptorStore.Reader> stores = new CopyOnWriteArrayList<>();
+    private final Map<File, DescriptorStore.Reader> attachedStores = new ConcurrentHashMap<>();
+    private final Object diskLock = new Object();
+    private long memoryBytes;
+    private volatile long diskBudget = DEFAULT_DISK_BUDGET;
+    private long diskBytes = -1; // Measured on the first write
+
+    /**
+     * @param cacheRoot Cache directory of the app or runner; entries go in a subdirectory
+     * @return Process-wide cache, created on first use
+     */
+    public static synchronized DescriptorCache getInstance(File cacheRoot) {
+        if (instance == null) {
+            File directory = new File(cacheRoot, CACHE_DIR);
+            instance = new DescriptorCache(directory, DEFAULT_MEMORY_BUDGET, MetadataCache.getInstance(cacheRoot));
+        }
+        return instance;
+    }
+
+    /**
+     * Cache whose content hashes are kept in memory only
+     */
+    public DescriptorCache(File directory, long memoryBudget) {
+        this(directory, memoryBudget, new MetadataCache(null));
+    }
+
+    /**
+     * @param metadata Source of the content hashes, shared with metadata lookups
+     */
+    public DescriptorCache(File directory, long memoryBudget, MetadataCache metadata) {
+        this.directory = directory;
+        this.memoryBudget = memoryBudget;
+        this.metadata = metadata;
+        if (!directory.exists() && !directory.mkdirs()) {
+            MatchLog.w(TAG, "Could not create cache directory: " + directory);
+        }
+    }
+
+    /**
+     * Build the cache key for one image processed by one algorithm
+     *
+     * @param algorithm Algorithm name of the matcher
+     * @param preprocessing Description of the resize applied before detection
+     * @param imageId Id of the image, see {@link ImageSource#getId()}
+     * @param contentHash Hash of the image bytes
+     * @return Cache key
+     */
+    public static String buildKey(String algorithm, String preprocessing, String imageId, String contentHash) {
+        return algorithm + "|" + preprocessing + "|" + imageId + "|" + contentHash;
+    }
+
+    /**
+     * Get the SHA-1 of the image content, computed with the metadata in the same read
+     * and reused across runs through the {@link MetadataCache}
+     *
+     * @param image The image
+     * @return Hex encoded content hash
+     */
+    public String getContentHash(ImageSource image) throws IOException {
+        return metadata.get(image).getContentHash();
+    }
+
+    /**
+     * Global signature of an image, shared by every algorithm and kept on disk with the
+     * features, so a later run ranks references without decoding them again
+     *
+     * @param image The image
+     * @return Signature from {@link GlobalSignature#compute}, or null if not computed yet
+     */
+    public float[] getSignature(ImageSource image) throws IOException {
+        String contentHash = getContentHash(image);
+        float[] signature = signatures.get(contentHash);
+        if (signature == null) {
+            signature = readSignature(contentHash);
+            if (signature != null) {
+                signatures.put(contentHash, signature);
+            }
+        }
+        return signature;
+    }
+
+    public void putSignature(ImageSource image, float[] signature) throws IOException {
+        String contentHash = getContentHash(image);
+        if (signatures.put(contentHash, signature) == null) {
+            writeSignature(contentHash, signature);
+        }
+    }
+
+    /**
+     * Look up features in memory, then on disk, computing and storing them on a miss.
+     * Concurrent requests for the same key wait for a single computation.
+     *
+     * @param key Cache key from {@link #buildKey}
+     * @param loader Computes the features on a miss
+     * @return Cached or freshly computed features; callers must not release them
+     */
+    public ImageFeatures getOrCompute(String key, Callable<ImageFeatures> loader) throws IOException {
+        ImageFeatures features = getFromMemory(key);
+        if (features != null) {
+            return features;
+        }
+
+        FutureTask<ImageFeatures> task = new FutureTask<>(() -> {
+            ImageFeatures loaded = readFromDisk(key);
+            if (loaded == null) {
+                loaded = loader.call();
+                writeToDisk(key, loaded);
+            }
+            putInMemory(key, loaded);
+            return loaded;
+        });
+
+        FutureTask<ImageFeatures> existing = inFlight.putIfAbsent(key, task);
+        if (existing == null) {
+            existing = task;
+            task.run();
+            inFlight.remove(key);
+        }
+
+        try {
+            return existing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for " + key, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Failed to compute features for " + key, cause);
+        }
+    }
+
+    /**
+     * Serve lookups from the packed store in a file before the per-entry files, attaching
+     * it once per process. Store keys must have been built with {@link #buildKey}.
+     *
+     * @param storeFile Store from {@link #getStoreFile}
+     * @return Whether the store is attached; false if the file does not exist or cannot be read
+     */
+    public boolean attachStore(File storeFile) {
+        if (attachedStores.containsKey(storeFile)) {
+            return true;
+        }
+        if (!storeFile.exists()) {
+            return false;
+        }
+
+        try {
+            DescriptorStore.Reader store = DescriptorStore.Reader.open(storeFile);
+            if (attachedStores.putIfAbsent(storeFile, store) == null) {
+                stores.add(store);
+                storeFile.setLastModified(System.currentTimeMillis());
+            }
+            return true;
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Discarding unreadable descriptor store: " + storeFile, e);
+            storeFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * @param storeFile Store from {@link #getStoreFile}
+     * @return The store in the file, attached first if needed, or null if there is none
+     */
+    public DescriptorStore.Reader getStore(File storeFile) {
+        return attachStore(storeFile) ? attachedStores.get(storeFile) : null;
+    }
+
+    /**
+     * Location of the packed store of a reference set, in the cache directory
+     *
+     * @param settings Algorithm and preprocessing the features were extracted with
+     * @param images Reference set, in order
+     * @return Store file, which may not exist yet
+     */
+    public File getStoreFile(String settings, List<ImageSource> images) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(settings.getBytes(StandardCharsets.UTF_8));
+        for (ImageSource image : images) {
+            digest.update((byte) 0);
+            digest.update(image.getId().getBytes(StandardCharsets.UTF_8));
+        }
+        return new File(directory, toHex(digest.digest()) + STORE_SUFFIX);
+    }
+
+    /**
+     * Move a packed store written to a temporary file into the disk tier
+     *
+     * @param temp Store file just written
+     * @param storeFile Destination from {@link #getStoreFile}
+     */
+    void commitStore(File temp, File storeFile) throws IOException {
+        long length = temp.length();
+        if ((storeFile.exists() && !storeFile.delete()) || !temp.renameTo(storeFile)) {
+            temp.delete();
+            throw new IOException("Could not move descriptor store into place: " + storeFile);
+        }
+        onDiskWrite(length);
+    }
+
+    /**
+     * @param diskBudget Bytes the disk tier may use before its least recently used files are deleted
+     */
+    public void setDiskBudget(long diskBudget) {
+        this.diskBudget = diskBudget;
+    }
+
+    public synchronized void clearMemory() {
+        memory.clear();
+        memoryBytes = 0;
+    }
+
+    public void clear() {
+        clearMemory();
+        metadata.clear();
+        signatures.clear();
+        stores.clear();
+        attachedStores.clear();
+        synchronized (diskLock) {
+            diskBytes = -1;
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!file.delete()) {
+                    MatchLog.w(TAG, "Could not delete cache file: " + file);
+                }
+            }
+        }
+    }
+
+    private synchronized ImageFeatures getFromMemory(String key) {
+        return memory.get(key);
+    }
+
+    private synchronized void putInMemory(String key, ImageFeatures features) {
+        ImageFeatures previous = memory.put(key, features);
+        if (previous != null) {
+            memoryBytes -= previous.sizeInBytes();
+        }
+        memoryBytes += features.sizeInBytes();
+
+        // Evicted entries may still be in use by another matcher thread, so their
+        // native buffers are left to the Mat finalizers rather than released here
+        Iterator<Map.Entry<String, ImageFeatures>> iterator = memory.entrySet().iterator();
+        while (memoryBytes > memoryBudget && memory.size() > 1 && iterator.hasNext()) {
+            Map.Entry<String, ImageFeatures> eldest = iterator.next();
+            if (eldest.getKey().equals(key)) continue;
+            memoryBytes -= eldest.getValue().sizeInBytes();
+            iterator.remove();
+        }
+    }
+
+    private File fileFor(String key) {
+        try {
+            byte[] digest = newDigest().digest(key.getBytes(StandardCharsets.UTF_8));
+            return new File(directory, toHex(digest) + ".bin");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ImageFeatures readFromDisk(String key) {
+        for (DescriptorStore.Reader store : stores) {
+            int index = store.indexOf(key);
+            if (index >= 0) {
+                return store.getFeatures(index);
+            }
+        }
+
+        File file = fileFor(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DescriptorStore.Reader reader = DescriptorStore.Reader.open(file)) {
+            int index = reader.indexOf(key);
+            if (index < 0) return null;
+            // The modification time orders files for trimming
+            file.setLastModified(System.currentTimeMillis());
+            return reader.getFeatures(index);
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Discarding unreadable cache file: " + file, e);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, ImageFeatures features) {
+        File file = fileFor(key);
+        File temp = new File(directory, file.getName() + ".tmp");
+
+        try (DescriptorStore.Writer writer = new DescriptorStore.Writer(temp)) {
+            writer.add(key, features);
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not write cache file: " + file, e);
+            temp.delete();
+            return;
+        }
+
+        long length = temp.length();
+        if (!temp.renameTo(file)) {
+            MatchLog.w(TAG, "Could not move cache file into place: " + file);
+            temp.delete();
+            return;
+        }
+        onDiskWrite(length);
+    }
+
+    /**
+     * Account for a file added to the disk tier, deleting the least recently used files
+     * down to three quarters of the budget once the budget is exceeded
+     */
+    private void onDiskWrite(long length) {
+        synchronized (diskLock) {
+            if (diskBytes < 0) {
+                diskBytes = 0;
+                File[] files = directory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        diskBytes += file.length();
+                    }
+                }
+            } else {
+                diskBytes += length;
+            }
+            if (diskBytes <= diskBudget) return;
+
+            File[] files = directory.listFiles();
+            if (files == null) return;
+            long[] lastModified = new long[files.length];
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < files.length; i++) {
+                lastModified[i] = files[i].lastModified();
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> lastModified[i]));
+
+            long target = diskBudget / 4 * 3;
+            for (int i = 0; i < order.length && diskBytes > target; i++) {
+                File file = files[order[i]];
+                // Attached stores stay mapped, and temporary files are still being written
+                if (attachedStores.containsKey(file) || file.getName().endsWith(".tmp")) continue;
+                long fileLength = file.length();
+                if (file.delete()) {
+                    diskBytes -= fileLength;
+                }
+            }
+            MatchLog.i(TAG, "Trimmed disk cache to " + diskBytes + " bytes");
+        }
+    }
+
+    private File signatureFileFor(String contentHash) {
+        return new File(directory, contentHash + SIGNATURE_SUFFIX);
+    }
+
+    private float[] readSignature(String contentHash) {
+        File file = signatureFileFor(contentHash);
+        if (!file.exists()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            float[] signature = new float[in.readInt()];
+            for (int i = 0; i < signature.length; i++) {
+                signature[i] = in.readFloat();
+            }
+            return signature;
+        } catch (IOException | NegativeArraySizeException e) {
+            MatchLog.w(TAG, "Discarding unreadable signature file: " + file, e);
+            return null;
+        }
+    }
+
+    private void writeSignature(String contentHash, float[] signature) {
+        File file = signatureFileFor(contentHash);
+        File temp = new File(directory, file.getName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(signature.length);
+            for (float value : signature) {
+                out.writeFloat(value);
+            }
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not write signature file: " + file, e);
+            temp.delete();
+            return;
+        }
+
+        long length = temp.length();
+        if (!temp.renameTo(file)) {
+            MatchLog.w(TAG, "Could not move signature file into place: " + file);
+            temp.delete();
+            return;
+        }
+        onDiskWrite(length);
+    }
+
+    static MessageDigest newDigest() throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException("SHA-1 not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xF, 16));
+            builder.append(Character.forDigit(b & 0xF, 16));
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,402 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary file of keypoints and descriptors for a set of images.
+ *
+ * Layout (little-endian):
+ * <pre>
+ * header      magic, version, descriptor type, row size, image count, total rows,
+ *             descriptor/keypoint/table offsets
+ * descriptors rows of every image back to back (CV_8U for ORB/AKAZE, CV_32F for SIFT)
+ * keypoints   7 floats per keypoint, same layout as MatOfKeyPoint
+ * keys        UTF-8 image keys
+ * table       one fixed-size entry per image: first row, row count, first keypoint,
+ *             keypoint count, key offset and length
+ * </pre>
+ * The reader memory-maps the file, so descriptor rows can be read in place without
+ * deserializing one object per image.
+ */
+public class DescriptorStore {
+    private static final int MAGIC = 0x56474453; // "VGDS"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 48;
+    private static final int ENTRY_SIZE = 32;
+    private static final int KEYPOINT_FLOATS = 7;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private DescriptorStore() {
+    }
+
+    /**
+     * Appends images to a new store file. Entries are held in memory as offsets only;
+     * descriptor rows are written as they are added.
+     */
+    public static class Writer implements Closeable {
+        private final File file;
+        private final File keypointFile;
+        private final RandomAccessFile output;
+        private final RandomAccessFile keypointOutput;
+        private final List<Entry> entries = new ArrayList<>();
+        private int descriptorType = -1;
+        private int rowBytes;
+        private int totalRows;
+        private int totalKeypoints;
+        private boolean closed;
+
+        public Writer(File file) throws IOException {
+            this.file = file;
+            this.keypointFile = new File(file.getPath() + ".kp");
+            this.output = new RandomAccessFile(file, "rw");
+            this.keypointOutput = new RandomAccessFile(keypointFile, "rw");
+            output.setLength(0);
+            keypointOutput.setLength(0);
+            output.seek(HEADER_SIZE);
+        }
+
+        /**
+         * Append the features of one image
+         *
+         * @param key Key the image is looked up by
+         * @param features Keypoints and descriptors to store
+         */
+        public void add(String key, ImageFeatures features) throws IOException {
+            Mat descriptors = features.getDescriptors();
+            int rows = descriptors.empty() ? 0 : descriptors.rows();
+
+            if (rows > 0) {
+                int type = descriptors.type();
+                int bytes = descriptors.cols() * (CvType.depth(type) == CvType.CV_32F ? 4 : 1);
+                if (descriptorType == -1) {
+                    descriptorType = type;
+                    rowBytes = bytes;
+                } else if (descriptorType != type || rowBytes != bytes) {
+                    throw new IOException("Descriptor layout of " + key + " does not match the store");
+                }
+                output.getChannel().write(toBuffer(descriptors, rows * rowBytes));
+            }
+
+            MatOfKeyPoint keypoints = features.getKeypoints();
+            int keypointCount = (int) keypoints.total();
+            if (keypointCount > 0) {
+                float[] keypointData = new float[keypointCount * KEYPOINT_FLOATS];
+                keypoints.get(0, 0, keypointData);
+                ByteBuffer buffer = ByteBuffer.allocate(keypointData.length * 4).order(ORDER);
+                buffer.asFloatBuffer().put(keypointData);
+                keypointOutput.getChannel().write(buffer);
+            }
+
+            entries.add(new Entry(key, totalRows, rows, totalKeypoints, keypointCount));
+            totalRows += rows;
+            totalKeypoints += keypointCount;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+
+            try {
+                FileChannel channel = output.getChannel();
+
+                // Keep the keypoint floats 4-byte aligned for the reader's float views
+                long keypointsOffset = align(channel.position());
+                channel.position(keypointsOffset);
+                FileChannel keypointChannel = keypointOutput.getChannel();
+                long transferred = 0;
+                long keypointBytes = keypointChannel.size();
+                while (transferred < keypointBytes) {
+                    transferred += keypointChannel.transferTo(transferred, keypointBytes - transferred, channel);
+                }
+                channel.position(keypointsOffset + keypointBytes);
+
+                long[] keyOffsets = new long[entries.size()];
+                byte[][] keyBytes = new byte[entries.size()][];
+                for (int i = 0; i < entries.size(); i++) {
+                    keyOffsets[i] = channel.position();
+                    keyBytes[i] = entries.get(i).key.getBytes(StandardCharsets.UTF_8);
+                    channel.write(ByteBuffer.wrap(keyBytes[i]));
+                }
+
+                long tableOffset = align(channel.position());
+                ByteBuffer table = ByteBuffer.allocate(entries.size() * ENTRY_SIZE).order(ORDER);
+                for (int i = 0; i < entries.size(); i++) {
+                    Entry entry = entries.get(i);
+                    table.putInt(entry.firstRow);
+                    table.putInt(entry.rowCount);
+                    table.putInt(entry.firstKeypoint);
+                    table.putInt(entry.keypointCount);
+                    table.putLong(keyOffsets[i]);
+                    table.putInt(keyBytes[i].length);
+                    table.putInt(0);
+                }
+                table.flip();
+                channel.position(tableOffset);
+                channel.write(table);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(Math.max(descriptorType, 0));
+                header.putInt(rowBytes);
+                header.putInt(entries.size());
+                header.putInt(totalRows);
+                header.putLong(HEADER_SIZE);
+                header.putLong(keypointsOffset);
+                header.putLong(tableOffset);
+                header.flip();
+                channel.write(header, 0);
+                channel.force(false);
+            } finally {
+                output.close();
+                keypointOutput.close();
+                keypointFile.delete();
+            }
+        }
+
+        private static ByteBuffer toBuffer(Mat descriptors, int byteCount) {
+            ByteBuffer buffer = ByteBuffer.allocate(byteCount).order(ORDER);
+            if (descriptors.depth() == CvType.CV_32F) {
+                float[] data = new float[byteCount / 4];
+                descriptors.get(0, 0, data);
+                buffer.asFloatBuffer().put(data);
+            } else {
+                descriptors.get(0, 0, buffer.array());
+            }
+            return buffer;
+        }
+
+        private static long align(long position) {
+            return (position + 7) & ~7L;
+        }
+    }
+
+    /**
+     * Read-only, memory-mapped view of a store file
+     */
+    public static class Reader implements Closeable {
+        private final MappedByteBuffer buffer;
+        private final int descriptorType;
+        private final int rowBytes;
+        private final int imageCount;
+        private final int totalRows;
+        private final long descriptorsOffset;
+        private final long keypointsOffset;
+        private final long tableOffset;
+        private final String[] keys;
+        private final Map<String, Integer> indexByKey = new HashMap<>();
+
+        private Reader(MappedByteBuffer buffer) throws IOException {
+            this.buffer = buffer;
+            buffer.order(ORDER);
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+                throw new IOException("Not a descriptor store");
+            }
+            if (buffer.getInt(4) != VERSION) {
+                throw new IOException("Unsupported descriptor store version " + buffer.getInt(4));
+            }
+            descriptorType = buffer.getInt(8);
+            rowBytes = buffer.getInt(12);
+            imageCount = buffer.getInt(16);
+            totalRows = buffer.getInt(20);
+            descriptorsOffset = buffer.getLong(24);
+            keypointsOffset = buffer.getLong(32);
+            tableOffset = buffer.getLong(40);
+
+            // Every offset is checked once here, so a truncated or corrupt file fails to open
+            // instead of failing later in a match
+            boolean floats = CvType.depth(descriptorType) == CvType.CV_32F;
+            checkRange(rowBytes >= 0 && (!floats || rowBytes % 4 == 0) && imageCount >= 0 && totalRows >= 0,
+                    "header");
+            checkRange(descriptorsOffset, (long) totalRows * rowBytes, "descriptors");
+            checkRange(keypointsOffset % 4 == 0, "keypoint alignment");
+            checkRange(tableOffset, (long) imageCount * ENTRY_SIZE, "table");
+
+            keys = new String[imageCount];
+            for (int i = 0; i < imageCount; i++) {
+                int entry = entryOffset(i);
+                int firstRow = buffer.getInt(entry);
+                int rowCount = buffer.getInt(entry + 4);
+                int firstKeypoint = buffer.getInt(entry + 8);
+                int keypointCount = buffer.getInt(entry + 12);
+                long keyOffset = buffer.getLong(entry + 16);
+                int keyLength = buffer.getInt(entry + 24);
+                checkRange(firstRow >= 0 && rowCount >= 0 && (long) firstRow + rowCount <= totalRows,
+                        "rows of image " + i);
+                checkRange(firstKeypoint >= 0 && keypointCount >= 0, "keypoints of image " + i);
+                checkRange(keypointsOffset, ((long) firstKeypoint + keypointCount) * KEYPOINT_FLOATS * 4,
+                        "keypoints of image " + i);
+                checkRange(keyOffset, keyLength, "key of image " + i);
+
+                byte[] keyBytes = new byte[keyLength];
+                ByteBuffer view = buffer.duplicate();
+                view.position((int) keyOffset);
+                view.get(keyBytes);
+                keys[i] = new String(keyBytes, StandardCharsets.UTF_8);
+                indexByKey.put(keys[i], i);
+            }
+        }
+
+        public static Reader open(File file) throws IOException {
+            try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+                FileChannel channel = input.getChannel();
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("Descriptor store too large to map: " + file);
+                }
+                // The mapping stays valid after the channel is closed
+                return new Reader(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            }
+        }
+
+        public int size() {
+            return imageCount;
+        }
+
+        public String getKey(int index) {
+            return keys[index];
+        }
+
+        /**
+         * @return Index of the image stored under the key, or -1 if absent
+         */
+        public int indexOf(String key) {
+            Integer index = indexByKey.get(key);
+            return index != null ? index : -1;
+        }
+
+        public int getDescriptorType() {
+            return descriptorType;
+        }
+
+        public int getRowBytes() {
+            return rowBytes;
+        }
+
+        public int getTotalRows() {
+            return totalRows;
+        }
+
+        public int getFirstRow(int index) {
+            return buffer.getInt(entryOffset(index));
+        }
+
+        public int getRowCount(int index) {
+            return buffer.getInt(entryOffset(index) + 4);
+        }
+
+        /**
+         * Zero-copy view of the descriptor rows of one image
+         */
+        public ByteBuffer getDescriptorRows(int index) {
+            return slice(descriptorsOffset + (long) getFirstRow(index) * rowBytes,
+                    (long) getRowCount(index) * rowBytes);
+        }
+
+        /**
+         * Zero-copy view of the descriptor rows of every image, in store order
+         */
+        public ByteBuffer getAllDescriptorRows() {
+            return slice(descriptorsOffset, (long) totalRows * rowBytes);
+        }
+
+        /**
+         * Copy the features of one image into new Mats
+         */
+        public ImageFeatures getFeatures(int index) {
+            int entry = entryOffset(index);
+            int rows = buffer.getInt(entry + 4);
+            int firstKeypoint = buffer.getInt(entry + 8);
+            int keypointCount = buffer.getInt(entry + 12);
+
+            MatOfKeyPoint keypoints = new MatOfKeyPoint();
+            if (keypointCount > 0) {
+                float[] keypointData = new float[keypointCount * KEYPOINT_FLOATS];
+                slice(keypointsOffset + (long) firstKeypoint * KEYPOINT_FLOATS * 4, keypointData.length * 4L)
+                        .asFloatBuffer().get(keypointData);
+                keypoints.alloc(keypointCount);
+                keypoints.put(0, 0, keypointData);
+            }
+
+            Mat descriptors = new Mat();
+            if (rows > 0) {
+                ByteBuffer rowData = getDescriptorRows(index);
+                if (CvType.depth(descriptorType) == CvType.CV_32F) {
+                    int cols = rowBytes / 4;
+                    float[] data = new float[rows * cols];
+                    rowData.asFloatBuffer().get(data);
+                    descriptors.create(rows, cols, descriptorType);
+                    descriptors.put(0, 0, data);
+                } else {
+                    byte[] data = new byte[rows * rowBytes];
+                    rowData.get(data);
+                    descriptors.create(rows, rowBytes, descriptorType);
+                    descriptors.put(0, 0, data);
+                }
+            }
+            return new ImageFeatures(keypoints, descriptors);
+        }
+
+        @Override
+        public void close() {
+            // Mapped buffers are unmapped by the garbage collector
+        }
+
+        /**
+         * @throws IOException If the bytes [offset, offset + length) are not all in the file
+         */
+        private void checkRange(long offset, long length, String what) throws IOException {
+            long capacity = buffer.capacity();
+            checkRange(offset >= 0 && length >= 0 && offset <= capacity && length <= capacity - offset, what);
+        }
+
+        private static void checkRange(boolean valid, String what) throws IOException {
+            if (!valid) {
+                throw new IOException("Corrupt descriptor store: " + what + " out of range");
+            }
+        }
+
+        private int entryOffset(int index) {
+            return (int) tableOffset + index * ENTRY_SIZE;
+        }
+
+        private ByteBuffer slice(long offset, long length) {
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) offset);
+            view.limit((int) (offset + length));
+            return view.slice().order(ORDER);
+        }
+    }
+
+    private static class Entry {
+        final String key;
+        final int firstRow;
+        final int rowCount;
+        final int firstKeypoint;
+        final int keypointCount;
+
+        Entry(String key, int firstRow, int rowCount, int firstKeypoint, int keypointCount) {
+            this.key = key;
+            this.firstRow = firstRow;
+            this.rowCount = rowCount;
+            this.firstKeypoint = firstKeypoint;
+            this.keypointCount = keypointCount;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+
+/**
+ * Reads the JPEG header fields the pipeline needs without decoding the image: frame
+ * dimensions, EXIF orientation and GPS coordinates.
+ *
+ * Only the segments before the compressed data are read, so this costs a few kilobytes
+ * of I/O per image. Used where android.media.ExifInterface is not available.
+ */
+public class ExifReader {
+    private static final String TAG = "ExifReader";
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_APP1 = 0xE1;
+
+    private static final int TAG_ORIENTATION = 0x0112;
+    private static final int TAG_GPS_IFD = 0x8825;
+    private static final int TAG_GPS_LATITUDE_REF = 1;
+    private static final int TAG_GPS_LATITUDE = 2;
+    private static final int TAG_GPS_LONGITUDE_REF = 3;
+    private static final int TAG_GPS_LONGITUDE = 4;
+    private static final int TAG_GPS_ALTITUDE_REF = 5;
+    private static final int TAG_GPS_ALTITUDE = 6;
+    private static final int TYPE_RATIONAL = 5;
+    // Digits a long holds without overflow
+    private static final int MAX_DIGITS = 18;
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9,
+            1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18};
+
+    public static final int ORIENTATION_NORMAL = 1;
+
+    /**
+     * Header fields of one image; dimensions are 0 and location is absent when not found
+     */
+    public static class Metadata {
+        private int width;
+        private int height;
+        private int orientation = ORIENTATION_NORMAL;
+        private boolean hasLocation;
+        private double latitude;
+        private double longitude;
+        private double altitude = Double.NaN;
+        private String contentHash;
+
+        Metadata() {
+        }
+
+        /**
+         * @param coordinates [latitude, longitude], or null without GPS data
+         * @param altitude Meters above sea level, NaN if unknown
+         * @param contentHash Hex SHA-1 of the image bytes, or null if not computed
+         */
+        public Metadata(int width, int height, int orientation, double[] coordinates, double altitude,
+                        String contentHash) {
+            this.width = width;
+            this.height = height;
+            this.orientation = orientation;
+            this.hasLocation = coordinates != null;
+            if (coordinates != null) {
+                this.latitude = coordinates[0];
+                this.longitude = coordinates[1];
+            }
+            this.altitude = altitude;
+            this.contentHash = contentHash;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public int getOrientation() {
+            return orientation;
+        }
+
+        public boolean hasLocation() {
+            return hasLocation;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        public boolean hasAltitude() {
+            return !Double.isNaN(altitude);
+        }
+
+        /**
+         * @return Meters above sea level, negative below it, NaN if unknown
+         */
+        public double getAltitude() {
+            return altitude;
+        }
+
+        /**
+         * @return [latitude, longitude], or null without GPS data, like ImageUtils.getImageCoordinates
+         */
+        public double[] getCoordinates() {
+            return hasLocation ? new double[] {latitude, longitude} : null;
+        }
+
+        /**
+         * @return Hex SHA-1 of the image bytes, or null if only the header was read
+         */
+        public String getContentHash() {
+            return contentHash;
+        }
+    }
+
+    /**
+     * Read the metadata of a JPEG stream; other formats yield empty metadata
+     *
+     * @param inputStream Encoded image, positioned at its start; not closed
+     * @return Metadata found before the first scan
+     */
+    public static Metadata read(InputStream inputStream) throws IOException {
+        Metadata metadata = new Metadata();
+        DataInputStream in = new DataInputStream(inputStream);
+        if (in.readUnsignedByte() != 0xFF || in.readUnsignedByte() != MARKER_SOI) {
+            return metadata;
+        }
+
+        try {
+            while (true) {
+                int marker = nextMarker(in);
+                if (marker == MARKER_SOS || marker == MARKER_EOI) {
+                    break;
+                }
+                int length = in.readUnsignedShort() - 2;
+                if (length < 0) break;
+
+                if (marker == MARKER_APP1) {
+                    byte[] segment = new byte[length];
+                    in.readFully(segment);
+                    if (isExif(segment)) {
+                        parseTiff(segment, 6, metadata);
+                    }
+                } else if (isStartOfFrame(marker) && length >= 5) {
+                    in.readUnsignedByte(); // sample precision
+                    metadata.height = in.readUnsignedShort();
+                    metadata.width = in.readUnsignedShort();
+                    skipFully(in, length - 5);
+                } else {
+                    skipFully(in, length);
+                }
+            }
+        } catch (EOFException e) {
+            // Truncated header; keep what was found
+        }
+        return metadata;
+    }
+
+    /**
+     * Read the metadata and hash the whole content in a single pass over the stream
+     *
+     * @param inputStream Encoded image, positioned at its start; read to the end but not closed
+     * @return Metadata with {@link Metadata#getContentHash()} set
+     */
+    public static Metadata readWithHash(InputStream inputStream) throws IOException {
+        MessageDigest digest = DescriptorCache.newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        DigestInputStream in = new DigestInputStream(inputStream, digest) {
+            // Skipped bytes would bypass the digest, so read them instead
+            @Override
+            public long skip(long n) throws IOException {
+                int read = read(buffer, 0, (int) Math.min(n, buffer.length));
+                return Math.max(read, 0);
+            }
+        };
+        Metadata metadata;
+        try {
+            metadata = read(in);
+        } catch (EOFException e) {
+            // Shorter than a JPEG signature; still hashed
+            metadata = new Metadata();
+        }
+
+        // The rest of the image only feeds the hash
+        while (in.read(buffer) != -1) {
+            // Digested as it is read
+        }
+        metadata.contentHash = DescriptorCache.toHex(digest.digest());
+        return metadata;
+    }
+
+    /**
+     * Parse EXIF GPS coordinate format (dd/1,mm/1,ss/1) to decimal degrees.
+     * Scans the string in place: no split, substring or boxed intermediate.
+     * 
+     * @param exifCoordinate The EXIF coordinate string
+     * @return Decimal degrees value, NaN if malformed
+     */
+    public static double parseCoordinate(String exifCoordinate) {
+        if (exifCoordinate == null) {
+            return Double.NaN;
+        }
+        int first = exifCoordinate.indexOf(',');
+        int second = first >= 0 ? exifCoordinate.indexOf(',', first + 1) : -1;
+        if (second < 0 || exifCoordinate.indexOf(',', second + 1) >= 0) {
+            return malformed(exifCoordinate);
+        }
+
+        double degrees = parseRational(exifCoordinate, 0, first);
+        double minutes = parseRational(exifCoordinate, first + 1, second);
+        double seconds = parseRational(exifCoordinate, second + 1, exifCoordinate.length());
+        double value = degrees + (minutes / 60.0) + (seconds / 3600.0);
+        return Double.isNaN(value) ? malformed(exifCoordinate) : value;
+    }
+
+    /**
+     * Parse one EXIF RATIONAL attribute (num/den), such as the GPS altitude
+     *
+     * @param exifRational The EXIF rational string; a plain decimal number is accepted too
+     * @return Its value, NaN if malformed or the denominator is zero
+     */
+    public static double parseRational(String exifRational) {
+        if (exifRational == null) {
+            return Double.NaN;
+        }
+        double value = parseRational(exifRational, 0, exifRational.length());
+        return Double.isNaN(value) ? malformed(exifRational) : value;
+    }
+
+    private static double parseRational(String text, int start, int end) {
+        int slash = start;
+        while (slash < end && text.charAt(slash) != '/') {
+            slash++;
+        }
+        double numerator = parseDecimal(text, start, slash);
+        if (slash == end) {
+            return numerator;
+        }
+        double denominator = parseDecimal(text, slash + 1, end);
+        return denominator != 0 ? numerator / denominator : Double.NaN;
+    }
+
+    /**
+     * Parse [-]digits[.digits] between two indices, ignoring surrounding spaces
+     */
+    private static double parseDecimal(String text, int start, int end) {
+        while (start < end && text.charAt(start) == ' ') start++;
+        while (end > start && text.charAt(end - 1) == ' ') end--;
+        boolean negative = start < end && text.charAt(start) == '-';
+        if (negative) start++;
+        if (start == end) {
+            return Double.NaN;
+        }
+
+        long digits = 0;
+        int digitCount = 0;
+        int fractionDigits = -1;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (c >= '0' && c <= '9' && digitCount < MAX_DIGITS) {
+                digits = digits * 10 + (c - '0');
+                digitCount++;
+                if (fractionDigits >= 0) fractionDigits++;
+            } else {
+                return Double.NaN;
+            }
+        }
+        if (digitCount == 0) {
+            return Double.NaN;
+        }
+
+        double value = fractionDigits > 0 ? digits / POWERS_OF_TEN[fractionDigits] : digits;
+        return negative ? -value : value;
+    }
+
+    private static double malformed(String exifValue) {
+        MatchLog.w(TAG, "Malformed EXIF value: " + exifValue);
+        return Double.NaN;
+    }
+
+    private static int nextMarker(DataInputStream in) throws IOException {
+        int b = in.readUnsignedByte();
+        while (b != 0xFF) {
+            b = in.readUnsignedByte();
+        }
+        // Any number of 0xFF fill bytes may precede the marker code
+        while (b == 0xFF) {
+            b = in.readUnsignedByte();
+        }
+        return b;
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    private static boolean isExif(byte[] segment) {
+        return segment.length > 14 && segment[0] == 'E' && segment[1] == 'x' && segment[2] == 'i'
+                && segment[3] == 'f' && segment[4] == 0 && segment[5] == 0;
+    }
+
+    private static void parseTiff(byte[] data, int tiffStart, Metadata metadata) {
+        Tiff tiff = new Tiff(data, tiffStart);
+        if (!tiff.valid()) return;
+
+        int ifd0 = tiff.offset(4);
+        int gpsIfd = -1;
+        int entries = tiff.entryCount(ifd0);
+        for (int i = 0; i < entries; i++) {
+            int entry = ifd0 + 2 + i * 12;
+            int tag = tiff.u16(entry);
+            if (tag == TAG_ORIENTATION) {
+                metadata.orientation = tiff.u16(entry + 8);
+            } else if (tag == TAG_GPS_IFD) {
+                gpsIfd = tiff.offset(entry + 8);
+            }
+        }
+        if (gpsIfd <= 0) return;
+
+        char latitudeRef = 0;
+        char longitudeRef = 0;
+        double latitude = Double.NaN;
+        double longitude = Double.NaN;
+        int altitudeRef = 0;
+        double altitude = Double.NaN;
+        entries = tiff.entryCount(gpsIfd);
+        for (int i = 0; i < entries; i++) {
+            int entry = gpsIfd + 2 + i * 12;
+            switch (tiff.u16(entry)) {
+                case TAG_GPS_LATITUDE_REF:
+                    latitudeRef = (char) tiff.u8(entry + 8);
+                    break;
+                case TAG_GPS_LATITUDE:
+                    if (tiff.isRational(entry, 3)) latitude = tiff.degrees(tiff.offset(entry + 8));
+                    break;
+                case TAG_GPS_LONGITUDE_REF:
+                    longitudeRef = (char) tiff.u8(entry + 8);
+                    break;
+                case TAG_GPS_LONGITUDE:
+                    if (tiff.isRational(entry, 3)) longitude = tiff.degrees(tiff.offset(entry + 8));
+                    break;
+                case TAG_GPS_ALTITUDE_REF:
+                    altitudeRef = tiff.u8(entry + 8);
+                    break;
+                case TAG_GPS_ALTITUDE:
+                    if (tiff.isRational(entry, 1)) altitude = tiff.rational(tiff.offset(entry + 8));
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        // Reference 1 means below sea level
+        metadata.altitude = altitudeRef == 1 ? -altitude : altitude;
+        if (latitudeRef == 0 || longitudeRef == 0 || Double.isNaN(latitude) || Double.isNaN(longitude)) {
+            return;
+        }
+        // If southern hemisphere or western, the coordinate is negative
+        metadata.latitude = latitudeRef == 'S' ? -latitude : latitude;
+        metadata.longitude = longitudeRef == 'W' ? -longitude : longitude;
+        metadata.hasLocation = true;
+    }
+
+    private static void skipFully(DataInputStream in, int count) throws IOException {
+        while (count > 0) {
+            int skipped = in.skipBytes(count);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            count -= skipped;
+        }
+    }
+
+    /**
+     * Bounds-checked reads from a TIFF block with either byte order; offsets are relative
+     * to the TIFF header, and out-of-range reads return 0
+     */
+    private static class Tiff {
+        private final byte[] data;
+        private final int start;
+        private final boolean littleEndian;
+
+        Tiff(byte[] data, int start) {
+            this.data = data;
+            this.start = start;
+            this.littleEndian = data[start] == 'I' && data[start + 1] == 'I';
+        }
+
+        boolean valid() {
+            boolean bigEndian = data[start] == 'M' && data[start + 1] == 'M';
+            return (littleEndian || bigEndian) && u16(2) == 42;
+        }
+
+        int entryCount(int ifd) {
+            return ifd > 0 ? u16(ifd) : 0;
+        }
+
+        int u8(int offset) {
+            int index = start + offset;
+            return index >= 0 && index < data.length ? data[index] & 0xFF : 0;
+        }
+
+        int u16(int offset) {
+            int a = u8(offset);
+            int b = u8(offset + 1);
+            return littleEndian ? a | (b << 8) : (a << 8) | b;
+        }
+
+        long u32(int offset) {
+            long a = u16(offset);
+            long b = u16(offset + 2);
+            return littleEndian ? a | (b << 16) : (a << 16) | b;
+        }
+
+        /**
+         * A 32-bit offset field; offsets past the block read as 0 afterwards
+         */
+        int offset(int offset) {
+            return (int) Math.min(u32(offset), Integer.MAX_VALUE);
+        }
+
+        /**
+         * Three RATIONALs (degrees, minutes, seconds) as decimal degrees, NaN if malformed
+         */
+        double degrees(int offset) {
+            double degrees = rational(offset);
+            double minutes = rational(offset + 8);
+            double seconds = rational(offset + 16);
+            return degrees + (minutes / 60.0) + (seconds / 3600.0);
+        }
+
+        /**
+         * Whether an IFD entry holds at least count RATIONALs
+         */
+        boolean isRational(int entry, int count) {
+            return u16(entry + 2) == TYPE_RATIONAL && u32(entry + 4) >= count;
+        }
+
+        double rational(int offset) {
+            long numerator = u32(offset);
+            long denominator = u32(offset + 4);
+            return denominator != 0 ? numerator / (double) denominator : Double.NaN;
+        }
+    }
+}
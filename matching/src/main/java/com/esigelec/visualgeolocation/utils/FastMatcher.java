@@ -1,16 +1,29 @@
 package com.esigelec.visualgeolocation.utils;
 
-import android.content.Context;
 import org.opencv.core.DMatch;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.ORB;
-import org.opencv.features2d.Feature2D;
 
+/**
+ * FAST corners on the input scale only, ranked by their FAST score and described with
+ * ORB's rotated BRIEF. Unlike {@link OrbMatcher}, which runs an 8-level pyramid and ranks
+ * corners by Harris response, no scale pyramid or Harris score is computed, so its
+ * features are cheaper, differ from ORB's and are cached under their own key.
+ */
 public class FastMatcher extends BaseImageMatcher {
-    public FastMatcher(Context context) {
-        super(context,
-              ORB.create(), // Use ORB as both detector and descriptor
+    private static final int MAX_FEATURES = 500;
+    private static final float SCALE_FACTOR = 1.2f; // Unused with a single level
+    private static final int LEVELS = 1;
+    private static final int EDGE_THRESHOLD = 31;
+    private static final int WTA_K = 2;
+    private static final int PATCH_SIZE = 31;
+    private static final int FAST_THRESHOLD = 20;
+
+    public FastMatcher(DescriptorCache cache) {
+        super(cache,
+              ORB.create(MAX_FEATURES, SCALE_FACTOR, LEVELS, EDGE_THRESHOLD, 0, WTA_K, ORB.FAST_SCORE,
+                      PATCH_SIZE, FAST_THRESHOLD),
               DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING),
               "FAST");
     }
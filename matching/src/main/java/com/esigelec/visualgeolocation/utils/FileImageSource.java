@@ -0,0 +1,131 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Image stored as a local file, decoded with OpenCV's codecs.
+ *
+ * JPEGs are decoded at 1/2, 1/4 or 1/8 scale straight to grayscale when the target size
+ * allows it, mirroring the subsampled decode used in the app. EXIF orientation is
+ * ignored, as Android's BitmapFactory does.
+ */
+public class FileImageSource implements ImageSource {
+    private static final String[] EXTENSIONS = {".jpg", ".jpeg", ".png"};
+
+    private final File file;
+
+    public FileImageSource(File file) {
+        this.file = file;
+    }
+
+    /**
+     * List the images of a directory, sorted by name so runs are reproducible
+     *
+     * @param directory Directory holding JPEG or PNG images
+     * @return One source per image file
+     */
+    public static List<ImageSource> listDirectory(File directory) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + directory);
+        }
+        Arrays.sort(files);
+
+        List<ImageSource> images = new ArrayList<>();
+        for (File file : files) {
+            String name = file.getName().toLowerCase(Locale.US);
+            for (String extension : EXTENSIONS) {
+                if (file.isFile() && name.endsWith(extension)) {
+                    images.add(new FileImageSource(file));
+                    break;
+                }
+            }
+        }
+        return images;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String getId() {
+        return file.getAbsolutePath();
+    }
+
+    @Override
+    public String getName() {
+        return file.getName();
+    }
+
+    @Override
+    public InputStream openStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    @Override
+    public long getModifiedTime() {
+        return file.lastModified();
+    }
+
+    @Override
+    public long getLength() {
+        return file.length();
+    }
+
+    @Override
+    public Mat decodeGray(Size targetSize) throws IOException {
+        int flags = Imgcodecs.IMREAD_GRAYSCALE | Imgcodecs.IMREAD_IGNORE_ORIENTATION;
+        if (targetSize != null) {
+            ExifReader.Metadata metadata;
+            try (InputStream inputStream = openStream()) {
+                metadata = ExifReader.read(inputStream);
+            }
+            // Only JPEG headers give the size up front; other formats decode at full size
+            if (metadata.getWidth() > 0) {
+                int sampleSize = ImageSource.sampleSizeFor(metadata.getWidth(), metadata.getHeight(), targetSize);
+                flags = reducedGrayscaleFlag(sampleSize) | Imgcodecs.IMREAD_IGNORE_ORIENTATION;
+            }
+        }
+
+        Mat mat = Imgcodecs.imread(file.getAbsolutePath(), flags);
+        if (mat.empty()) {
+            throw new IOException("Cannot decode image: " + file);
+        }
+        return mat;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FileImageSource && file.equals(((FileImageSource) o).file);
+    }
+
+    @Override
+    public int hashCode() {
+        return file.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return file.toString();
+    }
+
+    private static int reducedGrayscaleFlag(int sampleSize) {
+        if (sampleSize >= 8) return Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8;
+        if (sampleSize >= 4) return Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4;
+        if (sampleSize >= 2) return Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2;
+        return Imgcodecs.IMREAD_GRAYSCALE;
+    }
+}
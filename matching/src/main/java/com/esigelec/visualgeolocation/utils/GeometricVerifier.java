@@ -0,0 +1,110 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+
+/**
+ * Checks that the matches of an image pair agree on one geometric transform.
+ *
+ * A homography (planar scenes, camera rotation) or a fundamental matrix (general 3D scenes)
+ * is estimated with OpenCV's RANSAC, which adapts its iteration count to the inlier ratio
+ * found so far and stops as soon as the requested confidence is reached, so pairs with
+ * many consistent matches finish in a few iterations. The number of inliers then replaces
+ * the raw match count as the pair's score.
+ */
+public class GeometricVerifier {
+    public enum Model { HOMOGRAPHY, FUNDAMENTAL }
+
+    // Layout of a KeyPoint in a MatOfKeyPoint buffer
+    private static final int KEYPOINT_FLOATS = 7;
+    private static final int X = 0;
+    private static final int Y = 1;
+
+    private static final double REPROJECTION_THRESHOLD = 3.0; // Pixels, at the matchers' 500x500 size
+    private static final double CONFIDENCE = 0.995;
+    private static final int MAX_ITERATIONS = 2000;
+
+    private final Model model;
+
+    public GeometricVerifier(Model model) {
+        this.model = model;
+    }
+
+    public Model getModel() {
+        return model;
+    }
+
+    /**
+     * @return Fewest correspondences the model can be estimated from
+     */
+    public int getMinimumMatches() {
+        return model == Model.HOMOGRAPHY ? 4 : 8;
+    }
+
+    /**
+     * Count the matches consistent with the best transform between two images
+     *
+     * @param testKeypoints Keypoints of the test image
+     * @param refKeypoints Keypoints of the reference image
+     * @param pairs Matches as consecutive (test keypoint index, reference keypoint index)
+     * @param pairCount Number of matches in pairs
+     * @return Number of inliers, 0 if the model cannot be estimated
+     */
+    public int countInliers(MatOfKeyPoint testKeypoints, MatOfKeyPoint refKeypoints, int[] pairs, int pairCount) {
+        if (pairCount < getMinimumMatches()) return 0;
+
+        float[] testBuffer = readKeypoints(testKeypoints);
+        float[] refBuffer = readKeypoints(refKeypoints);
+        float[] testPoints = new float[2 * pairCount];
+        float[] refPoints = new float[2 * pairCount];
+        for (int i = 0; i < pairCount; i++) {
+            int testIdx = pairs[2 * i] * KEYPOINT_FLOATS;
+            int refIdx = pairs[2 * i + 1] * KEYPOINT_FLOATS;
+            testPoints[2 * i] = testBuffer[testIdx + X];
+            testPoints[2 * i + 1] = testBuffer[testIdx + Y];
+            refPoints[2 * i] = refBuffer[refIdx + X];
+            refPoints[2 * i + 1] = refBuffer[refIdx + Y];
+        }
+
+        MatOfPoint2f src = new MatOfPoint2f();
+        MatOfPoint2f dst = new MatOfPoint2f();
+        src.alloc(pairCount);
+        dst.alloc(pairCount);
+        src.put(0, 0, testPoints);
+        dst.put(0, 0, refPoints);
+
+        Mat mask = new Mat();
+        Mat transform = model == Model.HOMOGRAPHY
+                ? Calib3d.findHomography(src, dst, Calib3d.RANSAC, REPROJECTION_THRESHOLD, mask,
+                        MAX_ITERATIONS, CONFIDENCE)
+                : Calib3d.findFundamentalMat(src, dst, Calib3d.FM_RANSAC, REPROJECTION_THRESHOLD,
+                        CONFIDENCE, MAX_ITERATIONS, mask);
+
+        int inliers = 0;
+        if (!transform.empty() && !mask.empty()) {
+            byte[] flags = new byte[(int) mask.total()];
+            mask.convertTo(mask, CvType.CV_8U);
+            mask.get(0, 0, flags);
+            for (byte flag : flags) {
+                if (flag != 0) inliers++;
+            }
+        }
+
+        src.release();
+        dst.release();
+        mask.release();
+        transform.release();
+        return inliers;
+    }
+
+    private static float[] readKeypoints(MatOfKeyPoint keypoints) {
+        float[] buffer = new float[(int) keypoints.total() * KEYPOINT_FLOATS];
+        if (buffer.length > 0) {
+            keypoints.get(0, 0, buffer);
+        }
+        return buffer;
+    }
+}
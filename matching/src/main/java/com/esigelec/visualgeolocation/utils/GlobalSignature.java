@@ -0,0 +1,99 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Utility class for compact whole-image signatures used to rank references before
+ * local-feature matching.
+ *
+ * The image is shrunk to a 32x32 thumbnail and described by 8-bin gradient orientation
+ * histograms over a 4x4 grid of cells, a tiny HOG/GIST-like descriptor of 128 floats.
+ * Signatures are L2-normalized, so comparing two of them is a single dot product.
+ */
+public class GlobalSignature {
+    private static final int THUMBNAIL = 32;
+    private static final int GRID = 4;
+    private static final int BINS = 8;
+    private static final int CELL = THUMBNAIL / GRID;
+    public static final int LENGTH = GRID * GRID * BINS;
+
+    /** Size to decode images to when only the signature is needed */
+    public static final Size DECODE_SIZE = new Size(4 * THUMBNAIL, 4 * THUMBNAIL);
+
+    /**
+     * Compute the signature of a grayscale image
+     *
+     * @param gray 8-bit single-channel image of any size
+     * @return Normalized signature of {@link #LENGTH} floats
+     */
+    public static float[] compute(Mat gray) {
+        Mat thumbnail = new Mat();
+        Imgproc.resize(gray, thumbnail, new Size(THUMBNAIL, THUMBNAIL), 0, 0, Imgproc.INTER_AREA);
+        thumbnail.convertTo(thumbnail, CvType.CV_32F);
+        float[] pixels = new float[THUMBNAIL * THUMBNAIL];
+        thumbnail.get(0, 0, pixels);
+        thumbnail.release();
+
+        float[] signature = new float[LENGTH];
+        for (int y = 0; y < THUMBNAIL; y++) {
+            for (int x = 0; x < THUMBNAIL; x++) {
+                // Central differences, clamped at the border
+                float dx = pixels[y * THUMBNAIL + Math.min(x + 1, THUMBNAIL - 1)]
+                        - pixels[y * THUMBNAIL + Math.max(x - 1, 0)];
+                float dy = pixels[Math.min(y + 1, THUMBNAIL - 1) * THUMBNAIL + x]
+                        - pixels[Math.max(y - 1, 0) * THUMBNAIL + x];
+                float magnitude = (float) Math.sqrt(dx * dx + dy * dy);
+                if (magnitude == 0) continue;
+
+                double angle = Math.atan2(dy, dx) + Math.PI;
+                int bin = Math.min(BINS - 1, (int) (angle * BINS / (2 * Math.PI)));
+                int cell = (y / CELL) * GRID + x / CELL;
+                signature[cell * BINS + bin] += magnitude;
+            }
+        }
+
+        // Square root damps dominant edges before normalizing
+        double norm = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            signature[i] = (float) Math.sqrt(signature[i]);
+            norm += signature[i] * signature[i];
+        }
+        if (norm > 0) {
+            float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int i = 0; i < LENGTH; i++) {
+                signature[i] *= scale;
+            }
+        }
+        return signature;
+    }
+
+    /**
+     * @return Cosine similarity of two signatures, between 0 and 1
+     */
+    public static float similarity(float[] a, float[] b) {
+        float dot = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            dot += a[i] * b[i];
+        }
+        return dot;
+    }
+
+    /**
+     * Rank references by signature similarity to a query
+     *
+     * @param query Signature of the query image
+     * @param references Signatures of the references
+     * @param topM Maximum number of references to keep
+     * @return Indices of the most similar references, best first
+     */
+    public static int[] rank(float[] query, float[][] references, int topM) {
+        float[] scores = new float[references.length];
+        for (int i = 0; i < references.length; i++) {
+            scores[i] = similarity(query, references[i]);
+        }
+        return CandidateIndex.topIndices(scores, topM);
+    }
+}
@@ -0,0 +1,39 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+/**
+ * Keypoints and descriptors extracted from a single image by one detector
+ */
+public class ImageFeatures {
+    private final MatOfKeyPoint keypoints;
+    private final Mat descriptors;
+
+    public ImageFeatures(MatOfKeyPoint keypoints, Mat descriptors) {
+        this.keypoints = keypoints;
+        this.descriptors = descriptors;
+    }
+
+    public MatOfKeyPoint getKeypoints() {
+        return keypoints;
+    }
+
+    public Mat getDescriptors() {
+        return descriptors;
+    }
+
+    /**
+     * Approximate native memory held by this feature set
+     *
+     * @return Size in bytes of the keypoint and descriptor buffers
+     */
+    public long sizeInBytes() {
+        return keypoints.total() * keypoints.elemSize() + descriptors.total() * descriptors.elemSize();
+    }
+
+    public void release() {
+        keypoints.release();
+        descriptors.release();
+    }
+}
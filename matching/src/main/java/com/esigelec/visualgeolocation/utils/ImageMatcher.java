@@ -0,0 +1,61 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.util.List;
+
+public interface ImageMatcher {
+    /** Number of results returned by {@link #findMatches(ImageSource, List)} */
+    int DEFAULT_TOP_K = 3;
+
+    /**
+     * Match a test image against reference images and keep the best results
+     *
+     * @param testImage Image to locate
+     * @param referenceImages Candidate references
+     * @return Up to {@link #DEFAULT_TOP_K} results, best first
+     */
+    default List<MatchResult> findMatches(ImageSource testImage, List<ImageSource> referenceImages) {
+        TopKCollector collector = new TopKCollector(DEFAULT_TOP_K);
+        findMatches(testImage, referenceImages, collector);
+        return collector.snapshot();
+    }
+
+    /**
+     * Match a test image against reference images, feeding each scored reference to a collector
+     *
+     * @param testImage Image to locate
+     * @param referenceImages Candidate references
+     * @param collector Receives every reported match as soon as it is scored
+     */
+    void findMatches(ImageSource testImage, List<ImageSource> referenceImages, TopKCollector collector);
+
+    /**
+     * Whether matching A against B always gives the same score as B against A
+     */
+    default boolean isSymmetric() {
+        return false;
+    }
+    
+    class MatchResult {
+        private final ImageSource image;
+        private final double similarity;
+        private final String algorithm;
+
+        public MatchResult(ImageSource image, double similarity, String algorithm) {
+            this.image = image;
+            this.similarity = similarity;
+            this.algorithm = algorithm;
+        }
+
+        public ImageSource getImage() {
+            return image;
+        }
+
+        public double getSimilarity() {
+            return similarity;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+    }
+} 
\ No newline at end of file
@@ -0,0 +1,111 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * An image the matching pipeline can read, independent of where it is stored.
+ *
+ * The app wraps content URIs; the headless runner wraps files. Each platform decodes
+ * with its own image codec, but both hand the matchers the same 8-bit grayscale Mat.
+ */
+public interface ImageSource {
+
+    /**
+     * @return Stable identifier, unique within a reference set; part of cache keys
+     */
+    String getId();
+
+    /**
+     * @return Short name shown in results and exports
+     */
+    String getName();
+
+    /**
+     * Open the encoded image bytes; the caller closes the stream
+     */
+    InputStream openStream() throws IOException;
+
+    /**
+     * Read the header metadata and the content hash in one pass over the encoded bytes.
+     * Called once per image by {@link MetadataCache}; use the cache rather than this.
+     *
+     * @return Metadata with its content hash set
+     */
+    default ExifReader.Metadata readMetadata() throws IOException {
+        try (InputStream inputStream = openStream()) {
+            return ExifReader.readWithHash(inputStream);
+        }
+    }
+
+    /**
+     * @return Last modification time in milliseconds, or 0 if unknown; cached metadata is
+     *         reused only while it matches, and only within the process when unknown
+     */
+    default long getModifiedTime() {
+        return 0;
+    }
+
+    /**
+     * @return Encoded size in bytes, or -1 if unknown; checked with the modification time
+     */
+    default long getLength() {
+        return -1;
+    }
+
+    /**
+     * Decode to a single-channel 8-bit Mat, subsampled toward the target size where the
+     * codec allows it (see {@link #sampleSizeFor})
+     *
+     * @param targetSize Size the image is resized to afterwards, or null for full resolution
+     * @return Grayscale image at least as large as the target size
+     */
+    Mat decodeGray(Size targetSize) throws IOException;
+
+    /**
+     * @return Id, modification time and size; differs once the image may have changed,
+     *         except for images whose modification time is unknown
+     */
+    static String versionKey(ImageSource image) {
+        return image.getId() + "@" + image.getModifiedTime() + ":" + image.getLength();
+    }
+
+    /**
+     * @param images Images, in order
+     * @return Hash of their version keys, which changes when an image is added, removed,
+     *         reordered or modified
+     */
+    static String fingerprint(List<ImageSource> images) throws IOException {
+        MessageDigest digest = DescriptorCache.newDigest();
+        for (ImageSource image : images) {
+            digest.update(versionKey(image).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        return DescriptorCache.toHex(digest.digest());
+    }
+
+    /**
+     * Largest power-of-two subsampling that keeps both sides at or above the target
+     *
+     * @param width Encoded image width
+     * @param height Encoded image height
+     * @param targetSize Size the image is resized to afterwards, or null for full resolution
+     * @return Subsampling factor, 1 for full resolution
+     */
+    static int sampleSizeFor(int width, int height, Size targetSize) {
+        if (targetSize == null) {
+            return 1;
+        }
+        int sampleSize = 1;
+        while (width / (sampleSize * 2) >= targetSize.width && height / (sampleSize * 2) >= targetSize.height) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+}
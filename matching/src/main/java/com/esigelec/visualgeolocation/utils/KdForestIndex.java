@@ -0,0 +1,465 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Randomized KD-tree forest over the float descriptors (SIFT) of a whole reference set.
+ *
+ * Every tree splits on a dimension picked at random among the highest-variance ones, so
+ * the trees partition the space differently. A query descends all trees, then keeps
+ * exploring the closest unexplored branches across the forest until a budget of
+ * descriptor comparisons ("checks") is spent, and returns its two nearest neighbours.
+ * Those feed the same Lowe ratio test as {@link SiftImageMatcher}, and each surviving
+ * descriptor votes for the image of its nearest neighbour.
+ */
+public class KdForestIndex implements CandidateIndex {
+    public static final int DEFAULT_TREES = 4;
+    public static final int DEFAULT_CHECKS = 64;
+    private static final int LEAF_SIZE = 8;
+    private static final int TOP_VARIANCE_DIMS = 5;
+    private static final int VARIANCE_SAMPLE = 100;
+    private static final long SEED = 42;
+
+    private final int dims;
+    private final int imageCount;
+    private final float[] data;
+    private final int[] imageOfRow;
+    private final int[] rowsPerImage;
+    private final float ratioThreshold;
+    private int checks;
+
+    // Nodes of all trees; leaves have splitDim -1 and own rows [leafStart, leafEnd) of their tree's order
+    private final int[] roots;
+    private final int[][] treeOrder;
+    private int[] nodeTree = new int[64];
+    private int[] splitDim = new int[64];
+    private float[] splitValue = new float[64];
+    private int[] left = new int[64];
+    private int[] right = new int[64];
+    private int nodeCount;
+
+    private KdForestIndex(float[] data, int dims, int[] imageOfRow, int imageCount,
+                          int trees, int checks, float ratioThreshold) {
+        this.dims = dims;
+        this.data = data;
+        this.imageOfRow = imageOfRow;
+        this.imageCount = imageCount;
+        this.checks = checks;
+        this.ratioThreshold = ratioThreshold;
+        this.rowsPerImage = new int[imageCount];
+        for (int image : imageOfRow) {
+            rowsPerImage[image]++;
+        }
+
+        Random random = new Random(SEED);
+        int rows = imageOfRow.length;
+        roots = new int[trees];
+        treeOrder = new int[trees][];
+        for (int tree = 0; tree < trees; tree++) {
+            int[] order = new int[rows];
+            for (int i = 0; i < rows; i++) {
+                order[i] = i;
+            }
+            treeOrder[tree] = order;
+            roots[tree] = buildNode(tree, order, 0, rows, random);
+        }
+    }
+
+    /**
+     * Index the descriptors of every reference image
+     *
+     * @param referenceDescriptors CV_32F descriptors of each reference, in reference order
+     * @param trees Number of randomized trees
+     * @param checks Descriptor comparisons per query; higher is more accurate and slower
+     * @param ratioThreshold Lowe ratio applied to the two nearest neighbours
+     * @return Forest over all reference descriptors
+     */
+    public static KdForestIndex build(List<Mat> referenceDescriptors, int trees, int checks, float ratioThreshold) {
+        int dims = 0;
+        int totalRows = 0;
+        for (Mat descriptors : referenceDescriptors) {
+            if (descriptors.empty()) continue;
+            dims = descriptors.cols();
+            totalRows += descriptors.rows();
+        }
+
+        float[] data = new float[totalRows * dims];
+        int[] imageOfRow = new int[totalRows];
+        int row = 0;
+        for (int image = 0; image < referenceDescriptors.size(); image++) {
+            Mat descriptors = referenceDescriptors.get(image);
+            if (descriptors.empty()) continue;
+            float[] imageData = new float[descriptors.rows() * dims];
+            descriptors.get(0, 0, imageData);
+            System.arraycopy(imageData, 0, data, row * dims, imageData.length);
+            Arrays.fill(imageOfRow, row, row + descriptors.rows(), image);
+            row += descriptors.rows();
+        }
+        return new KdForestIndex(data, dims, imageOfRow, referenceDescriptors.size(), trees, checks, ratioThreshold);
+    }
+
+    /**
+     * Index a packed store of float descriptors directly from its memory-mapped rows
+     */
+    public static KdForestIndex build(DescriptorStore.Reader store, int trees, int checks, float ratioThreshold) {
+        int dims = store.getRowBytes() / 4;
+        float[] data = new float[store.getTotalRows() * dims];
+        FloatBuffer rows = store.getAllDescriptorRows().asFloatBuffer();
+        rows.get(data);
+
+        int[] imageOfRow = new int[store.getTotalRows()];
+        for (int image = 0; image < store.size(); image++) {
+            int first = store.getFirstRow(image);
+            Arrays.fill(imageOfRow, first, first + store.getRowCount(image), image);
+        }
+        return new KdForestIndex(data, dims, imageOfRow, store.size(), trees, checks, ratioThreshold);
+    }
+
+    public void setChecks(int checks) {
+        this.checks = checks;
+    }
+
+    public int getChecks() {
+        return checks;
+    }
+
+    /**
+     * Count, per reference image, the query descriptors that pass the ratio test with
+     * their nearest neighbour in that image
+     *
+     * @param queryDescriptors CV_32F descriptors of the query image
+     * @return Vote count per reference image
+     */
+    public int[] vote(Mat queryDescriptors) {
+        int[] votes = new int[imageCount];
+        int queryRows = queryDescriptors.empty() ? 0 : queryDescriptors.rows();
+        if (queryRows == 0 || imageOfRow.length < 2) {
+            return votes;
+        }
+
+        float[] queries = new float[queryRows * dims];
+        queryDescriptors.get(0, 0, queries);
+        Search search = new Search();
+        float ratioSquared = ratioThreshold * ratioThreshold;
+        for (int q = 0; q < queryRows; q++) {
+            search.run(queries, q * dims, checks);
+            if (search.bestDistance[1] > 0 && search.bestDistance[0] < ratioSquared * search.bestDistance[1]) {
+                votes[imageOfRow[search.bestRow[0]]]++;
+            }
+        }
+        return votes;
+    }
+
+    @Override
+    public int[] shortlist(Mat queryDescriptors, int topK) {
+        int[] votes = vote(queryDescriptors);
+        float[] scores = new float[imageCount];
+        for (int image = 0; image < imageCount; image++) {
+            scores[image] = rowsPerImage[image] > 0 ? votes[image] / (float) Math.sqrt(rowsPerImage[image]) : 0f;
+        }
+        return CandidateIndex.topIndices(scores, topK);
+    }
+
+    @Override
+    public int size() {
+        return imageCount;
+    }
+
+    /**
+     * Accuracy and cost of the forest at one checks setting, measured against an exact
+     * brute-force search over the same descriptors
+     */
+    public static class OperatingPoint {
+        public final int checks;
+        /** Fraction of queries whose nearest neighbour matches the exact search */
+        public final double recall;
+        /** Fraction of queries with the same ratio-test verdict and voted image as the exact search */
+        public final double voteAgreement;
+        public final double microsPerQuery;
+        public final double bruteForceMicrosPerQuery;
+
+        OperatingPoint(int checks, double recall, double voteAgreement,
+                       double microsPerQuery, double bruteForceMicrosPerQuery) {
+            this.checks = checks;
+            this.recall = recall;
+            this.voteAgreement = voteAgreement;
+            this.microsPerQuery = microsPerQuery;
+            this.bruteForceMicrosPerQuery = bruteForceMicrosPerQuery;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "checks=%d recall=%.3f votes=%.3f %.1f us/query (%.1fx faster than brute force)",
+                    checks, recall, voteAgreement, microsPerQuery, bruteForceMicrosPerQuery / microsPerQuery);
+        }
+    }
+
+    /**
+     * Compare the forest against brute-force search for several checks settings
+     *
+     * @param queryDescriptors CV_32F descriptors of one or more query images
+     * @param checksValues Checks settings to evaluate
+     * @return One operating point per setting
+     */
+    public List<OperatingPoint> evaluate(Mat queryDescriptors, int... checksValues) {
+        int queryRows = queryDescriptors.rows();
+        float[] queries = new float[queryRows * dims];
+        queryDescriptors.get(0, 0, queries);
+        float ratioSquared = ratioThreshold * ratioThreshold;
+
+        int[] exactNearest = new int[queryRows];
+        int[] exactVote = new int[queryRows];
+        long start = System.nanoTime();
+        for (int q = 0; q < queryRows; q++) {
+            int best = -1, second = -1;
+            float bestDistance = Float.MAX_VALUE, secondDistance = Float.MAX_VALUE;
+            for (int row = 0; row < imageOfRow.length; row++) {
+                float d = distance(queries, q * dims, row);
+                if (d < bestDistance) {
+                    second = best;
+                    secondDistance = bestDistance;
+                    best = row;
+                    bestDistance = d;
+                } else if (d < secondDistance) {
+                    second = row;
+                    secondDistance = d;
+                }
+            }
+            exactNearest[q] = best;
+            exactVote[q] = second >= 0 && bestDistance < ratioSquared * secondDistance ? imageOfRow[best] : -1;
+        }
+        double bruteForceMicros = (System.nanoTime() - start) / 1000.0 / Math.max(1, queryRows);
+
+        List<OperatingPoint> points = new ArrayList<>();
+        Search search = new Search();
+        for (int checksValue : checksValues) {
+            int found = 0;
+            int agreed = 0;
+            start = System.nanoTime();
+            for (int q = 0; q < queryRows; q++) {
+                search.run(queries, q * dims, checksValue);
+                if (search.bestRow[0] == exactNearest[q]) found++;
+                boolean passes = search.bestDistance[1] > 0
+                        && search.bestDistance[0] < ratioSquared * search.bestDistance[1];
+                int voted = passes ? imageOfRow[search.bestRow[0]] : -1;
+                if (voted == exactVote[q]) agreed++;
+            }
+            double micros = (System.nanoTime() - start) / 1000.0 / Math.max(1, queryRows);
+            points.add(new OperatingPoint(checksValue, found / (double) Math.max(1, queryRows),
+                    agreed / (double) Math.max(1, queryRows), micros, bruteForceMicros));
+        }
+        return points;
+    }
+
+    private int buildNode(int tree, int[] order, int start, int end, Random random) {
+        int node = newNode(tree);
+        if (end - start <= LEAF_SIZE) {
+            splitDim[node] = -1;
+            left[node] = start;
+            right[node] = end;
+            return node;
+        }
+
+        // Mean and variance per dimension over a sample of the node's rows
+        double[] mean = new double[dims];
+        double[] variance = new double[dims];
+        int step = Math.max(1, (end - start) / VARIANCE_SAMPLE);
+        int sampled = 0;
+        for (int i = start; i < end; i += step, sampled++) {
+            int offset = order[i] * dims;
+            for (int d = 0; d < dims; d++) {
+                mean[d] += data[offset + d];
+            }
+        }
+        for (int d = 0; d < dims; d++) {
+            mean[d] /= sampled;
+        }
+        for (int i = start; i < end; i += step) {
+            int offset = order[i] * dims;
+            for (int d = 0; d < dims; d++) {
+                double diff = data[offset + d] - mean[d];
+                variance[d] += diff * diff;
+            }
+        }
+
+        int dim = pickHighVarianceDim(variance, random);
+        float value = (float) mean[dim];
+
+        int middle = partition(order, start, end, dim, value);
+        if (middle == start || middle == end) {
+            // All sampled values equal on this dimension; split the range in half
+            middle = (start + end) / 2;
+        }
+
+        splitDim[node] = dim;
+        splitValue[node] = value;
+        int leftChild = buildNode(tree, order, start, middle, random);
+        int rightChild = buildNode(tree, order, middle, end, random);
+        left[node] = leftChild;
+        right[node] = rightChild;
+        return node;
+    }
+
+    private int pickHighVarianceDim(double[] variance, Random random) {
+        int[] top = new int[Math.min(TOP_VARIANCE_DIMS, dims)];
+        Arrays.fill(top, -1);
+        for (int d = 0; d < dims; d++) {
+            for (int k = 0; k < top.length; k++) {
+                if (top[k] == -1 || variance[d] > variance[top[k]]) {
+                    System.arraycopy(top, k, top, k + 1, top.length - k - 1);
+                    top[k] = d;
+                    break;
+                }
+            }
+        }
+        return top[random.nextInt(top.length)];
+    }
+
+    private int partition(int[] order, int start, int end, int dim, float value) {
+        int i = start;
+        int j = end - 1;
+        while (i <= j) {
+            if (data[order[i] * dims + dim] < value) {
+                i++;
+            } else {
+                int tmp = order[i];
+                order[i] = order[j];
+                order[j] = tmp;
+                j--;
+            }
+        }
+        return i;
+    }
+
+    private int newNode(int tree) {
+        if (nodeCount == splitDim.length) {
+            int capacity = nodeCount * 2;
+            nodeTree = Arrays.copyOf(nodeTree, capacity);
+            splitDim = Arrays.copyOf(splitDim, capacity);
+            splitValue = Arrays.copyOf(splitValue, capacity);
+            left = Arrays.copyOf(left, capacity);
+            right = Arrays.copyOf(right, capacity);
+        }
+        nodeTree[nodeCount] = tree;
+        return nodeCount++;
+    }
+
+    private float distance(float[] query, int offset, int row) {
+        float sum = 0;
+        int rowOffset = row * dims;
+        for (int d = 0; d < dims; d++) {
+            float diff = query[offset + d] - data[rowOffset + d];
+            sum += diff * diff;
+        }
+        return sum;
+    }
+
+    /**
+     * State of one two-nearest-neighbour query; reused across queries of one call
+     */
+    private class Search {
+        final int[] bestRow = new int[2];
+        final float[] bestDistance = new float[2];
+        final int[] visited = new int[imageOfRow.length];
+        int stamp;
+        int checked;
+        // Binary min-heap of unexplored branches keyed by their distance to the split plane
+        float[] heapKeys = new float[64];
+        int[] heapNodes = new int[64];
+        int heapSize;
+
+        Search() {
+            Arrays.fill(visited, -1);
+        }
+
+        void run(float[] query, int offset, int maxChecks) {
+            stamp++;
+            checked = 0;
+            heapSize = 0;
+            bestRow[0] = bestRow[1] = -1;
+            bestDistance[0] = bestDistance[1] = Float.MAX_VALUE;
+
+            for (int root : roots) {
+                descend(root, query, offset);
+            }
+            while (heapSize > 0 && checked < maxChecks) {
+                float bound = heapKeys[0];
+                int node = pop();
+                if (bound >= bestDistance[1]) break;
+                descend(node, query, offset);
+            }
+        }
+
+        private void descend(int node, float[] query, int offset) {
+            while (splitDim[node] >= 0) {
+                float diff = query[offset + splitDim[node]] - splitValue[node];
+                int near = diff < 0 ? left[node] : right[node];
+                int far = diff < 0 ? right[node] : left[node];
+                push(diff * diff, far);
+                node = near;
+            }
+
+            int[] order = treeOrder[nodeTree[node]];
+            for (int i = left[node]; i < right[node]; i++) {
+                int row = order[i];
+                if (visited[row] == stamp) continue;
+                visited[row] = stamp;
+                checked++;
+
+                float d = distance(query, offset, row);
+                if (d < bestDistance[0]) {
+                    bestRow[1] = bestRow[0];
+                    bestDistance[1] = bestDistance[0];
+                    bestRow[0] = row;
+                    bestDistance[0] = d;
+                } else if (d < bestDistance[1]) {
+                    bestRow[1] = row;
+                    bestDistance[1] = d;
+                }
+            }
+        }
+
+        private void push(float key, int node) {
+            if (heapSize == heapKeys.length) {
+                heapKeys = Arrays.copyOf(heapKeys, heapSize * 2);
+                heapNodes = Arrays.copyOf(heapNodes, heapSize * 2);
+            }
+            int i = heapSize++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (heapKeys[parent] <= key) break;
+                heapKeys[i] = heapKeys[parent];
+                heapNodes[i] = heapNodes[parent];
+                i = parent;
+            }
+            heapKeys[i] = key;
+            heapNodes[i] = node;
+        }
+
+        private int pop() {
+            int top = heapNodes[0];
+            float key = heapKeys[--heapSize];
+            int node = heapNodes[heapSize];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= heapSize) break;
+                if (child + 1 < heapSize && heapKeys[child + 1] < heapKeys[child]) child++;
+                if (heapKeys[child] >= key) break;
+                heapKeys[i] = heapKeys[child];
+                heapNodes[i] = heapNodes[child];
+                i = child;
+            }
+            heapKeys[i] = key;
+            heapNodes[i] = node;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.MatOfKeyPoint;
+
+import java.util.Arrays;
+
+/**
+ * Utility class for capping the number of keypoints per image while keeping them spread
+ * over the whole frame.
+ *
+ * The image is divided into a grid and keypoints are taken round-robin from the cells,
+ * strongest first within each cell, so textured regions cannot use up the whole budget.
+ * Descriptor size, and with it the cost of matching a pair, is then bounded by the budget.
+ */
+public class KeypointBudget {
+    private static final int GRID = 8;
+    // Layout of a KeyPoint in a MatOfKeyPoint buffer
+    private static final int KEYPOINT_FLOATS = 7;
+    private static final int X = 0;
+    private static final int Y = 1;
+    private static final int RESPONSE = 4;
+
+    /**
+     * Select at most budget keypoints by grid bucketing
+     *
+     * @param keypoints Detected keypoints
+     * @param budget Maximum number of keypoints to keep
+     * @param width Width of the image the keypoints were detected in
+     * @param height Height of the image
+     * @return The keypoints themselves if within budget, otherwise a new selection
+     */
+    public static MatOfKeyPoint select(MatOfKeyPoint keypoints, int budget, int width, int height) {
+        int count = (int) keypoints.total();
+        if (budget <= 0 || count <= budget) {
+            return keypoints;
+        }
+
+        float[] buffer = new float[count * KEYPOINT_FLOATS];
+        keypoints.get(0, 0, buffer);
+
+        // Order by response, strongest first
+        long[] byResponse = new long[count];
+        for (int i = 0; i < count; i++) {
+            // Responses are non-negative, so their float bits sort like the values
+            int bits = Float.floatToIntBits(Math.max(0f, buffer[i * KEYPOINT_FLOATS + RESPONSE]));
+            byResponse[i] = ((long) (Integer.MAX_VALUE - bits) << 32) | i;
+        }
+        Arrays.sort(byResponse);
+
+        // Rank of each keypoint within its cell; taking rank 0 of every cell, then rank 1, ...
+        // is the round-robin selection
+        int[] cellCounts = new int[GRID * GRID];
+        long[] byRank = new long[count];
+        for (int order = 0; order < count; order++) {
+            int i = (int) byResponse[order];
+            int cx = Math.min(GRID - 1, Math.max(0, (int) (buffer[i * KEYPOINT_FLOATS + X] * GRID / width)));
+            int cy = Math.min(GRID - 1, Math.max(0, (int) (buffer[i * KEYPOINT_FLOATS + Y] * GRID / height)));
+            int rank = cellCounts[cy * GRID + cx]++;
+            byRank[order] = ((long) rank << 32) | order;
+        }
+        Arrays.sort(byRank);
+
+        float[] kept = new float[budget * KEYPOINT_FLOATS];
+        for (int k = 0; k < budget; k++) {
+            int i = (int) byResponse[(int) byRank[k]];
+            System.arraycopy(buffer, i * KEYPOINT_FLOATS, kept, k * KEYPOINT_FLOATS, KEYPOINT_FLOATS);
+        }
+
+        MatOfKeyPoint selected = new MatOfKeyPoint();
+        selected.alloc(budget);
+        selected.put(0, 0, kept);
+        return selected;
+    }
+}
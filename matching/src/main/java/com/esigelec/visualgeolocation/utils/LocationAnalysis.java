@@ -0,0 +1,288 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Estimates each image's location from the images it matched in a batch analysis.
+ *
+ * Every matched pair contributes the target's original coordinates to the source image,
+ * weighted by similarity. Plain and similarity-weighted averages are then compared with
+ * the source's own coordinates. Shared by the batch analysis screen and the headless runner.
+ * When images are appended to a batch, only the images that gained matches are averaged again.
+ */
+public class LocationAnalysis {
+    private final Map<String, LocationData> locationDataMap = new LinkedHashMap<>();
+    private double totalNonWeightedDistance = 0;
+    private double totalWeightedDistance = 0;
+    private int validLocationCount = 0;
+
+    public static class LocationData {
+        private double originalLat;
+        private double originalLng;
+        private double avgLat;
+        private double avgLng;
+        private double weightedAvgLat;
+        private double weightedAvgLng;
+        private double nonWeightedDistance;
+        private double weightedDistance;
+        private boolean averaged; // Distances are part of the summary totals
+        private final List<WeightedLocation> matchedLocations = new ArrayList<>();
+
+        public boolean hasOriginalLocation() {
+            return originalLat != 0 && originalLng != 0;
+        }
+
+        /**
+         * @return Whether the image has coordinates and at least one located match
+         */
+        public boolean isValid() {
+            return hasOriginalLocation() && getMatchCount() > 0;
+        }
+
+        public int getMatchCount() {
+            synchronized (matchedLocations) {
+                return matchedLocations.size();
+            }
+        }
+
+        public double getOriginalLat() {
+            return originalLat;
+        }
+
+        public double getOriginalLng() {
+            return originalLng;
+        }
+
+        public double getAvgLat() {
+            return avgLat;
+        }
+
+        public double getAvgLng() {
+            return avgLng;
+        }
+
+        public double getWeightedAvgLat() {
+            return weightedAvgLat;
+        }
+
+        public double getWeightedAvgLng() {
+            return weightedAvgLng;
+        }
+
+        public double getNonWeightedDistance() {
+            return nonWeightedDistance;
+        }
+
+        public double getWeightedDistance() {
+            return weightedDistance;
+        }
+    }
+
+    private static class WeightedLocation {
+        final double lat;
+        final double lng;
+        final double weight;
+
+        WeightedLocation(double lat, double lng, double weight) {
+            this.lat = lat;
+            this.lng = lng;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Register an image before results arrive
+     *
+     * @param imageId Name of the image in results
+     * @param coordinates [latitude, longitude] from EXIF, or null if unknown
+     */
+    public synchronized void addImage(String imageId, double[] coordinates) {
+        LocationData locationData = new LocationData();
+        if (coordinates != null && coordinates.length == 2) {
+            locationData.originalLat = coordinates[0];
+            locationData.originalLng = coordinates[1];
+        }
+        locationDataMap.put(imageId, locationData);
+    }
+
+    /**
+     * Record a matched pair; safe to call from several worker threads
+     *
+     * @param sourceId Image whose location is being estimated
+     * @param targetId Matched image whose coordinates are used
+     * @param similarity Weight of the match
+     */
+    public void addMatch(String sourceId, String targetId, double similarity) {
+        LocationData sourceLocationData = getLocationData(sourceId);
+        LocationData targetLocationData = getLocationData(targetId);
+        if (sourceLocationData == null || targetLocationData == null || !targetLocationData.hasOriginalLocation()) {
+            return;
+        }
+
+        WeightedLocation weightedLocation = new WeightedLocation(
+            targetLocationData.originalLat,
+            targetLocationData.originalLng,
+            similarity
+        );
+        synchronized (sourceLocationData.matchedLocations) {
+            sourceLocationData.matchedLocations.add(weightedLocation);
+        }
+    }
+
+    /**
+     * Compute averages and distances for every image once all matches are recorded
+     */
+    public synchronized void calculateAverages() {
+        totalNonWeightedDistance = 0;
+        totalWeightedDistance = 0;
+        validLocationCount = 0;
+
+        for (LocationData locationData : locationDataMap.values()) {
+            locationData.averaged = false;
+            average(locationData);
+        }
+    }
+
+    /**
+     * Recompute the averages and distances of some images only, such as the images that
+     * gained matches when images were appended to the batch, and update the summary
+     * statistics accordingly. The averages of every other image must be current.
+     *
+     * @param imageIds Images whose matches changed since their averages were computed
+     */
+    public synchronized void updateAverages(Collection<String> imageIds) {
+        for (String imageId : imageIds) {
+            LocationData locationData = locationDataMap.get(imageId);
+            if (locationData == null) {
+                continue;
+            }
+
+            // Take the image's previous distances out of the totals
+            if (locationData.averaged) {
+                totalNonWeightedDistance -= locationData.nonWeightedDistance;
+                totalWeightedDistance -= locationData.weightedDistance;
+                validLocationCount--;
+                locationData.averaged = false;
+            }
+            average(locationData);
+        }
+    }
+
+    private void average(LocationData locationData) {
+        List<WeightedLocation> matches = locationData.matchedLocations;
+
+        if (matches.isEmpty() || !locationData.hasOriginalLocation()) {
+            return;
+        }
+
+        // Calculate non-weighted average
+        double sumLat = 0;
+        double sumLng = 0;
+        for (WeightedLocation match : matches) {
+            sumLat += match.lat;
+            sumLng += match.lng;
+        }
+        locationData.avgLat = sumLat / matches.size();
+        locationData.avgLng = sumLng / matches.size();
+
+        // Calculate weighted average
+        double totalWeight = 0;
+        double weightedSumLat = 0;
+        double weightedSumLng = 0;
+        for (WeightedLocation match : matches) {
+            weightedSumLat += match.lat * match.weight;
+            weightedSumLng += match.lng * match.weight;
+            totalWeight += match.weight;
+        }
+
+        if (totalWeight > 0) {
+            locationData.weightedAvgLat = weightedSumLat / totalWeight;
+            locationData.weightedAvgLng = weightedSumLng / totalWeight;
+        } else {
+            locationData.weightedAvgLat = locationData.avgLat;
+            locationData.weightedAvgLng = locationData.avgLng;
+        }
+
+        // Calculate Euclidean distances
+        locationData.nonWeightedDistance = LocationUtils.calculateDistance(
+            locationData.originalLat, locationData.originalLng,
+            locationData.avgLat, locationData.avgLng
+        );
+
+        locationData.weightedDistance = LocationUtils.calculateDistance(
+            locationData.originalLat, locationData.originalLng,
+            locationData.weightedAvgLat, locationData.weightedAvgLng
+        );
+
+        // Add to totals for average calculation
+        totalNonWeightedDistance += locationData.nonWeightedDistance;
+        totalWeightedDistance += locationData.weightedDistance;
+        validLocationCount++;
+        locationData.averaged = true;
+    }
+
+    public synchronized LocationData getLocationData(String imageId) {
+        return locationDataMap.get(imageId);
+    }
+
+    public synchronized boolean isEmpty() {
+        return locationDataMap.isEmpty();
+    }
+
+    public synchronized int getValidLocationCount() {
+        return validLocationCount;
+    }
+
+    public synchronized double getAverageNonWeightedDistance() {
+        return validLocationCount > 0 ? totalNonWeightedDistance / validLocationCount : 0;
+    }
+
+    public synchronized double getAverageWeightedDistance() {
+        return validLocationCount > 0 ? totalWeightedDistance / validLocationCount : 0;
+    }
+
+    /**
+     * Write one row per located image plus an AVERAGE summary row
+     *
+     * @param writer Destination; not closed
+     */
+    public synchronized void writeCsv(Writer writer) throws IOException {
+        // Write header
+        writer.write("Image,Original Latitude,Original Longitude,Average Latitude,Average Longitude," +
+                "Weighted Average Latitude,Weighted Average Longitude,Non-weighted Distance (m),Weighted Distance (m)\n");
+
+        // Write data rows
+        for (Map.Entry<String, LocationData> entry : locationDataMap.entrySet()) {
+            String imageId = entry.getKey();
+            LocationData data = entry.getValue();
+
+            // Skip images without location data or without any matches
+            if (!data.isValid()) {
+                continue;
+            }
+
+            writer.write(String.format(Locale.US,
+                    "%s,%.6f,%.6f,%.6f,%.6f,%.6f,%.6f,%.2f,%.2f\n",
+                    imageId,
+                    data.originalLat, data.originalLng,
+                    data.avgLat, data.avgLng,
+                    data.weightedAvgLat, data.weightedAvgLng,
+                    data.nonWeightedDistance, data.weightedDistance));
+        }
+
+        // Write summary
+        if (validLocationCount > 0) {
+            writer.write(String.format(Locale.US,
+                    "AVERAGE,,,,,,,%,.2f,%,.2f\n",
+                    getAverageNonWeightedDistance(),
+                    getAverageWeightedDistance()));
+        }
+    }
+}
@@ -1,13 +1,11 @@
 package com.esigelec.visualgeolocation.utils;
 
-import android.location.Location;
-
 /**
  * Utility class for location-related operations
  */
 public class LocationUtils {
 
-    private static final double EARTH_RADIUS = 6371000; // Earth radius in meters
+    static final double EARTH_RADIUS = 6371000; // Earth radius in meters
 
     /**
      * Calculate distance between two coordinates using the Haversine formula
@@ -43,6 +41,58 @@ public class LocationUtils {
         return EARTH_RADIUS * c; // Distance in meters
     }
     
+    /**
+     * Find the points of a run that lie within a distance of a center.
+     *
+     * Equivalent to comparing {@link #calculateDistance} against the radius for every point,
+     * but the center's trigonometry is computed once, points further away in latitude alone
+     * are rejected without any, and the Haversine term is compared against a precomputed
+     * bound instead of being turned into a distance.
+     *
+     * @param lat Latitude of the center in degrees
+     * @param lng Longitude of the center in degrees
+     * @param radius Distance in meters
+     * @param lats Latitudes of the points in degrees
+     * @param lngs Longitudes of the points in degrees
+     * @param from First point to check
+     * @param to End of the points to check, exclusive
+     * @param out Receives the array index of every point within the radius
+     * @param outCount Number of entries already in out; new ones are appended after them
+     * @return Number of entries in out
+     */
+    public static int filterWithinDistance(double lat, double lng, double radius,
+                                           double[] lats, double[] lngs, int from, int to,
+                                           int[] out, int outCount) {
+        double angle = radius / EARTH_RADIUS;
+        if (angle >= Math.PI) {
+            for (int i = from; i < to; i++) {
+                out[outCount++] = i;
+            }
+            return outCount;
+        }
+
+        // Haversine term a = sin^2(c/2) grows with the distance, so compare it directly
+        double sinHalfAngle = Math.sin(angle / 2);
+        double maxA = sinHalfAngle * sinHalfAngle;
+        double maxLatDelta = Math.toDegrees(angle);
+        double latRad = Math.toRadians(lat);
+        double cosLat = Math.cos(latRad);
+
+        for (int i = from; i < to; i++) {
+            double dLatDegrees = lats[i] - lat;
+            if (Math.abs(dLatDegrees) > maxLatDelta) continue;
+
+            double sinDLat = Math.sin(Math.toRadians(dLatDegrees) / 2);
+            double sinDLng = Math.sin(Math.toRadians(lngs[i] - lng) / 2);
+            double a = sinDLat * sinDLat
+                    + cosLat * Math.cos(Math.toRadians(lats[i])) * sinDLng * sinDLng;
+            if (a <= maxA) {
+                out[outCount++] = i;
+            }
+        }
+        return outCount;
+    }
+
     /**
      * Calculate bearing between two coordinates
      *
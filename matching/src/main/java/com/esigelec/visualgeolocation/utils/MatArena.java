@@ -0,0 +1,158 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Owner of the native buffers a matcher allocates while describing and scoring images.
+ *
+ * Mats hold native memory the garbage collector does not see, so Mats left to their
+ * finalizers pile up during long batches. Temporary Mats are registered with the innermost
+ * open {@link Scope} and released together when it closes. Scratch Mats needed on every
+ * iteration (detection masks, match buffers) live in numbered slots and are reused, so
+ * OpenCV writes into the same buffer whenever the size allows.
+ *
+ * With {@link MatchMetrics#setNativeTracking} on, the native bytes held when a scope closes
+ * are recorded as the algorithm's high-water mark in {@link MatchMetrics}. Like the matcher
+ * that owns it, an arena is used by one thread at a time.
+ *
+ * Typical use:
+ * <pre>
+ *     try (MatArena.Scope scope = arena.open()) {
+ *         List&lt;MatOfDMatch&gt; knnMatches = scope.trackAll(new ArrayList&lt;&gt;());
+ *         matcher.knnMatch(query, train, knnMatches, 2);
+ *         ...
+ *     }
+ * </pre>
+ */
+public final class MatArena {
+    private final MatchMetrics metrics;
+    private final Mat[] scratch;
+    private final List<Mat> tracked = new ArrayList<>();
+    private final List<List<? extends Mat>> trackedLists = new ArrayList<>();
+
+    /**
+     * @param metrics Receives the high-water mark and released counts
+     * @param scratchSlots Number of reusable scratch Mats
+     */
+    public MatArena(MatchMetrics metrics, int scratchSlots) {
+        this.metrics = metrics;
+        this.scratch = new Mat[scratchSlots];
+    }
+
+    /**
+     * Open a scope nested in any scope already open
+     */
+    public Scope open() {
+        return new Scope(tracked.size(), trackedLists.size());
+    }
+
+    /**
+     * Get a scratch Mat kept across scopes; its content is overwritten by the next user
+     *
+     * @param slot Slot number, below the count given at construction
+     * @param factory Creates the Mat on first use
+     * @return The Mat of that slot
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Mat> T scratch(int slot, Supplier<T> factory) {
+        Mat mat = scratch[slot];
+        if (mat == null) {
+            mat = factory.get();
+            scratch[slot] = mat;
+        }
+        return (T) mat;
+    }
+
+    /**
+     * Release the scratch Mats; they are created again on next use
+     */
+    public void releaseScratch() {
+        for (int i = 0; i < scratch.length; i++) {
+            if (scratch[i] != null) {
+                scratch[i].release();
+                scratch[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @return Native bytes of the scratch Mats and of every Mat tracked by open scopes
+     */
+    public long nativeBytes() {
+        long bytes = 0;
+        for (Mat mat : scratch) {
+            if (mat != null) bytes += sizeOf(mat);
+        }
+        for (Mat mat : tracked) {
+            bytes += sizeOf(mat);
+        }
+        for (List<? extends Mat> mats : trackedLists) {
+            for (Mat mat : mats) {
+                bytes += sizeOf(mat);
+            }
+        }
+        return bytes;
+    }
+
+    private static long sizeOf(Mat mat) {
+        return mat.total() * mat.elemSize();
+    }
+
+    /**
+     * Mats registered since the scope opened, released when it closes
+     */
+    public final class Scope implements AutoCloseable {
+        private final int trackedMark;
+        private final int listMark;
+
+        private Scope(int trackedMark, int listMark) {
+            this.trackedMark = trackedMark;
+            this.listMark = listMark;
+        }
+
+        /**
+         * @return The Mat, released when this scope closes
+         */
+        public <T extends Mat> T track(T mat) {
+            tracked.add(mat);
+            return mat;
+        }
+
+        /**
+         * Register a list whose Mats are released when this scope closes, including Mats
+         * added to it later (as OpenCV's knnMatch does)
+         *
+         * @return The list
+         */
+        public <T extends Mat> List<T> trackAll(List<T> mats) {
+            trackedLists.add(mats);
+            return mats;
+        }
+
+        @Override
+        public void close() {
+            if (MatchMetrics.isNativeTrackingEnabled()) {
+                metrics.recordNativeBytes(nativeBytes());
+            }
+
+            int released = 0;
+            for (int i = tracked.size() - 1; i >= trackedMark; i--) {
+                tracked.remove(i).release();
+                released++;
+            }
+            for (int i = trackedLists.size() - 1; i >= listMark; i--) {
+                List<? extends Mat> mats = trackedLists.remove(i);
+                for (Mat mat : mats) {
+                    mat.release();
+                }
+                released += mats.size();
+                mats.clear();
+            }
+            metrics.count(MatchMetrics.Counter.MATS_RELEASED, released);
+        }
+    }
+}
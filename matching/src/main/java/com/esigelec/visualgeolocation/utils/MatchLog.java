@@ -0,0 +1,91 @@
+package com.esigelec.visualgeolocation.utils;
+
+/**
+ * Logging facade for the matching pipeline.
+ *
+ * The pipeline runs both in the app and on a plain JVM, so it cannot call
+ * android.util.Log directly. The app installs a backend forwarding to logcat;
+ * without one, warnings and errors go to standard error.
+ *
+ * Hot paths guard debug messages with {@link #isLoggable} so the message strings are
+ * only built when they will be written.
+ */
+public final class MatchLog {
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public interface Backend {
+        void log(int level, String tag, String message, Throwable error);
+
+        default boolean isLoggable(String tag, int level) {
+            return true;
+        }
+    }
+
+    private static volatile Backend backend = new ConsoleBackend(WARN);
+
+    private MatchLog() {
+    }
+
+    public static void setBackend(Backend newBackend) {
+        backend = newBackend;
+    }
+
+    /**
+     * @return Whether a message of this level and tag would be written
+     */
+    public static boolean isLoggable(String tag, int level) {
+        return backend.isLoggable(tag, level);
+    }
+
+    public static void d(String tag, String message) {
+        backend.log(DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        backend.log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        backend.log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        backend.log(WARN, tag, message, error);
+    }
+
+    public static void e(String tag, String message) {
+        backend.log(ERROR, tag, message, null);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        backend.log(ERROR, tag, message, error);
+    }
+
+    /**
+     * Writes messages at or above a minimum level to standard error
+     */
+    public static class ConsoleBackend implements Backend {
+        private final int minimumLevel;
+
+        public ConsoleBackend(int minimumLevel) {
+            this.minimumLevel = minimumLevel;
+        }
+
+        @Override
+        public boolean isLoggable(String tag, int level) {
+            return level >= minimumLevel;
+        }
+
+        @Override
+        public void log(int level, String tag, String message, Throwable error) {
+            if (level < minimumLevel) return;
+            System.err.println(tag + ": " + message);
+            if (error != null) {
+                error.printStackTrace();
+            }
+        }
+    }
+}
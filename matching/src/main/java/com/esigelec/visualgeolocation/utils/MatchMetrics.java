@@ -0,0 +1,335 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-algorithm timings and counters of the matching pipeline.
+ *
+ * Stages are timed with {@link System#nanoTime()} spans recorded into power-of-two latency
+ * histograms; counters are {@link LongAdder}s, so every worker of a batch can record into
+ * the same instance without contention. Recording allocates nothing.
+ *
+ * Typical use:
+ * <pre>
+ *     long start = metrics.start();
+ *     detector.detectAndCompute(...);
+ *     metrics.stop(MatchMetrics.Stage.DETECT, start);
+ * </pre>
+ */
+public final class MatchMetrics {
+    public enum Stage { DECODE, RESIZE, DETECT, PREFILTER, MATCH, FILTER, VERIFY, SCORE }
+
+    public enum Counter { KEYPOINTS, RAW_MATCHES, GOOD_MATCHES, INLIERS, VERIFY_SKIPPED, CACHE_HITS, CACHE_MISSES, PAIRS,
+        MATS_RELEASED }
+
+    // Bucket i holds durations below 2^i nanoseconds
+    private static final int BUCKETS = 64;
+
+    private static final Map<String, MatchMetrics> byAlgorithm = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = true;
+    private static volatile boolean nativeTracking = false;
+
+    private final String algorithm;
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final Histogram[] histograms = new Histogram[Stage.values().length];
+    private final AtomicLong nativeHighWater = new AtomicLong();
+
+    private MatchMetrics(String algorithm) {
+        this.algorithm = algorithm;
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * @param algorithm Algorithm name of a matcher
+     * @return Process-wide metrics of that algorithm, created on first use
+     */
+    public static MatchMetrics forAlgorithm(String algorithm) {
+        return byAlgorithm.computeIfAbsent(algorithm, MatchMetrics::new);
+    }
+
+    /**
+     * Turn recording on or off for every algorithm; when off, spans skip the clock reads
+     */
+    public static void setEnabled(boolean enabled) {
+        MatchMetrics.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn the native-memory high-water mark on or off. Off by default: sampling it walks
+     * every Mat a matcher holds through JNI each time a scope closes.
+     */
+    public static void setNativeTracking(boolean nativeTracking) {
+        MatchMetrics.nativeTracking = nativeTracking;
+    }
+
+    /**
+     * @return Whether recording is on and includes the native-memory high-water mark
+     */
+    public static boolean isNativeTrackingEnabled() {
+        return enabled && nativeTracking;
+    }
+
+    /**
+     * @return Snapshots of every algorithm that recorded something, by name
+     */
+    public static Map<String, Snapshot> snapshotAll() {
+        Map<String, Snapshot> snapshots = new TreeMap<>();
+        for (MatchMetrics metrics : byAlgorithm.values()) {
+            snapshots.put(metrics.algorithm, metrics.snapshot());
+        }
+        return snapshots;
+    }
+
+    public static void resetAll() {
+        for (MatchMetrics metrics : byAlgorithm.values()) {
+            metrics.reset();
+        }
+    }
+
+    /**
+     * Open a span
+     *
+     * @return Start time to pass to {@link #stop}, or 0 when recording is off
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Close a span opened by {@link #start}
+     *
+     * @param stage Stage the span measured
+     * @param startNanos Value returned by {@link #start}
+     */
+    public void stop(Stage stage, long startNanos) {
+        if (startNanos != 0) {
+            histograms[stage.ordinal()].record(System.nanoTime() - startNanos);
+        }
+    }
+
+    public void count(Counter counter, long delta) {
+        if (enabled) {
+            counters[counter.ordinal()].add(delta);
+        }
+    }
+
+    public void increment(Counter counter) {
+        count(counter, 1);
+    }
+
+    /**
+     * Raise the native-memory high-water mark, see {@link MatArena}
+     *
+     * @param bytes Native bytes held by one matcher at a point in time
+     */
+    public void recordNativeBytes(long bytes) {
+        if (isNativeTrackingEnabled()) {
+            nativeHighWater.accumulateAndGet(bytes, Math::max);
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[counters.length];
+        for (int i = 0; i < counters.length; i++) {
+            counts[i] = counters[i].sum();
+        }
+        StageStats[] stages = new StageStats[histograms.length];
+        for (int i = 0; i < histograms.length; i++) {
+            stages[i] = histograms[i].snapshot();
+        }
+        return new Snapshot(algorithm, counts, stages, nativeHighWater.get());
+    }
+
+    public void reset() {
+        for (LongAdder counter : counters) {
+            counter.reset();
+        }
+        for (Histogram histogram : histograms) {
+            histogram.reset();
+        }
+        nativeHighWater.set(0);
+    }
+
+    private static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        StageStats snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new StageStats(counts, totalNanos.sum(), maxNanos.get());
+        }
+
+        void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+            totalNanos.reset();
+            maxNanos.set(0);
+        }
+    }
+
+    /**
+     * Latency distribution of one stage
+     */
+    public static final class StageStats {
+        private final long[] buckets;
+        private final long count;
+        private final long totalNanos;
+        private final long maxNanos;
+
+        StageStats(long[] buckets, long totalNanos, long maxNanos) {
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            this.buckets = buckets;
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getTotalNanos() {
+            return totalNanos;
+        }
+
+        public long getMaxNanos() {
+            return maxNanos;
+        }
+
+        public double getMeanNanos() {
+            return count > 0 ? totalNanos / (double) count : 0;
+        }
+
+        /**
+         * @param fraction Quantile between 0 and 1
+         * @return Upper bound of the histogram bucket holding the quantile, capped by the maximum
+         */
+        public long getPercentileNanos(double fraction) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : Math.min(maxNanos, (1L << i) - 1);
+                }
+            }
+            return maxNanos;
+        }
+    }
+
+    /**
+     * Immutable copy of one algorithm's metrics
+     */
+    public static final class Snapshot {
+        private final String algorithm;
+        private final long[] counters;
+        private final StageStats[] stages;
+        private final long nativeHighWaterBytes;
+
+        Snapshot(String algorithm, long[] counters, StageStats[] stages, long nativeHighWaterBytes) {
+            this.algorithm = algorithm;
+            this.counters = counters;
+            this.stages = stages;
+            this.nativeHighWaterBytes = nativeHighWaterBytes;
+        }
+
+        public String getAlgorithm() {
+            return algorithm;
+        }
+
+        public long get(Counter counter) {
+            return counters[counter.ordinal()];
+        }
+
+        public StageStats get(Stage stage) {
+            return stages[stage.ordinal()];
+        }
+
+        /**
+         * @return Most native bytes one matcher held at once
+         */
+        public long getNativeHighWaterBytes() {
+            return nativeHighWaterBytes;
+        }
+
+        /**
+         * Write one row per stage followed by one row per counter
+         *
+         * @param writer Destination; not closed
+         * @param header Whether to write the header line first
+         */
+        public void writeCsv(Writer writer, boolean header) throws IOException {
+            if (header) {
+                writer.write("Algorithm,Metric,Count,Total (ms),Mean (ms),p50 (ms),p90 (ms),p99 (ms),Max (ms)\n");
+            }
+            for (Stage stage : Stage.values()) {
+                StageStats stats = get(stage);
+                if (stats.getCount() == 0) continue;
+                writer.write(String.format(Locale.US, "%s,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f\n",
+                        algorithm, stage, stats.getCount(),
+                        stats.getTotalNanos() / 1e6, stats.getMeanNanos() / 1e6,
+                        stats.getPercentileNanos(0.5) / 1e6, stats.getPercentileNanos(0.9) / 1e6,
+                        stats.getPercentileNanos(0.99) / 1e6, stats.getMaxNanos() / 1e6));
+            }
+            for (Counter counter : Counter.values()) {
+                writer.write(String.format(Locale.US, "%s,%s,%d,,,,,,\n", algorithm, counter, get(counter)));
+            }
+            writer.write(String.format(Locale.US, "%s,NATIVE_HIGH_WATER_BYTES,%d,,,,,,\n",
+                    algorithm, nativeHighWaterBytes));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder(algorithm).append(':');
+            for (Stage stage : Stage.values()) {
+                StageStats stats = get(stage);
+                if (stats.getCount() == 0) continue;
+                builder.append(String.format(Locale.US, " %s %d x %.2f ms (p90 %.2f ms)",
+                        stage, stats.getCount(), stats.getMeanNanos() / 1e6,
+                        stats.getPercentileNanos(0.9) / 1e6));
+            }
+            for (Counter counter : Counter.values()) {
+                builder.append(' ').append(counter).append('=').append(get(counter));
+            }
+            builder.append(" NATIVE_HIGH_WATER=").append(nativeHighWaterBytes / 1024).append(" KB");
+            return builder.toString();
+        }
+    }
+}
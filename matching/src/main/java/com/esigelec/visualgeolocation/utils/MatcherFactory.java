@@ -0,0 +1,52 @@
+package com.esigelec.visualgeolocation.utils;
+
+/**
+ * Utility class for creating matchers from the algorithm names used in the UI
+ */
+public class MatcherFactory {
+
+    /**
+     * Create a new matcher with its own detector and descriptor matcher
+     *
+     * @param cache Descriptor cache shared by all matchers
+     * @param algorithm Algorithm name selected by the user
+     * @return New matcher instance, SIFT if the name is unknown
+     */
+    public static BaseImageMatcher create(DescriptorCache cache, String algorithm) {
+        switch (algorithm) {
+            case "FAST":
+                return new FastMatcher(cache);
+            case "AKAZE":
+                return new AkazeMatcher(cache);
+            case "ORB":
+                return new OrbMatcher(cache);
+            case OrbSiftMatcher.ALGORITHM:
+                return new OrbSiftMatcher(cache);
+            default:
+                return new SiftImageMatcher(cache);
+        }
+    }
+
+    /**
+     * Whether matchers created for an algorithm are symmetric, see {@link ImageMatcher#isSymmetric()}
+     *
+     * @param algorithm Algorithm name selected by the user
+     * @param verification Geometric verification of the matchers, or null if off
+     */
+    public static boolean isSymmetric(String algorithm, GeometricVerifier.Model verification) {
+        if (verification != null) {
+            // Inlier counts depend on which image the transform is fitted from
+            return false;
+        }
+        switch (algorithm) {
+            case "FAST":
+            case "AKAZE":
+            case "ORB":
+            case OrbSiftMatcher.ALGORITHM:
+                // ORB-SIFT prunes each batch row on its own
+                return false;
+            default:
+                return true;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.util.function.Consumer;
+
+/**
+ * Hands out one matcher per thread.
+ *
+ * The OpenCV Feature2D and DescriptorMatcher objects inside a matcher are not safe for
+ * concurrent use, so each worker thread gets its own instance. Extracted features are
+ * still shared between workers through the descriptor cache.
+ */
+public class MatcherPool {
+    private final DescriptorCache cache;
+    private final String algorithm;
+    private final GeometricVerifier.Model verification;
+    private final ThreadLocal<BaseImageMatcher> matchers;
+
+    public MatcherPool(DescriptorCache cache, String algorithm) {
+        this(cache, algorithm, null, matcher -> { });
+    }
+
+    /**
+     * @param cache Descriptor cache shared by all matchers
+     * @param algorithm Algorithm name selected by the user
+     * @param verification Geometric verification applied to every matcher, or null for none;
+     *                     set here rather than by the configurator because it decides symmetry
+     * @param configurator Applied to every matcher when it is created, e.g. to set the keypoint budget
+     */
+    public MatcherPool(DescriptorCache cache, String algorithm, GeometricVerifier.Model verification,
+                       Consumer<? super BaseImageMatcher> configurator) {
+        this.cache = cache;
+        this.algorithm = algorithm;
+        this.verification = verification;
+        this.matchers = ThreadLocal.withInitial(() -> {
+            BaseImageMatcher matcher = MatcherFactory.create(this.cache, this.algorithm);
+            matcher.setGeometricVerification(this.verification);
+            configurator.accept(matcher);
+            return matcher;
+        });
+    }
+
+    /**
+     * @return Matcher owned by the calling thread, with the feature-level entry points of
+     *         {@link BaseImageMatcher} used by the query and batch engines
+     */
+    public BaseImageMatcher get() {
+        return matchers.get();
+    }
+
+    /**
+     * Whether the pool's matchers score A against B the same as B against A, known without
+     * creating a matcher on the calling thread
+     */
+    public boolean isSymmetric() {
+        return MatcherFactory.isSymmetric(algorithm, verification);
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+}
@@ -0,0 +1,238 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Two-tier cache of image metadata: GPS coordinates, orientation, dimensions and content hash.
+ *
+ * Each image is read once, in a single pass that parses its header and hashes its content
+ * (see {@link ImageSource#readMetadata()}). Entries are kept in memory by image id and
+ * appended to a log file in the app cache, so later queries and batch runs never open the
+ * image again for its metadata. A logged entry is reused while the image's modification
+ * time and size are unchanged; the log is compacted on load when it holds mostly stale records.
+ * Images whose modification time is unknown are never logged, so they are read again once per
+ * process instead of keeping a stale hash forever.
+ */
+public class MetadataCache {
+    private static final String TAG = "MetadataCache";
+    private static final String CACHE_FILE = "metadata.log";
+    private static final int MAGIC = 0x56474D44; // "VGMD"
+    private static final int VERSION = 3;
+    private static final int RECORD = 0x52; // Leads every record, so a torn last record is detected
+
+    private static MetadataCache instance;
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private DataOutputStream log;
+
+    /**
+     * @param cacheRoot Cache directory of the app or runner
+     * @return Process-wide cache, created on first use
+     */
+    public static synchronized MetadataCache getInstance(File cacheRoot) {
+        if (instance == null) {
+            if (!cacheRoot.exists() && !cacheRoot.mkdirs()) {
+                MatchLog.w(TAG, "Could not create cache directory: " + cacheRoot);
+            }
+            instance = new MetadataCache(new File(cacheRoot, CACHE_FILE));
+        }
+        return instance;
+    }
+
+    /**
+     * @param file Log file, or null to keep entries in memory only
+     */
+    public MetadataCache(File file) {
+        this.file = file;
+        if (file != null) {
+            load();
+        }
+    }
+
+    /**
+     * Get the metadata of an image, reading it on the first request only.
+     * Concurrent first requests for the same image may both read it.
+     *
+     * @param image The image
+     * @return Metadata with its content hash set
+     */
+    public ExifReader.Metadata get(ImageSource image) throws IOException {
+        long modified = image.getModifiedTime();
+        long length = image.getLength();
+        Entry entry = entries.get(image.getId());
+        if (entry != null && entry.modified == modified && entry.length == length) {
+            return entry.metadata;
+        }
+
+        entry = new Entry(modified, length, image.readMetadata());
+        entries.put(image.getId(), entry);
+        if (modified > 0) {
+            append(image.getId(), entry);
+        }
+        return entry.metadata;
+    }
+
+    /**
+     * @return Coordinates of an image, see {@link ExifReader.Metadata#getCoordinates()}
+     */
+    public double[] getCoordinates(ImageSource image) throws IOException {
+        return get(image).getCoordinates();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        if (file != null) {
+            closeLog();
+            if (file.exists() && !file.delete()) {
+                MatchLog.w(TAG, "Could not delete metadata log: " + file);
+            }
+            rewrite();
+        }
+    }
+
+    private synchronized void append(String id, Entry entry) {
+        if (log == null) return;
+        try {
+            writeRecord(log, id, entry);
+            log.flush();
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not append to metadata log: " + file, e);
+            closeLog();
+        }
+    }
+
+    private void load() {
+        int records = 0;
+        boolean intact = false;
+        if (file.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() == MAGIC && in.readInt() == VERSION) {
+                    while (true) {
+                        int marker = in.read();
+                        if (marker == -1) {
+                            intact = true;
+                            break;
+                        }
+                        if (marker != RECORD) break;
+                        // Later records of the same image replace earlier ones
+                        String id = in.readUTF();
+                        entries.put(id, readEntry(in));
+                        records++;
+                    }
+                }
+            } catch (IOException e) {
+                MatchLog.w(TAG, "Metadata log truncated or unreadable, keeping " + entries.size() + " entries", e);
+            }
+        }
+
+        if (!intact || records > 2 * entries.size()) {
+            rewrite();
+        } else {
+            openLog();
+        }
+    }
+
+    /**
+     * Replace the log with one record per current entry and leave it open for appending
+     */
+    private void rewrite() {
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (entry.getValue().modified > 0) {
+                    writeRecord(out, entry.getKey(), entry.getValue());
+                }
+            }
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not write metadata log: " + temp, e);
+            temp.delete();
+            return;
+        }
+
+        if ((file.exists() && !file.delete()) || !temp.renameTo(file)) {
+            MatchLog.w(TAG, "Could not move metadata log into place: " + file);
+            temp.delete();
+            return;
+        }
+        openLog();
+    }
+
+    private void openLog() {
+        try {
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not open metadata log: " + file, e);
+            log = null;
+        }
+    }
+
+    private void closeLog() {
+        if (log == null) return;
+        try {
+            log.close();
+        } catch (IOException e) {
+            MatchLog.w(TAG, "Could not close metadata log: " + file, e);
+        }
+        log = null;
+    }
+
+    private static void writeRecord(DataOutputStream out, String id, Entry entry) throws IOException {
+        ExifReader.Metadata metadata = entry.metadata;
+        out.writeByte(RECORD);
+        out.writeUTF(id);
+        out.writeLong(entry.modified);
+        out.writeLong(entry.length);
+        out.writeInt(metadata.getWidth());
+        out.writeInt(metadata.getHeight());
+        out.writeInt(metadata.getOrientation());
+        out.writeBoolean(metadata.hasLocation());
+        out.writeDouble(metadata.getLatitude());
+        out.writeDouble(metadata.getLongitude());
+        out.writeDouble(metadata.getAltitude());
+        out.writeUTF(metadata.getContentHash() != null ? metadata.getContentHash() : "");
+    }
+
+    private static Entry readEntry(DataInputStream in) throws IOException {
+        long modified = in.readLong();
+        long length = in.readLong();
+        int width = in.readInt();
+        int height = in.readInt();
+        int orientation = in.readInt();
+        boolean hasLocation = in.readBoolean();
+        double latitude = in.readDouble();
+        double longitude = in.readDouble();
+        double altitude = in.readDouble();
+        String contentHash = in.readUTF();
+        return new Entry(modified, length, new ExifReader.Metadata(width, height, orientation,
+                hasLocation ? new double[] {latitude, longitude} : null, altitude,
+                contentHash.isEmpty() ? null : contentHash));
+    }
+
+    private static final class Entry {
+        final long modified;
+        final long length;
+        final ExifReader.Metadata metadata;
+
+        Entry(long modified, long length, ExifReader.Metadata metadata) {
+            this.modified = modified;
+            this.length = length;
+            this.metadata = metadata;
+        }
+    }
+}
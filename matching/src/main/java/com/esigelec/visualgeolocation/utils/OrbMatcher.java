@@ -1,14 +1,13 @@
 package com.esigelec.visualgeolocation.utils;
 
-import android.content.Context;
 import org.opencv.core.DMatch;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.features2d.DescriptorMatcher;
 import org.opencv.features2d.ORB;
 
 public class OrbMatcher extends BaseImageMatcher {
-    public OrbMatcher(Context context) {
-        super(context,
+    public OrbMatcher(DescriptorCache cache) {
+        super(cache,
               ORB.create(),
               DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING),
               "ORB");
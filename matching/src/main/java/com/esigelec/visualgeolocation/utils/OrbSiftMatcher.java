@@ -0,0 +1,182 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.Size;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coarse-to-fine matcher: ORB prunes the references, SIFT ranks the survivors.
+ *
+ * ORB features are matched with cheap Hamming distances against every reference, and only
+ * the best scoring ones go through SIFT's bidirectional matching. Features come from the
+ * wrapped matchers, so they are shared with plain ORB and SIFT runs through the cache.
+ */
+public class OrbSiftMatcher extends BaseImageMatcher {
+    private static final String TAG = "OrbSiftMatcher";
+    public static final String ALGORITHM = "ORB-SIFT";
+    private static final int DEFAULT_SURVIVORS = 20;
+    private static final double DEFAULT_MIN_ORB_SIMILARITY = 0.0;
+
+    private final SiftImageMatcher sift;
+    private final OrbMatcher orb;
+    private int survivorCount = DEFAULT_SURVIVORS;
+    private double minOrbSimilarity = DEFAULT_MIN_ORB_SIMILARITY;
+
+    public OrbSiftMatcher(DescriptorCache cache) {
+        this(cache, new SiftImageMatcher(cache), new OrbMatcher(cache));
+    }
+
+    private OrbSiftMatcher(DescriptorCache cache, SiftImageMatcher sift, OrbMatcher orb) {
+        super(cache, sift.detector, sift.matcher, ALGORITHM);
+        this.sift = sift;
+        this.orb = orb;
+        setPrefilterSize(sift.getPrefilterSize());
+    }
+
+    /**
+     * Configure the ORB stage
+     *
+     * @param minOrbSimilarity References with an ORB similarity at or below this are dropped
+     * @param survivorCount Maximum number of references passed on to SIFT
+     */
+    public void setPruning(double minOrbSimilarity, int survivorCount) {
+        this.minOrbSimilarity = minOrbSimilarity;
+        this.survivorCount = Math.max(1, survivorCount);
+    }
+
+    public double getMinOrbSimilarity() {
+        return minOrbSimilarity;
+    }
+
+    public int getSurvivorCount() {
+        return survivorCount;
+    }
+
+    @Override
+    public void findMatches(ImageSource testImage, List<ImageSource> referenceImages, TopKCollector collector) {
+        List<ImageSource> survivors;
+        try {
+            survivors = prune(testImage, referenceImages);
+        } catch (Exception e) {
+            MatchLog.e(TAG, "Error during ORB pruning", e);
+            return;
+        }
+        super.findMatches(testImage, survivors, collector);
+    }
+
+    @Override
+    public List<ImageSource> selectTargets(ImageSource source, List<ImageSource> targets) throws IOException {
+        // Batch pairs are scored one at a time, so the ORB stage runs once per batch row
+        return prune(source, targets);
+    }
+
+    @Override
+    public List<ImageSource> prefilter(ImageSource testImage, List<ImageSource> referenceImages) throws IOException {
+        // Global signatures first, then ORB; the query engine then only runs the SIFT stage
+        return prune(testImage, super.prefilter(testImage, referenceImages));
+    }
+
+    /**
+     * Keep the references ORB scores highest against the test image
+     *
+     * @param testImage Image to locate; excluded from the result
+     * @param referenceImages Candidate references
+     * @return Up to the survivor count of references above the ORB threshold, best first;
+     *         a single reference is returned as is
+     */
+    public List<ImageSource> prune(ImageSource testImage, List<ImageSource> referenceImages) throws IOException {
+        // ORB cannot rank a single reference against anything
+        if (referenceImages.size() <= 1) {
+            return referenceImages;
+        }
+        ImageFeatures orbTestFeatures = orb.extractFeatures(testImage);
+        TopKCollector survivors = new TopKCollector(survivorCount);
+        for (ImageSource refImage : referenceImages) {
+            if (refImage.equals(testImage)) continue;
+            double similarity = orb.scoreFeatures(orbTestFeatures, orb.extractFeatures(refImage));
+            if (similarity > minOrbSimilarity) {
+                survivors.offer(new MatchResult(refImage, similarity, orb.algorithmName));
+            }
+        }
+
+        List<ImageSource> kept = new ArrayList<>(survivors.size());
+        for (MatchResult result : survivors.snapshot()) {
+            kept.add(result.getImage());
+        }
+        if (MatchLog.isLoggable(TAG, MatchLog.DEBUG)) {
+            MatchLog.d(TAG, "ORB kept " + kept.size() + " of " + referenceImages.size() + " references");
+        }
+        return kept;
+    }
+
+    @Override
+    protected ImageFeatures extractFeatures(ImageSource image) throws IOException {
+        // SIFT features, cached under SIFT's key
+        return sift.extractFeatures(image);
+    }
+
+    @Override
+    protected double scoreFeatures(ImageFeatures testFeatures, ImageFeatures refFeatures) {
+        return sift.scoreFeatures(testFeatures, refFeatures);
+    }
+
+    @Override
+    protected double scoreFeatures(ImageFeatures testFeatures, ImageFeatures refFeatures, double threshold) {
+        return sift.scoreFeatures(testFeatures, refFeatures, threshold);
+    }
+
+    @Override
+    public CandidateIndex buildCandidateIndex(List<ImageSource> referenceImages) throws IOException {
+        // Built from SIFT's features and, when exported, SIFT's reference store
+        return sift.buildCandidateIndex(referenceImages);
+    }
+
+    @Override
+    public boolean exportFeatures(List<ImageSource> images, File storeFile) throws IOException {
+        // Stored under SIFT's keys, where extractFeatures looks them up
+        return sift.exportFeatures(images, storeFile);
+    }
+
+    @Override
+    public boolean attachReferenceStore(List<ImageSource> images) throws IOException {
+        return sift.attachReferenceStore(images);
+    }
+
+    @Override
+    public void exportReferenceStore(List<ImageSource> images) throws IOException {
+        sift.exportReferenceStore(images);
+    }
+
+    @Override
+    public void setKeypointBudget(int keypointBudget) {
+        super.setKeypointBudget(keypointBudget);
+        sift.setKeypointBudget(keypointBudget);
+        orb.setKeypointBudget(keypointBudget);
+    }
+
+    @Override
+    public void setGeometricVerification(GeometricVerifier.Model model) {
+        super.setGeometricVerification(model);
+        sift.setGeometricVerification(model);
+    }
+
+    @Override
+    protected double calculateSimilarity(MatOfDMatch matches) {
+        return sift.calculateSimilarity(matches);
+    }
+
+    @Override
+    public boolean isSymmetric() {
+        // Whether j survives the ORB stage of row i says nothing about i in row j
+        return false;
+    }
+
+    @Override
+    protected Size getTargetSize() {
+        return sift.getTargetSize();
+    }
+}
@@ -0,0 +1,88 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how many of a batch's matched pairs the global-signature prefilter would have
+ * kept, to choose the number of references it forwards to local-feature matching.
+ *
+ * The batch runs exhaustively; for each matched pair (source, target) the rank of the
+ * target among all other images by signature similarity to the source is recorded, and
+ * recall at M is the fraction of matched pairs ranked within the first M.
+ */
+public class PrefilterRecall {
+    private final List<int[]> matchedPairs = new ArrayList<>();
+
+    /**
+     * Record a pair reported as a match; safe to call from worker threads
+     */
+    public synchronized void addMatch(int source, int target) {
+        matchedPairs.add(new int[]{source, target});
+    }
+
+    public synchronized int getMatchCount() {
+        return matchedPairs.size();
+    }
+
+    /**
+     * @param signatures Signature of every image of the batch, by batch index
+     * @param m Number of references the prefilter forwards
+     * @return Fraction of matched pairs whose target ranks within the first m, or 1 without matches
+     */
+    public synchronized double recallAt(float[][] signatures, int m) {
+        if (matchedPairs.isEmpty()) return 1.0;
+        int kept = 0;
+        for (int[] pair : matchedPairs) {
+            if (rankOf(signatures, pair[0], pair[1]) < m) kept++;
+        }
+        return kept / (double) matchedPairs.size();
+    }
+
+    /**
+     * Recall of any other shortlisting stage, such as a {@link CandidateIndex}
+     *
+     * @param shortlists References kept for every image of the batch, by batch index
+     * @return Fraction of matched pairs whose target is in the source's shortlist, or 1 without matches
+     */
+    public synchronized double recallWithin(int[][] shortlists) {
+        if (matchedPairs.isEmpty()) return 1.0;
+        int kept = 0;
+        for (int[] pair : matchedPairs) {
+            for (int candidate : shortlists[pair[0]]) {
+                if (candidate == pair[1]) {
+                    kept++;
+                    break;
+                }
+            }
+        }
+        return kept / (double) matchedPairs.size();
+    }
+
+    /**
+     * @param signatures Signature of every image of the batch, by batch index
+     * @param ms Values of M to report
+     * @return One line such as "Prefilter recall over 8 matched pairs: @5 62.5% @10 87.5%"
+     */
+    public String report(float[][] signatures, int... ms) {
+        StringBuilder builder = new StringBuilder("Prefilter recall over ")
+                .append(getMatchCount()).append(" matched pairs:");
+        for (int m : ms) {
+            builder.append(String.format(Locale.US, " @%d %.1f%%", m, 100 * recallAt(signatures, m)));
+        }
+        return builder.toString();
+    }
+
+    private static int rankOf(float[][] signatures, int source, int target) {
+        float targetScore = GlobalSignature.similarity(signatures[source], signatures[target]);
+        int rank = 0;
+        for (int i = 0; i < signatures.length; i++) {
+            if (i != source && i != target
+                    && GlobalSignature.similarity(signatures[source], signatures[i]) > targetScore) {
+                rank++;
+            }
+        }
+        return rank;
+    }
+}
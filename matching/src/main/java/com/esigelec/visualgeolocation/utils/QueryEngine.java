@@ -0,0 +1,124 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Matches one test image against a reference set across a work-stealing pool.
+ *
+ * The test features are extracted once, then every reference is scored as its own task by
+ * whichever worker is free, each worker using its own matcher from a {@link MatcherPool}.
+ * Results go to a shared {@link TopKCollector}, so query latency scales with the number of
+ * threads while memory stays bounded by K.
+ */
+public class QueryEngine {
+    private static final String TAG = "QueryEngine";
+    // At most this many progress callbacks per query
+    private static final int PROGRESS_STEPS = 100;
+
+    public interface Listener {
+        /**
+         * Called on a worker thread, at most a hundred times per query
+         *
+         * @param completed References scored so far
+         * @param total References in the query
+         */
+        void onProgress(int completed, int total);
+
+        /**
+         * Called on a worker thread once every reference has been scored; not called
+         * when the query is cancelled or the test image cannot be read
+         */
+        void onComplete();
+
+        /**
+         * Called on a worker thread if the test image features cannot be extracted
+         */
+        void onError(Exception e);
+    }
+
+    private final MatcherPool matcherPool;
+    private final int threadCount;
+    private ExecutorService executorService;
+    private AtomicBoolean cancelled;
+
+    public QueryEngine(MatcherPool matcherPool, int threadCount) {
+        this.matcherPool = matcherPool;
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Start matching a test image; a query already running is cancelled first
+     *
+     * @param testImage Image to locate; skipped if it is among the references
+     * @param referenceImages References to score
+     * @param collector Receives every reported match
+     * @param listener Receives progress and completion from the worker threads
+     */
+    public synchronized void start(ImageSource testImage, List<ImageSource> referenceImages,
+                                   TopKCollector collector, Listener listener) {
+        cancel();
+        final ExecutorService pool = Executors.newWorkStealingPool(threadCount);
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        executorService = pool;
+        cancelled = stop;
+
+        final int total = referenceImages.size();
+        if (total == 0) {
+            listener.onComplete();
+            return;
+        }
+
+        pool.execute(() -> {
+            ImageFeatures testFeatures;
+            try {
+                testFeatures = matcherPool.get().getFeatures(testImage);
+            } catch (Exception e) {
+                MatchLog.e(TAG, "Could not extract test image features", e);
+                listener.onError(e);
+                pool.shutdown();
+                return;
+            }
+
+            AtomicInteger completed = new AtomicInteger();
+            for (ImageSource refImage : referenceImages) {
+                if (stop.get()) return;
+                pool.execute(() -> {
+                    if (stop.get()) return;
+                    if (!refImage.equals(testImage)) {
+                        try {
+                            matcherPool.get().matchReference(testFeatures, refImage, collector);
+                        } catch (Exception e) {
+                            MatchLog.e(TAG, "Error matching " + refImage, e);
+                        }
+                    }
+
+                    int done = completed.incrementAndGet();
+                    if (stop.get()) return;
+                    if (done == total || (long) done * PROGRESS_STEPS / total != (long) (done - 1) * PROGRESS_STEPS / total) {
+                        listener.onProgress(done, total);
+                    }
+                    if (done == total) {
+                        listener.onComplete();
+                        pool.shutdown();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stop the running query; queued references are dropped and results already
+     * collected are kept by the collector
+     */
+    public synchronized void cancel() {
+        if (executorService != null) {
+            cancelled.set(true);
+            executorService.shutdownNow();
+            executorService = null;
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.Size;
+import org.opencv.features2d.BFMatcher;
+import org.opencv.features2d.SIFT;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SiftImageMatcher extends BaseImageMatcher {
+    private static final String TAG = "SiftImageMatcher";
+    static final float RATIO_THRESHOLD = 0.85f; // Lowe's ratio test threshold
+    private static final int MIN_FEATURE_MATCHES = 30; // Minimum number of feature matches required
+    private static final Size STANDARD_SIZE = new Size(500, 500);
+    private static final int PREFILTER_SIZE = 50; // References forwarded by the global-signature prefilter
+    // Layout of a DMatch in a MatOfDMatch buffer
+    private static final int DMATCH_FLOATS = 4;
+    private static final int QUERY_IDX = 0;
+    private static final int TRAIN_IDX = 1;
+    private static final int DISTANCE = 3;
+
+    // Reused across pairs; their Mats are released at the end of each pair
+    private final List<MatOfDMatch> knnMatches12 = new ArrayList<>();
+    private final List<MatOfDMatch> knnMatches21 = new ArrayList<>();
+    // Reused across pairs, grown on demand
+    private final float[] row = new float[2 * DMATCH_FLOATS];
+    private int[] reverse = new int[0];
+    private int[] pairs = new int[0];
+    private boolean useKdForest = false;
+    private int kdForestChecks = KdForestIndex.DEFAULT_CHECKS;
+
+    public SiftImageMatcher(DescriptorCache cache) {
+        super(cache,
+              SIFT.create(),
+              BFMatcher.create(Core.NORM_L2, false), // Use BFMatcher instead of FLANN
+              "SIFT");
+    }
+
+    @Override
+    protected double calculateSimilarity(MatOfDMatch matches) {
+        return similarityForMatchCount((int) matches.total());
+    }
+
+    private static double similarityForMatchCount(int matchCount) {
+        // Calculate similarity based on number of good matches
+        return matchCount / 100.0; // Normalize by expected number of matches
+    }
+
+    /**
+     * Find bidirectional matches between two images
+     * This ensures symmetric matching (A→B same as B→A)
+     *
+     * @return Number of matched descriptor pairs, held in {@link #pairs} as consecutive
+     *         (index in descriptors1, index in descriptors2) until the next call
+     */
+    int findBidirectionalMatches(Mat descriptors1, Mat descriptors2) {
+        try (MatArena.Scope scope = arena.open()) {
+            // knnMatch returns one MatOfDMatch per query descriptor
+            scope.trackAll(knnMatches12);
+            scope.trackAll(knnMatches21);
+            return findBidirectionalMatches(descriptors1, descriptors2, knnMatches12, knnMatches21);
+        }
+    }
+
+    private int findBidirectionalMatches(Mat descriptors1, Mat descriptors2,
+                                         List<MatOfDMatch> knnMatches12, List<MatOfDMatch> knnMatches21) {
+        // Match in both directions: 1→2 and 2→1
+        long start = metrics.start();
+        // Forward matching (descriptors1 → descriptors2)
+        matcher.knnMatch(descriptors1, descriptors2, knnMatches12, 2);
+        
+        // Backward matching (descriptors2 → descriptors1)
+        matcher.knnMatch(descriptors2, descriptors1, knnMatches21, 2);
+        metrics.stop(MatchMetrics.Stage.MATCH, start);
+        metrics.count(MatchMetrics.Counter.RAW_MATCHES, knnMatches12.size() + knnMatches21.size());
+
+        start = metrics.start();
+
+        // Ratio-tested backward matches, indexed by their query (a row of descriptors2)
+        int rows = descriptors2.rows();
+        if (reverse.length < rows) {
+            reverse = new int[rows];
+        }
+        Arrays.fill(reverse, 0, rows, -1);
+        int backwardCount = 0;
+        for (MatOfDMatch matOfDMatch : knnMatches21) {
+            int trainIdx = passesRatioTest(matOfDMatch, row);
+            if (trainIdx >= 0) {
+                reverse[(int) row[QUERY_IDX]] = trainIdx;
+                backwardCount++;
+            }
+        }
+        
+        // Keep forward matches whose target maps straight back to them
+        int maxPairs = 2 * Math.min(knnMatches12.size(), backwardCount);
+        if (pairs.length < maxPairs) {
+            pairs = new int[maxPairs];
+        }
+        int forwardCount = 0;
+        int pairCount = 0;
+        for (MatOfDMatch matOfDMatch : knnMatches12) {
+            int trainIdx = passesRatioTest(matOfDMatch, row);
+            if (trainIdx < 0) continue;
+            forwardCount++;
+
+            int queryIdx = (int) row[QUERY_IDX];
+            if (reverse[trainIdx] == queryIdx) {
+                pairs[2 * pairCount] = queryIdx;
+                pairs[2 * pairCount + 1] = trainIdx;
+                pairCount++;
+            }
+        }
+        
+        metrics.stop(MatchMetrics.Stage.FILTER, start);
+        metrics.count(MatchMetrics.Counter.GOOD_MATCHES, pairCount);
+        if (MatchLog.isLoggable(TAG, MatchLog.DEBUG)) {
+            MatchLog.d(TAG, "Forward matches: " + forwardCount +
+                  ", Backward matches: " + backwardCount + 
+                  ", Bidirectional matches: " + pairCount);
+        }
+        
+        return pairCount;
+    }
+
+    /**
+     * Apply Lowe's ratio test to one knn row, read straight from its native buffer
+     *
+     * @param knnRow Two nearest matches of one query descriptor
+     * @param row Scratch buffer of at least two matches
+     * @return Train index of the best match, or -1 if the row fails the test
+     */
+    private static int passesRatioTest(MatOfDMatch knnRow, float[] row) {
+        if (knnRow.total() < 2) return -1;
+        knnRow.get(0, 0, row);
+        float best = row[DISTANCE];
+        float second = row[DMATCH_FLOATS + DISTANCE];
+        return best < RATIO_THRESHOLD * second ? (int) row[TRAIN_IDX] : -1;
+    }
+
+    /**
+     * Shortlist references with a randomized KD-tree forest over all reference descriptors
+     * instead of the visual vocabulary. Pair scoring still uses the brute-force matcher.
+     *
+     * @param useKdForest Whether {@link #buildCandidateIndex} builds a {@link KdForestIndex}
+     * @param checks Descriptor comparisons per query descriptor
+     */
+    public void setKdForest(boolean useKdForest, int checks) {
+        this.useKdForest = useKdForest;
+        this.kdForestChecks = checks;
+    }
+
+    public boolean isKdForestEnabled() {
+        return useKdForest;
+    }
+
+    @Override
+    protected CandidateIndex indexDescriptors(List<Mat> descriptors) {
+        return useKdForest
+                ? KdForestIndex.build(descriptors, KdForestIndex.DEFAULT_TREES, kdForestChecks, RATIO_THRESHOLD)
+                : super.indexDescriptors(descriptors);
+    }
+
+    @Override
+    protected CandidateIndex buildCandidateIndex(DescriptorStore.Reader store) {
+        // The vocabulary matches words through Mats, so only the forest reads the store in place
+        return useKdForest
+                ? KdForestIndex.build(store, KdForestIndex.DEFAULT_TREES, kdForestChecks, RATIO_THRESHOLD)
+                : null;
+    }
+
+    /**
+     * Measure KD-forest recall and speed against brute-force search for several checks
+     * values, to choose the operating point passed to {@link #setKdForest}
+     *
+     * @param queryImages Images whose descriptors are used as queries
+     * @param referenceImages Reference set indexed by the forest
+     * @param checksValues Checks values to compare
+     * @return One operating point per checks value, also written to the log
+     */
+    public List<KdForestIndex.OperatingPoint> evaluateKdForest(List<ImageSource> queryImages, List<ImageSource> referenceImages,
+                                                               int... checksValues) throws IOException {
+        List<Mat> descriptors = new ArrayList<>(referenceImages.size());
+        for (ImageSource image : referenceImages) {
+            descriptors.add(extractFeatures(image).getDescriptors());
+        }
+        KdForestIndex index = KdForestIndex.build(descriptors, KdForestIndex.DEFAULT_TREES,
+                kdForestChecks, RATIO_THRESHOLD);
+
+        List<Mat> queries = new ArrayList<>(queryImages.size());
+        for (ImageSource image : queryImages) {
+            Mat queryDescriptors = extractFeatures(image).getDescriptors();
+            if (!queryDescriptors.empty()) queries.add(queryDescriptors);
+        }
+        Mat allQueries = new Mat();
+        Core.vconcat(queries, allQueries);
+
+        List<KdForestIndex.OperatingPoint> points = index.evaluate(allQueries, checksValues);
+        allQueries.release();
+        for (KdForestIndex.OperatingPoint point : points) {
+            MatchLog.i(TAG, "KD-forest " + point);
+        }
+        return points;
+    }
+
+    @Override
+    public boolean isSymmetric() {
+        // Bidirectional filtering keeps the same match set in both directions, but a RANSAC
+        // fit from one image to the other need not find as many inliers as the reverse fit
+        return !isGeometricVerificationEnabled();
+    }
+
+    @Override
+    protected Size getTargetSize() {
+        return STANDARD_SIZE;
+    }
+
+    @Override
+    protected int getDefaultPrefilterSize() {
+        return PREFILTER_SIZE;
+    }
+
+    @Override
+    protected double scoreFeatures(ImageFeatures testFeatures, ImageFeatures refFeatures) {
+        return scoreFeatures(testFeatures, refFeatures, Double.NEGATIVE_INFINITY);
+    }
+
+    @Override
+    protected double scoreFeatures(ImageFeatures testFeatures, ImageFeatures refFeatures, double threshold) {
+        // Find bidirectional matches (symmetric matching)
+        int matchCount = findBidirectionalMatches(
+                testFeatures.getDescriptors(), refFeatures.getDescriptors());
+        
+        // Only include matches that exceed our minimum threshold
+        if (matchCount < MIN_FEATURE_MATCHES) {
+            if (MatchLog.isLoggable(TAG, MatchLog.DEBUG)) {
+                MatchLog.d(TAG, "Skipping pair due to insufficient bidirectional matches: " +
+                      matchCount + " < " + MIN_FEATURE_MATCHES);
+            }
+            return NO_MATCH;
+        }
+        
+        double similarity = similarityForMatchCount(matchCount);
+        if (isGeometricVerificationEnabled()) {
+            // Inliers are a subset of the matches, so verification can only lower the score
+            if (similarity <= threshold) {
+                metrics.increment(MatchMetrics.Counter.VERIFY_SKIPPED);
+                return similarity;
+            }
+            int inliers = verifyGeometry(testFeatures, refFeatures, pairs, matchCount);
+            if (inliers < MIN_INLIERS) {
+                return NO_MATCH;
+            }
+            similarity = similarityForMatchCount(inliers);
+        }
+        if (MatchLog.isLoggable(TAG, MatchLog.DEBUG)) {
+            MatchLog.d(TAG, "Similarity score: " + similarity + " with " + matchCount + " matches");
+        }
+        return similarity;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,109 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Dense N x N matrix of batch similarity scores.
+ *
+ * Scores are stored as float bits in a single flat array indexed by row * N + column,
+ * with an image-id dictionary mapping ids to rows. Each cell is written by exactly one
+ * worker, so writes are lock-free and readers on other threads see either the old or
+ * the new value. Cells that were never computed hold NaN.
+ */
+public class SimilarityMatrix {
+    private static final int EMPTY = Float.floatToRawIntBits(Float.NaN);
+
+    private final String[] imageIds;
+    private final Map<String, Integer> indexById;
+    private final AtomicIntegerArray cells;
+    private final AtomicInteger filledCount = new AtomicInteger();
+
+    public SimilarityMatrix(List<String> imageIds) {
+        int size = imageIds.size();
+        this.imageIds = imageIds.toArray(new String[0]);
+        this.indexById = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            indexById.put(this.imageIds[i], i);
+        }
+
+        this.cells = new AtomicIntegerArray(size * size);
+        for (int i = 0; i < size * size; i++) {
+            cells.lazySet(i, EMPTY);
+        }
+    }
+
+    /**
+     * Copy the matrix with rows and columns for more images. Call it while no worker writes
+     * to this matrix.
+     *
+     * @param addedIds Ids of the appended images
+     * @return Matrix over this matrix's images followed by the appended ones, holding the
+     *         same scores, with NaN in the new rows and columns
+     */
+    public SimilarityMatrix extend(List<String> addedIds) {
+        List<String> ids = new ArrayList<>(imageIds.length + addedIds.size());
+        Collections.addAll(ids, imageIds);
+        ids.addAll(addedIds);
+
+        SimilarityMatrix extended = new SimilarityMatrix(ids);
+        for (int source = 0; source < imageIds.length; source++) {
+            for (int target = 0; target < imageIds.length; target++) {
+                if (contains(source, target)) {
+                    extended.set(source, target, get(source, target));
+                }
+            }
+        }
+        return extended;
+    }
+
+    public int size() {
+        return imageIds.length;
+    }
+
+    public String getImageId(int index) {
+        return imageIds[index];
+    }
+
+    /**
+     * @return Row of the image, or -1 if it is not part of the matrix
+     */
+    public int indexOf(String imageId) {
+        Integer index = indexById.get(imageId);
+        return index != null ? index : -1;
+    }
+
+    public void set(int source, int target, float similarity) {
+        int previous = cells.getAndSet(source * imageIds.length + target, Float.floatToRawIntBits(similarity));
+        if (previous == EMPTY) {
+            filledCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Similarity of the pair, or NaN if it has not been computed
+     */
+    public float get(int source, int target) {
+        return Float.intBitsToFloat(cells.get(source * imageIds.length + target));
+    }
+
+    public boolean contains(int source, int target) {
+        return cells.get(source * imageIds.length + target) != EMPTY;
+    }
+
+    /**
+     * @return Number of cells holding a score
+     */
+    public int getFilledCount() {
+        return filledCount.get();
+    }
+
+    public boolean isEmpty() {
+        return filledCount.get() == 0;
+    }
+}
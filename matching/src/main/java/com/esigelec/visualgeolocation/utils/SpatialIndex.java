@@ -0,0 +1,176 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Grid index over the locations of the reference images.
+ *
+ * The globe is cut into cells of a fixed size in degrees, numbered row by row, and the
+ * locations are stored sorted by cell. A radius query turns the circle's bounding box into
+ * one run of cell numbers per row, finds each run with a binary search, and checks the
+ * points inside with {@link LocationUtils#filterWithinDistance}. With a coarse prior on where
+ * the test image was taken, only the references near it then need to be matched.
+ *
+ * References without coordinates are not indexed and are never returned.
+ */
+public class SpatialIndex {
+    public static final double DEFAULT_CELL_DEGREES = 0.01; // About 1.1 km of latitude
+
+    private final double cellDegrees;
+    private final int latCells;
+    private final int lngCells;
+    private final long[] keys;
+    private final double[] lats;
+    private final double[] lngs;
+    private final int[] ids;
+
+    /**
+     * @param coordinates [latitude, longitude] of every reference, null where unknown
+     */
+    public SpatialIndex(double[][] coordinates) {
+        this(coordinates, DEFAULT_CELL_DEGREES);
+    }
+
+    /**
+     * @param coordinates [latitude, longitude] of every reference, null where unknown
+     * @param cellDegrees Cell size; close to the usual query radius works best
+     */
+    public SpatialIndex(double[][] coordinates, double cellDegrees) {
+        if (!(cellDegrees > 0)) {
+            throw new IllegalArgumentException("Cell size must be positive: " + cellDegrees);
+        }
+        this.cellDegrees = cellDegrees;
+        this.latCells = (int) Math.ceil(180 / cellDegrees);
+        this.lngCells = (int) Math.ceil(360 / cellDegrees);
+        if ((long) latCells * lngCells > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cell size too small: " + cellDegrees);
+        }
+
+        // Sort by (cell, reference) packed into one long
+        long[] packed = new long[coordinates.length];
+        int count = 0;
+        for (int i = 0; i < coordinates.length; i++) {
+            double[] location = coordinates[i];
+            if (location == null || (location[0] == 0 && location[1] == 0)) continue;
+            packed[count++] = (cellOf(location[0], location[1]) << 32) | i;
+        }
+        Arrays.sort(packed, 0, count);
+
+        keys = new long[count];
+        lats = new double[count];
+        lngs = new double[count];
+        ids = new int[count];
+        for (int i = 0; i < count; i++) {
+            int id = (int) packed[i];
+            keys[i] = packed[i] >>> 32;
+            lats[i] = coordinates[id][0];
+            lngs[i] = coordinates[id][1];
+            ids[i] = id;
+        }
+    }
+
+    /**
+     * @return Number of references with coordinates
+     */
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Find the references within a distance of a point
+     *
+     * @param lat Latitude of the prior in degrees
+     * @param lng Longitude of the prior in degrees
+     * @param radius Distance in meters
+     * @return Indices of the references within the radius, ascending
+     */
+    public int[] query(double lat, double lng, double radius) {
+        int[] found = new int[ids.length];
+        int count = 0;
+
+        double angle = radius / LocationUtils.EARTH_RADIUS;
+        double latDelta = Math.toDegrees(angle);
+        int firstRow = latRow(lat - latDelta);
+        int lastRow = latRow(lat + latDelta);
+
+        // Longitude half-width of a spherical cap; the whole row when the cap holds a pole
+        double lngDelta = Math.abs(lat) + latDelta >= 90 ? 180
+                : Math.toDegrees(Math.asin(Math.min(1, Math.sin(angle) / Math.cos(Math.toRadians(lat)))));
+        int firstColumn = (int) Math.floor((lng - lngDelta + 180) / cellDegrees);
+        int lastColumn = (int) Math.floor((lng + lngDelta + 180) / cellDegrees);
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            long rowStart = (long) row * lngCells;
+            if (lastColumn - firstColumn + 1 >= lngCells) {
+                count = queryRun(rowStart, rowStart + lngCells - 1, lat, lng, radius, found, count);
+                continue;
+            }
+            // The run wraps around the antimeridian as two runs
+            int first = Math.floorMod(firstColumn, lngCells);
+            int last = Math.floorMod(lastColumn, lngCells);
+            if (first <= last) {
+                count = queryRun(rowStart + first, rowStart + last, lat, lng, radius, found, count);
+            } else {
+                count = queryRun(rowStart + first, rowStart + lngCells - 1, lat, lng, radius, found, count);
+                count = queryRun(rowStart, rowStart + last, lat, lng, radius, found, count);
+            }
+        }
+
+        int[] result = new int[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = ids[found[i]];
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Keep the references within a distance of a point
+     *
+     * @param references Items in the order the index was built from
+     * @param lat Latitude of the prior in degrees
+     * @param lng Longitude of the prior in degrees
+     * @param radius Distance in meters
+     * @return References within the radius, in their original order
+     */
+    public <T> List<T> filter(List<T> references, double lat, double lng, double radius) {
+        int[] indices = query(lat, lng, radius);
+        List<T> nearby = new ArrayList<>(indices.length);
+        for (int index : indices) {
+            nearby.add(references.get(index));
+        }
+        return nearby;
+    }
+
+    private int queryRun(long firstKey, long lastKey, double lat, double lng, double radius, int[] found, int count) {
+        int from = lowerBound(firstKey);
+        int to = lowerBound(lastKey + 1);
+        return from < to ? LocationUtils.filterWithinDistance(lat, lng, radius, lats, lngs, from, to, found, count)
+                : count;
+    }
+
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private long cellOf(double lat, double lng) {
+        int column = Math.floorMod((int) Math.floor((lng + 180) / cellDegrees), lngCells);
+        return (long) latRow(lat) * lngCells + column;
+    }
+
+    private int latRow(double lat) {
+        return Math.max(0, Math.min(latCells - 1, (int) Math.floor((lat + 90) / cellDegrees)));
+    }
+}
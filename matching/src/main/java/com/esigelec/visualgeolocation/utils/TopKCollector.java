@@ -0,0 +1,92 @@
+package com.esigelec.visualgeolocation.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the K most similar match results seen so far.
+ *
+ * Results are held in a min-heap ordered by similarity, so each offer costs O(log K) and
+ * memory stays O(K) whatever the size of the reference set. A listener is told every time
+ * the top K changes, which lets the UI show partial rankings while matching continues.
+ * Offers may come from several threads.
+ */
+public class TopKCollector {
+    public interface Listener {
+        /**
+         * Called on the offering thread, under the collector's lock, so it should only
+         * hand the snapshot off (for example by posting it to the UI thread)
+         *
+         * @param topMatches Current top K, best first
+         */
+        void onTopKChanged(List<ImageMatcher.MatchResult> topMatches);
+    }
+
+    private final int k;
+    private final PriorityQueue<ImageMatcher.MatchResult> heap;
+    private Listener listener;
+
+    /**
+     * @param k Number of results to keep
+     */
+    public TopKCollector(int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        this.k = k;
+        this.heap = new PriorityQueue<>(k, (a, b) -> Double.compare(a.getSimilarity(), b.getSimilarity()));
+    }
+
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Add a result if it ranks among the best K
+     *
+     * @param result Scored reference image
+     * @return Whether the top K changed
+     */
+    public synchronized boolean offer(ImageMatcher.MatchResult result) {
+        if (heap.size() < k) {
+            heap.add(result);
+        } else if (result.getSimilarity() > heap.peek().getSimilarity()) {
+            heap.poll();
+            heap.add(result);
+        } else {
+            return false;
+        }
+
+        if (listener != null) {
+            listener.onTopKChanged(snapshot());
+        }
+        return true;
+    }
+
+    /**
+     * Similarity a new result has to beat to enter the top K
+     *
+     * @return Lowest kept similarity once K results are held, otherwise negative infinity
+     */
+    public synchronized double getThreshold() {
+        return heap.size() < k ? Double.NEGATIVE_INFINITY : heap.peek().getSimilarity();
+    }
+
+    /**
+     * @return Copy of the current top K, best first
+     */
+    public synchronized List<ImageMatcher.MatchResult> snapshot() {
+        List<ImageMatcher.MatchResult> results = new ArrayList<>(heap);
+        results.sort((a, b) -> Double.compare(b.getSimilarity(), a.getSimilarity()));
+        return results;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public synchronized int size() {
+        return heap.size();
+    }
+}
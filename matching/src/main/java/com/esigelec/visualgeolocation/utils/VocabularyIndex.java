@@ -0,0 +1,238 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.TermCriteria;
+import org.opencv.features2d.BFMatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bag-of-visual-words inverted index with TF-IDF scoring.
+ *
+ * The vocabulary is learned with k-means from a sample of the reference descriptors, which
+ * must be float descriptors (SIFT); binary descriptors go to {@link BinaryDescriptorIndex}.
+ * Each reference is stored as TF-IDF weighted word postings, so a query only touches the
+ * postings of the words it contains.
+ */
+public class VocabularyIndex implements CandidateIndex {
+    private static final int DEFAULT_VOCABULARY_SIZE = 1000;
+    private static final int MAX_TRAINING_ROWS = 50000;
+    private static final int MAX_ITERATIONS = 15;
+
+    private final Mat vocabulary;
+    private final int imageCount;
+    private final float[] idf;
+    private final float[] imageNorms;
+    // Postings in compressed-row form: word w owns entries [postingStart[w], postingStart[w + 1])
+    private final int[] postingStart;
+    private final int[] postingImages;
+    private final float[] postingWeights;
+
+    private VocabularyIndex(Mat vocabulary, List<int[]> imageWords) {
+        this.vocabulary = vocabulary;
+        this.imageCount = imageWords.size();
+
+        int wordCount = vocabulary.rows();
+        int[] documentFrequency = new int[wordCount];
+        List<int[]> imageTerms = new ArrayList<>(imageCount);
+        for (int[] words : imageWords) {
+            int[] terms = countTerms(words, wordCount);
+            imageTerms.add(terms);
+            for (int k = 0; k < terms.length; k += 2) {
+                documentFrequency[terms[k]]++;
+            }
+        }
+
+        idf = new float[wordCount];
+        postingStart = new int[wordCount + 1];
+        for (int w = 0; w < wordCount; w++) {
+            idf[w] = documentFrequency[w] > 0 ? (float) Math.log((double) imageCount / documentFrequency[w]) : 0f;
+            postingStart[w + 1] = postingStart[w] + documentFrequency[w];
+        }
+
+        postingImages = new int[postingStart[wordCount]];
+        postingWeights = new float[postingStart[wordCount]];
+        imageNorms = new float[imageCount];
+        int[] fill = Arrays.copyOf(postingStart, wordCount);
+
+        for (int image = 0; image < imageCount; image++) {
+            int[] terms = imageTerms.get(image);
+            int totalWords = Math.max(1, imageWords.get(image).length);
+            double norm = 0;
+            for (int k = 0; k < terms.length; k += 2) {
+                int word = terms[k];
+                float weight = (float) terms[k + 1] / totalWords * idf[word];
+                int slot = fill[word]++;
+                postingImages[slot] = image;
+                postingWeights[slot] = weight;
+                norm += weight * weight;
+            }
+            imageNorms[image] = (float) Math.sqrt(norm);
+        }
+    }
+
+    /**
+     * Learn a vocabulary from the reference descriptors and index every reference
+     *
+     * @param referenceDescriptors CV_32F descriptors of each reference image, in reference order
+     * @return Index over the references
+     */
+    public static VocabularyIndex build(List<Mat> referenceDescriptors) {
+        return build(referenceDescriptors, DEFAULT_VOCABULARY_SIZE);
+    }
+
+    /**
+     * Learn a vocabulary from the reference descriptors and index every reference
+     *
+     * @param referenceDescriptors CV_32F descriptors of each reference image, in reference order
+     * @param vocabularySize Number of visual words
+     * @return Index over the references
+     */
+    public static VocabularyIndex build(List<Mat> referenceDescriptors, int vocabularySize) {
+        Mat sample = sampleRows(referenceDescriptors);
+        int wordCount = Math.max(1, Math.min(vocabularySize, sample.rows()));
+        Mat vocabulary = trainKMeans(sample, wordCount);
+        sample.release();
+
+        List<int[]> imageWords = new ArrayList<>(referenceDescriptors.size());
+        for (Mat descriptors : referenceDescriptors) {
+            imageWords.add(assignWords(descriptors, vocabulary));
+        }
+        return new VocabularyIndex(vocabulary, imageWords);
+    }
+
+    @Override
+    public int[] shortlist(Mat queryDescriptors, int topK) {
+        int[] terms = countTerms(assignWords(queryDescriptors, vocabulary), vocabulary.rows());
+        int totalWords = Math.max(1, queryDescriptors.rows());
+
+        float[] scores = new float[imageCount];
+        double queryNorm = 0;
+        for (int k = 0; k < terms.length; k += 2) {
+            int word = terms[k];
+            float queryWeight = (float) terms[k + 1] / totalWords * idf[word];
+            queryNorm += queryWeight * queryWeight;
+            for (int slot = postingStart[word]; slot < postingStart[word + 1]; slot++) {
+                scores[postingImages[slot]] += queryWeight * postingWeights[slot];
+            }
+        }
+
+        float normalizer = (float) Math.sqrt(queryNorm);
+        for (int image = 0; image < imageCount; image++) {
+            float denominator = normalizer * imageNorms[image];
+            scores[image] = denominator > 0 ? scores[image] / denominator : 0f;
+        }
+        return CandidateIndex.topIndices(scores, topK);
+    }
+
+    @Override
+    public int size() {
+        return imageCount;
+    }
+
+    public int getVocabularySize() {
+        return vocabulary.rows();
+    }
+
+    /**
+     * Find the nearest word for every descriptor
+     */
+    private static int[] assignWords(Mat descriptors, Mat vocabulary) {
+        if (descriptors.empty()) {
+            return new int[0];
+        }
+
+        MatOfDMatch matches = new MatOfDMatch();
+        BFMatcher.create(Core.NORM_L2, false).match(descriptors, vocabulary, matches);
+
+        // Each match is stored as (queryIdx, trainIdx, imgIdx, distance)
+        int count = (int) matches.total();
+        float[] buffer = new float[count * 4];
+        matches.get(0, 0, buffer);
+        matches.release();
+
+        int[] words = new int[count];
+        for (int i = 0; i < count; i++) {
+            words[(int) buffer[i * 4]] = (int) buffer[i * 4 + 1];
+        }
+        return words;
+    }
+
+    /**
+     * Collapse word ids into (word, count) pairs
+     */
+    private static int[] countTerms(int[] words, int wordCount) {
+        int[] counts = new int[wordCount];
+        int distinct = 0;
+        for (int word : words) {
+            if (counts[word]++ == 0) distinct++;
+        }
+
+        int[] terms = new int[distinct * 2];
+        int k = 0;
+        for (int word = 0; word < wordCount && k < terms.length; word++) {
+            if (counts[word] > 0) {
+                terms[k++] = word;
+                terms[k++] = counts[word];
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Copy an evenly strided subset of all reference rows into one training Mat
+     */
+    private static Mat sampleRows(List<Mat> referenceDescriptors) {
+        long totalRows = 0;
+        int type = -1;
+        int cols = 0;
+        for (Mat descriptors : referenceDescriptors) {
+            if (descriptors.empty()) continue;
+            totalRows += descriptors.rows();
+            type = descriptors.type();
+            cols = descriptors.cols();
+        }
+        if (totalRows == 0) {
+            throw new IllegalArgumentException("No descriptors to train a vocabulary");
+        }
+        if (CvType.depth(type) != CvType.CV_32F) {
+            throw new IllegalArgumentException("Vocabulary needs float descriptors, use BinaryDescriptorIndex");
+        }
+
+        int stride = (int) Math.max(1, (totalRows + MAX_TRAINING_ROWS - 1) / MAX_TRAINING_ROWS);
+        int sampleCount = 0;
+        for (Mat descriptors : referenceDescriptors) {
+            sampleCount += (descriptors.rows() + stride - 1) / stride;
+        }
+
+        float[] floatSample = new float[sampleCount * cols];
+        int filled = 0;
+        for (Mat descriptors : referenceDescriptors) {
+            int rows = descriptors.rows();
+            if (rows == 0) continue;
+            float[] data = new float[rows * cols];
+            descriptors.get(0, 0, data);
+            for (int row = 0; row < rows; row += stride) {
+                System.arraycopy(data, row * cols, floatSample, filled++ * cols, cols);
+            }
+        }
+
+        Mat sample = new Mat(sampleCount, cols, type);
+        sample.put(0, 0, floatSample);
+        return sample;
+    }
+
+    private static Mat trainKMeans(Mat sample, int wordCount) {
+        Mat labels = new Mat();
+        Mat centers = new Mat();
+        TermCriteria criteria = new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, MAX_ITERATIONS, 1e-3);
+        Core.kmeans(sample, wordCount, labels, criteria, 1, Core.KMEANS_PP_CENTERS, centers);
+        labels.release();
+        return centers;
+    }
+}
@@ -0,0 +1,235 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BatchCheckpointTest {
+    private static final String JOB = "SIFT verify=OFF keypoints=0";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private final ImageSource a = new FakeImageSource("a");
+    private final ImageSource b = new FakeImageSource("b");
+    private final ImageSource c = new FakeImageSource("c");
+
+    @Before
+    public void setUp() {
+        file = new File(folder.getRoot(), "batch.ckpt");
+    }
+
+    @Test
+    public void resume_keepsLoggedPairs() throws IOException {
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            assertEquals(0, checkpoint.getDoneCount());
+            checkpoint.record(0, 1, 0.5, true);
+            checkpoint.record(1, 2, 0.25, false);
+        }
+
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            assertEquals(2, checkpoint.getDoneCount());
+            assertTrue(checkpoint.isDone(0, 1));
+            assertTrue(checkpoint.isDone(1, 2));
+            assertFalse(checkpoint.isDone(0, 2));
+            assertFalse(checkpoint.isDone(1, 0));
+            assertEquals(Arrays.asList("0>1 0.5 true", "1>2 0.25 false"), replay(checkpoint));
+        }
+    }
+
+    @Test
+    public void resume_appendsNewPairsWithoutReplayingThem() throws IOException {
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            checkpoint.record(0, 1, 0.5, true);
+        }
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            checkpoint.record(0, 2, 0.75, true);
+            assertEquals(2, checkpoint.getDoneCount());
+            assertEquals(Arrays.asList("0>1 0.5 true"), replay(checkpoint));
+        }
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            assertEquals(Arrays.asList("0>1 0.5 true", "0>2 0.75 true"), replay(checkpoint));
+        }
+    }
+
+    @Test
+    public void record_ignoresPairAlreadyDone() throws IOException {
+        try (BatchCheckpoint checkpoint = open(a, b)) {
+            checkpoint.record(0, 1, 0.5, true);
+            checkpoint.record(0, 1, 0.9, true);
+            assertEquals(1, checkpoint.getDoneCount());
+        }
+        try (BatchCheckpoint checkpoint = open(a, b)) {
+            assertEquals(Arrays.asList("0>1 0.5 true"), replay(checkpoint));
+        }
+    }
+
+    @Test
+    public void reorderedImages_rewriteLogInNewOrder() throws IOException {
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            checkpoint.record(0, 1, 0.5, true);
+            checkpoint.record(1, 2, 0.25, false);
+        }
+
+        // c, a, b: a>b becomes 1>2 and b>c becomes 2>0
+        try (BatchCheckpoint checkpoint = open(c, a, b)) {
+            assertEquals(2, checkpoint.getDoneCount());
+            assertTrue(checkpoint.isDone(1, 2));
+            assertTrue(checkpoint.isDone(2, 0));
+            assertFalse(checkpoint.isDone(0, 1));
+            assertEquals(Arrays.asList("1>2 0.5 true", "2>0 0.25 false"), replay(checkpoint));
+            checkpoint.record(0, 1, 0.125, false);
+        }
+
+        try (BatchCheckpoint checkpoint = open(c, a, b)) {
+            assertEquals(3, checkpoint.getDoneCount());
+            assertEquals(Arrays.asList("1>2 0.5 true", "2>0 0.25 false", "0>1 0.125 false"),
+                    replay(checkpoint));
+        }
+    }
+
+    @Test
+    public void removedImage_dropsItsPairs() throws IOException {
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            checkpoint.record(0, 1, 0.5, true);
+            checkpoint.record(0, 2, 0.75, true);
+            checkpoint.record(1, 2, 0.25, false);
+        }
+
+        try (BatchCheckpoint checkpoint = open(a, c)) {
+            assertEquals(1, checkpoint.getDoneCount());
+            assertTrue(checkpoint.isDone(0, 1));
+            assertEquals(Arrays.asList("0>1 0.75 true"), replay(checkpoint));
+        }
+    }
+
+    @Test
+    public void modifiedImage_dropsItsPairs() throws IOException {
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            checkpoint.record(0, 1, 0.5, true);
+            checkpoint.record(0, 2, 0.75, true);
+        }
+
+        try (BatchCheckpoint checkpoint = open(a, new FakeImageSource("b", 2000, 100), c)) {
+            assertEquals(1, checkpoint.getDoneCount());
+            assertFalse(checkpoint.isDone(0, 1));
+            assertTrue(checkpoint.isDone(0, 2));
+        }
+    }
+
+    @Test
+    public void unknownModificationTime_isNeverReused() {
+        ImageSource unversioned = new FakeImageSource("b", 0, 100);
+        try (BatchCheckpoint checkpoint = open(a, unversioned)) {
+            checkpoint.record(0, 1, 0.5, true);
+            assertTrue(checkpoint.isDone(0, 1));
+        }
+
+        try (BatchCheckpoint checkpoint = open(a, unversioned)) {
+            assertEquals(0, checkpoint.getDoneCount());
+            assertFalse(checkpoint.isDone(0, 1));
+        }
+    }
+
+    @Test
+    public void tornLastRecord_isDropped() throws IOException {
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            checkpoint.record(0, 1, 0.5, true);
+            checkpoint.record(1, 2, 0.25, false);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            assertEquals(1, checkpoint.getDoneCount());
+            assertTrue(checkpoint.isDone(0, 1));
+            assertFalse(checkpoint.isDone(1, 2));
+            checkpoint.record(1, 2, 0.375, false);
+        }
+
+        // The log was rewritten without the torn record, so appending after it stays readable
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            assertEquals(Arrays.asList("0>1 0.5 true", "1>2 0.375 false"), replay(checkpoint));
+        }
+    }
+
+    @Test
+    public void otherJob_isDiscarded() throws IOException {
+        try (BatchCheckpoint checkpoint = open(a, b)) {
+            checkpoint.record(0, 1, 0.5, true);
+        }
+
+        try (BatchCheckpoint checkpoint = new BatchCheckpoint(file, "ORB verify=OFF keypoints=0", Arrays.asList(a, b))) {
+            assertEquals(0, checkpoint.getDoneCount());
+            assertFalse(checkpoint.isDone(0, 1));
+            assertTrue(replay(checkpoint).isEmpty());
+        }
+    }
+
+    @Test
+    public void addImages_keepsDonePairsAtTheirNewIndices() throws IOException {
+        try (BatchCheckpoint checkpoint = open(a, b)) {
+            checkpoint.record(0, 1, 0.5, true);
+            checkpoint.record(1, 0, 0.25, true);
+            checkpoint.addImages(Arrays.asList(c));
+
+            assertEquals(2, checkpoint.getDoneCount());
+            assertTrue(checkpoint.isDone(0, 1));
+            assertTrue(checkpoint.isDone(1, 0));
+            assertFalse(checkpoint.isDone(0, 2));
+            assertFalse(checkpoint.isDone(2, 1));
+            checkpoint.record(2, 0, 0.75, false);
+        }
+
+        try (BatchCheckpoint checkpoint = open(a, b, c)) {
+            assertEquals(3, checkpoint.getDoneCount());
+            assertTrue(checkpoint.isDone(2, 0));
+            assertEquals(Arrays.asList("0>1 0.5 true", "1>0 0.25 true", "2>0 0.75 false"), replay(checkpoint));
+        }
+    }
+
+    @Test
+    public void delete_startsFromScratch() {
+        try (BatchCheckpoint checkpoint = open(a, b)) {
+            checkpoint.record(0, 1, 0.5, true);
+            checkpoint.delete();
+            assertEquals(0, checkpoint.getDoneCount());
+            assertFalse(file.exists());
+        }
+
+        try (BatchCheckpoint checkpoint = open(a, b)) {
+            assertEquals(0, checkpoint.getDoneCount());
+        }
+    }
+
+    private BatchCheckpoint open(ImageSource... images) {
+        return new BatchCheckpoint(file, JOB, Arrays.asList(images));
+    }
+
+    private static List<String> replay(BatchCheckpoint checkpoint) throws IOException {
+        List<String> results = new ArrayList<>();
+        checkpoint.replay(new BatchEngine.Listener() {
+            @Override
+            public void onResult(int source, int target, double similarity, boolean matched) {
+                results.add(source + ">" + target + " " + similarity + " " + matched);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+        return results;
+    }
+}
@@ -0,0 +1,85 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class BatchSchedulerTest {
+
+    @Test
+    public void symmetric_coversUpperTriangle() {
+        assertArrayEquals(new int[] {1, 2, 3}, BatchScheduler.targetsFor(0, 4, true));
+        assertArrayEquals(new int[] {3}, BatchScheduler.targetsFor(2, 4, true));
+        assertArrayEquals(new int[0], BatchScheduler.targetsFor(3, 4, true));
+    }
+
+    @Test
+    public void asymmetric_coversEveryOtherImage() {
+        assertArrayEquals(new int[] {1, 2, 3}, BatchScheduler.targetsFor(0, 4, false));
+        assertArrayEquals(new int[] {0, 2, 3}, BatchScheduler.targetsFor(1, 4, false));
+        assertArrayEquals(new int[] {0, 1, 2}, BatchScheduler.targetsFor(3, 4, false));
+    }
+
+    @Test
+    public void singleImage_hasNoTargets() {
+        assertArrayEquals(new int[0], BatchScheduler.targetsFor(0, 1, true));
+        assertArrayEquals(new int[0], BatchScheduler.targetsFor(0, 1, false));
+        assertEquals(0, BatchScheduler.comparisonCount(1, true));
+        assertEquals(0, BatchScheduler.comparisonCount(0, false));
+    }
+
+    @Test
+    public void comparisonCount_matchesSchedule() {
+        for (int imageCount = 1; imageCount <= 6; imageCount++) {
+            for (boolean symmetric : new boolean[] {true, false}) {
+                Set<Long> pairs = new HashSet<>();
+                for (int source = 0; source < imageCount; source++) {
+                    for (int target : BatchScheduler.targetsFor(source, imageCount, symmetric)) {
+                        assertNotEquals(source, target);
+                        assertTrue(pairs.add(pairKey(source, target, symmetric)));
+                    }
+                }
+                assertEquals(BatchScheduler.comparisonCount(imageCount, symmetric), pairs.size());
+            }
+        }
+    }
+
+    @Test
+    public void appendedImages_scheduleOnlyNewPairs() {
+        // Images 0-2 were compared; 3 and 4 were appended
+        assertArrayEquals(new int[] {3, 4}, BatchScheduler.targetsFor(0, 5, true, 3));
+        assertArrayEquals(new int[] {3, 4}, BatchScheduler.targetsFor(2, 5, false, 3));
+        assertArrayEquals(new int[] {4}, BatchScheduler.targetsFor(3, 5, true, 3));
+        assertArrayEquals(new int[] {0, 1, 2, 4}, BatchScheduler.targetsFor(3, 5, false, 3));
+    }
+
+    @Test
+    public void appendedImages_completeTheBatch() {
+        int firstAdded = 3;
+        int imageCount = 5;
+        for (boolean symmetric : new boolean[] {true, false}) {
+            Set<Long> pairs = new HashSet<>();
+            for (int source = 0; source < firstAdded; source++) {
+                for (int target : BatchScheduler.targetsFor(source, firstAdded, symmetric)) {
+                    pairs.add(pairKey(source, target, symmetric));
+                }
+            }
+            for (int source = 0; source < imageCount; source++) {
+                for (int target : BatchScheduler.targetsFor(source, imageCount, symmetric, firstAdded)) {
+                    assertTrue(pairs.add(pairKey(source, target, symmetric)));
+                }
+            }
+            assertEquals(BatchScheduler.comparisonCount(imageCount, symmetric), pairs.size());
+        }
+    }
+
+    private static long pairKey(int source, int target, boolean symmetric) {
+        if (symmetric && source > target) {
+            return (long) target << 32 | source;
+        }
+        return (long) source << 32 | target;
+    }
+}
@@ -0,0 +1,100 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.opencv.core.CvType;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class DescriptorStoreTest {
+    private static final int HEADER_SIZE = 48;
+    private static final int ENTRY_SIZE = 32;
+    private static final byte[] KEY = "ORB|500x500-gray|a|hash".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void open_readsKeysOfValidStore() throws IOException {
+        try (DescriptorStore.Reader reader = DescriptorStore.Reader.open(write(store(2, 0)))) {
+            assertEquals(1, reader.size());
+            assertEquals(new String(KEY, StandardCharsets.UTF_8), reader.getKey(0));
+            assertEquals(0, reader.indexOf(reader.getKey(0)));
+            assertEquals(2, reader.getRowCount(0));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsTruncatedStore() throws IOException {
+        ByteBuffer store = store(2, 0);
+        store.limit(store.capacity() - ENTRY_SIZE / 2);
+        DescriptorStore.Reader.open(write(store));
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsRowsPastTheDescriptors() throws IOException {
+        DescriptorStore.Reader.open(write(store(3, 0)));
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsKeypointsPastTheEnd() throws IOException {
+        DescriptorStore.Reader.open(write(store(2, 1000)));
+    }
+
+    @Test(expected = IOException.class)
+    public void open_rejectsNegativeCounts() throws IOException {
+        DescriptorStore.Reader.open(write(store(-1, 0)));
+    }
+
+    /**
+     * One image with two 32-byte descriptor rows, no stored keypoints, and a table entry
+     * claiming rowCount rows and keypointCount keypoints
+     */
+    private static ByteBuffer store(int rowCount, int keypointCount) {
+        int rowBytes = 32;
+        int totalRows = 2;
+        int keypointsOffset = HEADER_SIZE + totalRows * rowBytes;
+        int keyOffset = keypointsOffset;
+        int tableOffset = (keyOffset + KEY.length + 7) & ~7;
+
+        ByteBuffer buffer = ByteBuffer.allocate(tableOffset + ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0x56474453);
+        buffer.putInt(1);
+        buffer.putInt(CvType.CV_8U);
+        buffer.putInt(rowBytes);
+        buffer.putInt(1);
+        buffer.putInt(totalRows);
+        buffer.putLong(HEADER_SIZE);
+        buffer.putLong(keypointsOffset);
+        buffer.putLong(tableOffset);
+
+        buffer.position(keyOffset);
+        buffer.put(KEY);
+        buffer.position(tableOffset);
+        buffer.putInt(0);
+        buffer.putInt(rowCount);
+        buffer.putInt(0);
+        buffer.putInt(keypointCount);
+        buffer.putLong(keyOffset);
+        buffer.putInt(KEY.length);
+        buffer.putInt(0);
+        buffer.rewind();
+        return buffer;
+    }
+
+    private File write(ByteBuffer contents) throws IOException {
+        File file = new File(folder.getRoot(), "reference.store");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.getChannel().write(contents);
+        }
+        return file;
+    }
+}
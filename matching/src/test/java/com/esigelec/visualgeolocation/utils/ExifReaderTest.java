@@ -0,0 +1,43 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ExifReaderTest {
+    private static final double DELTA = 1e-9;
+
+    @Test
+    public void parseCoordinate_degreesMinutesSeconds() {
+        assertEquals(48 + 51 / 60.0 + 30 / 3600.0, ExifReader.parseCoordinate("48/1,51/1,30/1"), DELTA);
+        assertEquals(2 + 21 / 60.0 + 8.58 / 3600.0, ExifReader.parseCoordinate("2/1,21/1,858/100"), DELTA);
+        assertEquals(49 + 26 / 60.0 + 12.5 / 3600.0, ExifReader.parseCoordinate(" 49/1, 26/1, 12.5"), DELTA);
+    }
+
+    @Test
+    public void parseCoordinate_malformedIsNaN() {
+        assertTrue(Double.isNaN(ExifReader.parseCoordinate(null)));
+        assertTrue(Double.isNaN(ExifReader.parseCoordinate("")));
+        assertTrue(Double.isNaN(ExifReader.parseCoordinate("48/1,51/1")));
+        assertTrue(Double.isNaN(ExifReader.parseCoordinate("48/1,51/1,30/1,0/1")));
+        assertTrue(Double.isNaN(ExifReader.parseCoordinate("48/1,x/1,30/1")));
+        assertTrue(Double.isNaN(ExifReader.parseCoordinate("48/0,51/1,30/1")));
+    }
+
+    @Test
+    public void parseRational_fractionsAndDecimals() {
+        assertEquals(61.5, ExifReader.parseRational("123/2"), DELTA);
+        assertEquals(12.25, ExifReader.parseRational("12.25"), DELTA);
+        assertEquals(-3.5, ExifReader.parseRational("-7/2"), DELTA);
+        assertEquals(0, ExifReader.parseRational("0/1"), DELTA);
+    }
+
+    @Test
+    public void parseRational_malformedIsNaN() {
+        assertTrue(Double.isNaN(ExifReader.parseRational(null)));
+        assertTrue(Double.isNaN(ExifReader.parseRational("5/0")));
+        assertTrue(Double.isNaN(ExifReader.parseRational("/2")));
+        assertTrue(Double.isNaN(ExifReader.parseRational("1.2.3")));
+        assertTrue(Double.isNaN(ExifReader.parseRational("abc")));
+    }
+}
@@ -0,0 +1,56 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Image source with a fixed identity and no pixels, for tests that never decode
+ */
+class FakeImageSource implements ImageSource {
+    private final String id;
+    private final long modifiedTime;
+    private final long length;
+
+    FakeImageSource(String id) {
+        this(id, 1000, 100);
+    }
+
+    FakeImageSource(String id, long modifiedTime, long length) {
+        this.id = id;
+        this.modifiedTime = modifiedTime;
+        this.length = length;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return id;
+    }
+
+    @Override
+    public InputStream openStream() {
+        return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public long getModifiedTime() {
+        return modifiedTime;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public Mat decodeGray(Size targetSize) {
+        throw new UnsupportedOperationException("Not decodable: " + id);
+    }
+}
@@ -0,0 +1,60 @@
+package com.esigelec.visualgeolocation.utils;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TopKCollectorTest {
+
+    @Test
+    public void keepsBestK_bestFirst() {
+        TopKCollector collector = new TopKCollector(2);
+        collector.offer(result("a", 0.25));
+        collector.offer(result("b", 0.75));
+        collector.offer(result("c", 0.5));
+        collector.offer(result("d", 0.125));
+
+        List<ImageMatcher.MatchResult> top = collector.snapshot();
+        assertEquals(2, top.size());
+        assertEquals("b", top.get(0).getImage().getId());
+        assertEquals("c", top.get(1).getImage().getId());
+    }
+
+    @Test
+    public void threshold_isLowestKeptOnceFull() {
+        TopKCollector collector = new TopKCollector(2);
+        assertEquals(Double.NEGATIVE_INFINITY, collector.getThreshold(), 0);
+        collector.offer(result("a", 0.25));
+        assertEquals(Double.NEGATIVE_INFINITY, collector.getThreshold(), 0);
+        collector.offer(result("b", 0.75));
+        assertEquals(0.25, collector.getThreshold(), 0);
+        collector.offer(result("c", 0.5));
+        assertEquals(0.5, collector.getThreshold(), 0);
+    }
+
+    @Test
+    public void offer_reportsChanges() {
+        TopKCollector collector = new TopKCollector(1);
+        List<Integer> sizes = new ArrayList<>();
+        collector.setListener(topMatches -> sizes.add(topMatches.size()));
+
+        assertTrue(collector.offer(result("a", 0.5)));
+        assertFalse(collector.offer(result("b", 0.5)));
+        assertFalse(collector.offer(result("c", 0.25)));
+        assertTrue(collector.offer(result("d", 0.75)));
+        assertEquals(2, sizes.size());
+        assertEquals("d", collector.snapshot().get(0).getImage().getId());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroK_isRejected() {
+        new TopKCollector(0);
+    }
+
+    private static ImageMatcher.MatchResult result(String id, double similarity) {
+        return new ImageMatcher.MatchResult(new FakeImageSource(id), similarity, "SIFT");
+    }
+}